@@ -1,11 +1,11 @@
 package esde06.tol.oulu.fi;
 
 import esde06.tol.oulu.fi.cwprotocol.CWPControl;
-import esde06.tol.oulu.fi.cwprotocol.CWPMessaging;
+import esde06.tol.oulu.fi.cwprotocol.CWPTextMessaging;
 import esde06.tol.oulu.fi.model.CWPAudio;
 
 public interface CWPProvider {
-    CWPMessaging getMessaging();
+    CWPTextMessaging getMessaging();
 
     CWPControl getControl();
 
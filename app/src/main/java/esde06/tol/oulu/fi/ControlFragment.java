@@ -22,15 +22,12 @@ import android.widget.Toast;
 import android.preference.PreferenceManager;
 
 import java.io.IOException;
-import java.util.Observable;
-import java.util.Observer;
 
 import esde06.tol.oulu.fi.cwprotocol.CWPControl;
-import esde06.tol.oulu.fi.cwprotocol.CWProtocolListener.CWPEvent;
-import esde06.tol.oulu.fi.model.CWPMessage;
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolListener;
 import esde06.tol.oulu.fi.model.CWPAudio;
 
-public class ControlFragment extends Fragment implements View.OnTouchListener, TextView.OnEditorActionListener, Observer, SharedPreferences.OnSharedPreferenceChangeListener {
+public class ControlFragment extends Fragment implements View.OnTouchListener, TextView.OnEditorActionListener, CWProtocolListener, SharedPreferences.OnSharedPreferenceChangeListener {
 
     private final static String TAG = "ControlFragment";
     CWPControl control;
@@ -97,7 +94,7 @@ public class ControlFragment extends Fragment implements View.OnTouchListener, T
         if (provider != null){
             audioHandle = provider.getAudio();
             control = provider.getControl();
-            control.addObserver(this);
+            control.addListener(this);
             Log.d(TAG, "Started observing protocol events.");
         }
     }
@@ -105,7 +102,7 @@ public class ControlFragment extends Fragment implements View.OnTouchListener, T
     @Override
     public void onDetach() {
         super.onDetach();
-        control.deleteObserver(this);
+        control.removeListener(this);
         control = null;
         Log.d(TAG, "Stopped observing protocol events");
     }
@@ -220,18 +217,16 @@ public class ControlFragment extends Fragment implements View.OnTouchListener, T
     }
 
     @Override
-    public void update(Observable o, Object arg) {
-        CWPMessage msg = (CWPMessage) arg;
-        Log.d(TAG, "Received protocol event : " + msg.event.name());
-        if (msg.event == CWPEvent.EConnected || msg.event == CWPEvent.EDisconnected){
-            int textId = msg.event == CWPEvent.EConnected ? R.string.Connected : R.string.Disconnected;
+    public void onEvent(CWPEvent event, int param) {
+        if (event == CWPEvent.EConnected || event == CWPEvent.EDisconnected){
+            int textId = event == CWPEvent.EConnected ? R.string.Connected : R.string.Disconnected;
             showToast(getString(textId));
         }
         connectionSwitch.setChecked(control.isConnected());
-        if (msg.event == CWPEvent.EChangedFrequency) {
-            showToast("Frequency Set: " + msg.param);
+        if (event == CWPEvent.EChangedFrequency) {
+            showToast("Frequency Set: " + param);
         }
-        if (msg.event == CWPEvent.EConnected){
+        if (event == CWPEvent.EConnected){
             setShouldConnectAuto(true);
         }
     }
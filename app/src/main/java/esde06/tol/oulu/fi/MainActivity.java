@@ -1,6 +1,7 @@
 package esde06.tol.oulu.fi;
 
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
@@ -14,8 +15,12 @@ import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 
+import java.io.File;
+
 import esde06.tol.oulu.fi.cwprotocol.CWPControl;
-import esde06.tol.oulu.fi.cwprotocol.CWPMessaging;
+import esde06.tol.oulu.fi.cwprotocol.CWPLog;
+import esde06.tol.oulu.fi.cwprotocol.CWPTextMessaging;
+import esde06.tol.oulu.fi.model.AndroidLogSink;
 import esde06.tol.oulu.fi.model.CWPAudio;
 import esde06.tol.oulu.fi.model.CWPModel;
 
@@ -41,12 +46,42 @@ public class MainActivity extends AppCompatActivity implements CWPProvider {
         mViewPager = (ViewPager) findViewById(R.id.container);
         mViewPager.setAdapter(mSectionsPagerAdapter);
 
-        cwpModel = new CWPModel();
+        CWPLog.setSink(new AndroidLogSink());
+        // the model and its connection outlive configuration changes
+        cwpModel = (CWPModel) getLastCustomNonConfigurationInstance();
+        if (cwpModel == null) {
+            cwpModel = new CWPModel();
+        }
         PreferenceManager.setDefaultValues(this, R.xml.pref_connection, false);
         PreferenceManager.setDefaultValues(this, R.xml.pref_cwpserver, true);
         PreferenceManager.setDefaultValues(this, R.xml.pref_signal_alert, true);
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // journaling is opt-in and may have been toggled in the settings
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        if (preferences.getBoolean(getString(R.string.pref_key_journal_sessions), false)) {
+            cwpModel.startJournal(new File(getFilesDir(), "journal"));
+        } else {
+            cwpModel.stopJournal();
+        }
+    }
+
+    @Override
+    public Object onRetainCustomNonConfigurationInstance() {
+        return cwpModel;
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (isFinishing()) {
+            cwpModel.shutdown();
+        }
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
@@ -66,7 +101,7 @@ public class MainActivity extends AppCompatActivity implements CWPProvider {
         return super.onOptionsItemSelected(item);
     }
 
-    public CWPMessaging getMessaging() {
+    public CWPTextMessaging getMessaging() {
         return cwpModel;
     }
     public CWPControl getControl() {
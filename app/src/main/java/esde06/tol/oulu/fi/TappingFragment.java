@@ -12,14 +12,13 @@ import android.view.MotionEvent;
 import android.widget.TextView;
 
 import java.io.IOException;
-import java.util.Observable;
-import java.util.Observer;
 
+import esde06.tol.oulu.fi.cwprotocol.CWPBatchListener;
+import esde06.tol.oulu.fi.cwprotocol.CWPEventBatch;
 import esde06.tol.oulu.fi.cwprotocol.CWPMessaging;
 import esde06.tol.oulu.fi.cwprotocol.CWProtocolListener.CWPEvent;
-import esde06.tol.oulu.fi.model.CWPMessage;
 
-public class TappingFragment extends Fragment implements View.OnTouchListener, Observer {
+public class TappingFragment extends Fragment implements View.OnTouchListener, CWPBatchListener {
 
     private static final String TAG = "TappingFragment";
     private ImageView lineStatusImage;
@@ -51,7 +50,7 @@ public class TappingFragment extends Fragment implements View.OnTouchListener, O
         CWPProvider provider = (CWPProvider) getActivity();
         if (provider != null) {
             messaging = provider.getMessaging();
-            messaging.addObserver(this);
+            messaging.addBatchListener(this);
         }
         Log.d(TAG, "Started observing protocol events.");
     }
@@ -59,7 +58,7 @@ public class TappingFragment extends Fragment implements View.OnTouchListener, O
     @Override
     public void onDetach() {
         super.onDetach();
-        messaging.deleteObserver(this);
+        messaging.removeBatchListener(this);
         messaging = null;
         Log.d(TAG, "Stopped observing protocol events.");
     }
@@ -122,10 +121,15 @@ public class TappingFragment extends Fragment implements View.OnTouchListener, O
         }
     }
 
+    // Connection events are shown in order, of the line events only the last one of the batch.
     @Override
-    public void update(Observable o, Object arg) {
-        CWPMessage msg = (CWPMessage) arg;
-        changeLineStatus(msg.event);
-        Log.d(TAG, "Received protocol event: " + msg.event.name());
+    public void onEvents(CWPEventBatch batch) {
+        int lastLineEvent = batch.lastLineEvent();
+        for (int i = 0; i < batch.size(); i++) {
+            CWPEvent event = batch.event(i);
+            if (i == lastLineEvent || !CWPEventBatch.isLineEvent(event)) {
+                changeLineStatus(event);
+            }
+        }
     }
 }
@@ -0,0 +1,14 @@
+package esde06.tol.oulu.fi.model;
+
+import android.util.Log;
+
+import esde06.tol.oulu.fi.cwprotocol.CWPLog;
+
+// Routes protocol logging to logcat.
+public class AndroidLogSink implements CWPLog.Sink {
+
+    @Override
+    public void log(String tag, String message) {
+        Log.d(tag, message);
+    }
+}
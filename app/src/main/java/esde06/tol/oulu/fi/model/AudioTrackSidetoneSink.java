@@ -0,0 +1,75 @@
+package esde06.tol.oulu.fi.model;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Build;
+import android.os.Process;
+
+import esde06.tol.oulu.fi.sidetone.SidetoneSink;
+
+// Streams sidetone PCM to a mono AudioTrack at the device's native rate, which keeps it on the fast
+// mixer path, and asks for the low-latency performance mode where the platform has it (API 26). The
+// track is sized to the minimum buffer and written half a buffer at a time.
+public class AudioTrackSidetoneSink implements SidetoneSink {
+
+    private static final int STREAM = AudioManager.STREAM_DTMF;
+    private static final int CHANNELS = AudioFormat.CHANNEL_OUT_MONO;
+    private static final int ENCODING = AudioFormat.ENCODING_PCM_16BIT;
+
+    private final int sampleRate = AudioTrack.getNativeOutputSampleRate(STREAM);
+    private final int bufferBytes = AudioTrack.getMinBufferSize(sampleRate, CHANNELS, ENCODING);
+    private AudioTrack track;
+
+    @Override
+    public int sampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int blockSize() {
+        return bufferBytes / 4;  // 16-bit samples in half the buffer
+    }
+
+    @Override
+    public void open() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        track = newTrack();
+        track.play();
+    }
+
+    @SuppressWarnings("deprecation")
+    private AudioTrack newTrack() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            return new AudioTrack.Builder()
+                    .setAudioAttributes(new AudioAttributes.Builder()
+                            .setUsage(AudioAttributes.USAGE_ASSISTANCE_SONIFICATION)
+                            .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+                            .build())
+                    .setAudioFormat(new AudioFormat.Builder()
+                            .setSampleRate(sampleRate)
+                            .setChannelMask(CHANNELS)
+                            .setEncoding(ENCODING)
+                            .build())
+                    .setBufferSizeInBytes(bufferBytes)
+                    .setTransferMode(AudioTrack.MODE_STREAM)
+                    .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
+                    .build();
+        }
+        return new AudioTrack(STREAM, sampleRate, CHANNELS, ENCODING, bufferBytes, AudioTrack.MODE_STREAM);
+    }
+
+    @Override
+    public void write(short[] samples, int offset, int length) {
+        track.write(samples, offset, length);
+    }
+
+    @Override
+    public void close() {
+        track.pause();
+        track.flush();
+        track.release();
+        track = null;
+    }
+}
@@ -1,29 +1,89 @@
 package esde06.tol.oulu.fi.model;
 
 import android.util.Log;
+import java.io.File;
 import java.io.IOException;
-import java.util.Observable;
 
+import esde06.tol.oulu.fi.cwprotocol.CWPBatchListener;
 import esde06.tol.oulu.fi.cwprotocol.CWPControl;
-import esde06.tol.oulu.fi.cwprotocol.CWPMessaging;
+import esde06.tol.oulu.fi.cwprotocol.CWPDelivery;
+import esde06.tol.oulu.fi.cwprotocol.CWPEventLoop;
+import esde06.tol.oulu.fi.cwprotocol.CWPJournal;
+import esde06.tol.oulu.fi.cwprotocol.CWPTextMessaging;
 import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation;
 import esde06.tol.oulu.fi.cwprotocol.CWProtocolListener;
+import esde06.tol.oulu.fi.morse.MorseKeyer;
+import esde06.tol.oulu.fi.sidetone.Sidetone;
 
-public class CWPModel extends Observable implements CWPMessaging, CWPControl, CWProtocolListener, CWPAudio {
+public class CWPModel implements CWPTextMessaging, CWPControl, CWProtocolListener, CWPAudio {
 
     private final static String TAG = "CWPModel";
+    private static final int LINE_UP = 0;
+    private static final int LINE_DOWN = 1;
     private Signaller audioFeedback;
-    private CWProtocolImplementation protocol = new CWProtocolImplementation(this);
+    // The thread that owns protocol state, fed by taps, inbound frames and timers.
+    private final CWPEventLoop protocolThread = CWPEventLoop.start("CWPProtocol");
+    private final MainThreadExecutor mainLooper = new MainThreadExecutor();
+    private final CWPDelivery mainThread = CWPDelivery.coalesced(mainLooper);
+    private final CWPDelivery mainThreadBatches = CWPDelivery.ordered(mainLooper);
+    private Sidetone sidetone;
+    private boolean journaling = false;
+    private CWProtocolImplementation protocol = new CWProtocolImplementation(this, protocolThread);
+    private final MorseKeyer keyer = new MorseKeyer(protocol, protocolThread);
+
+    // Taps are stamped when the user touches the lamp, so the wire values do not depend on how
+    // long the command waited for the protocol thread.
+    private final CWPEventLoop.CommandHandler tapCommands = new CWPEventLoop.CommandHandler() {
+        @Override
+        public void onCommand(int command, long tappedAt) {
+            if (command == LINE_UP) {
+                protocol.lineUpAt(tappedAt);
+            } else {
+                protocol.lineDownAt(tappedAt);
+            }
+        }
+    };
+
+    private final Runnable disconnectCommand = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                protocol.disconnect();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    };
+
+    // Event listener registration, events are delivered on the main thread with stale line
+    // events coalesced away.
+    public void addListener(CWProtocolListener listener) {
+        protocol.addListener(listener, mainThread);
+    }
+
+    public void removeListener(CWProtocolListener listener) {
+        protocol.removeListener(listener);
+    }
+
+    // Batches are delivered on the main thread, one looper message per inbound read.
+    public void addBatchListener(CWPBatchListener listener) {
+        protocol.addBatchListener(listener, mainThreadBatches);
+    }
+
+    public void removeBatchListener(CWPBatchListener listener) {
+        protocol.removeBatchListener(listener);
+    }
 
     // CWPMessaging Interface Implementation
     public void lineUp() {
         Log.d(TAG, "Pass line Up request");
-        protocol.lineUp();
+        keyer.cancel();  // the lamp takes over from a text being keyed
+        protocolThread.command(tapCommands, LINE_UP, protocol.clock().nanoTime());
     }
 
     public void lineDown() {
         Log.d(TAG, "Pass line Down request");
-        protocol.lineDown();
+        protocolThread.command(tapCommands, LINE_DOWN, protocol.clock().nanoTime());
     }
 
     public boolean lineIsUp() {
@@ -34,25 +94,97 @@ public class CWPModel extends Observable implements CWPMessaging, CWPControl, CW
         return protocol.serverSetLineUp();
     }
 
+    public void sendText(String text, int wpm) {
+        Log.d(TAG, "Send text at " + wpm + " wpm");
+        keyer.send(text, wpm);
+    }
+
+    public void cancelText() {
+        keyer.cancel();
+    }
+
+    public boolean isSendingText() {
+        return keyer.isSending();
+    }
+
+    // Journals the sessions of this model into rolling segments under the directory, until stopJournal().
+    // Called on the main thread. The journal is opened and closed on the protocol thread, so a
+    // restarted journal never maps segments while the one before it is still being closed.
+    public void startJournal(final File directory) {
+        if (journaling) {
+            return;
+        }
+        journaling = true;
+        protocolThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                protocol.setJournal(new CWPJournal(directory, "session", protocol.clock()));
+            }
+        });
+    }
+
+    // Forces the journal to disk and closes it.
+    public void stopJournal() {
+        if (!journaling) {
+            return;
+        }
+        journaling = false;
+        protocolThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                protocol.setJournal(null);
+            }
+        });
+    }
+
+    // Ends the model for good, on the main thread: the text and the connection stop, the journal is
+    // closed, and the protocol and timer threads end once the tasks queued before this have run.
+    public void shutdown() {
+        Log.d(TAG, "Shut down the model.");
+        keyer.shutdown();
+        turnOffAudioFeedback();
+        journaling = false;
+        protocolThread.execute(disconnectCommand);
+        protocolThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                protocol.setJournal(null);
+                protocol.timers().shutdown();
+            }
+        });
+        protocolThread.shutdown();
+    }
+
     // CWPControl Interface Implementation
 
-    public void connect(String serverAddr, int serverPort, int frequency) {
+    public void connect(final String serverAddr, final int serverPort, final int frequency) {
         Log.d(TAG, "Pass connect to server request.");
-        protocol.connect(serverAddr, serverPort, frequency);
+        protocolThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                protocol.connect(serverAddr, serverPort, frequency);
+            }
+        });
     }
 
     public void disconnect() throws IOException {
         Log.d(TAG, "Pass disconnect to server request.");
-        protocol.disconnect();
+        keyer.cancel();
+        protocolThread.execute(disconnectCommand);
     }
 
     public boolean isConnected() {
         return protocol.isConnected();
     }
 
-    public void setFrequency(int frequency) {
+    public void setFrequency(final int frequency) {
         Log.d(TAG, "Set Frequency to : " + frequency);
-        protocol.setFrequency(frequency);
+        protocolThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                protocol.setFrequency(frequency);
+            }
+        });
     }
 
     @Override
@@ -61,23 +193,28 @@ public class CWPModel extends Observable implements CWPMessaging, CWPControl, CW
     }
 
     public void onEvent(CWPEvent event, int param) {
-        Log.d(TAG, "Event received from protocol implementation. Notifying observers.");
-        setChanged();
-        notifyObservers(new CWPMessage(event, param));
+        Log.d(TAG, "Event received from protocol implementation.");
     }
 
     public void turnOnAudioFeedback(int alertVolume) {
         Log.d(TAG, "Audio Feedback turned On! - Volume : " + alertVolume);
-        audioFeedback = new Signaller(alertVolume);
-        this.addObserver(audioFeedback);
+        if (sidetone == null) {
+            sidetone = new Sidetone(new AudioTrackSidetoneSink());
+        }
+        sidetone.setVolume(alertVolume / 100f);
+        sidetone.start();
+        audioFeedback = new Signaller(sidetone);
+        // Keying the sidetone is two volatile writes, so it runs inline and never waits for the UI.
+        protocol.addListener(audioFeedback, CWPDelivery.INLINE);
     }
 
     public void turnOffAudioFeedback() {
         Log.d(TAG, "Audio Feedback turned off!");
         if (audioFeedback != null) {
+            this.removeListener(audioFeedback);
             audioFeedback.forceStop();
-            this.deleteObserver(audioFeedback);
             audioFeedback = null;
+            sidetone.stop();
         }
     }
 
@@ -0,0 +1,17 @@
+package esde06.tol.oulu.fi.model;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+
+// Runs subscriber callbacks on the main looper, where the fragments observe the model.
+public class MainThreadExecutor implements Executor {
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    @Override
+    public void execute(Runnable command) {
+        handler.post(command);
+    }
+}
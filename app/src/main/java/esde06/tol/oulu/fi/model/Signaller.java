@@ -1,47 +1,28 @@
 package esde06.tol.oulu.fi.model;
 
-import android.content.Context;
-import android.content.SharedPreferences;
-import android.media.AudioManager;
-import android.media.ToneGenerator;
-import android.preference.PreferenceManager;
-import android.util.Log;
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolListener;
+import esde06.tol.oulu.fi.sidetone.Sidetone;
 
-import java.util.Observer;
-import java.util.Observable;
+// Keys the sidetone engine from line events. Only flips the engine's key flags,
+// so it is cheap enough to run inline on the protocol thread.
+public class Signaller implements CWProtocolListener {
 
-import esde06.tol.oulu.fi.cwprotocol.CWProtocolListener.CWPEvent;
+    private final Sidetone sidetone;
 
-public class Signaller implements Observer {
-
-    private final static String TAG = "Signaller";
-    private ToneGenerator generator;
-
-    Signaller(int alertVolume) {
-        generator = new ToneGenerator(AudioManager.STREAM_DTMF, alertVolume);
-    }
-
-    private void start() {
-        generator.startTone(ToneGenerator.TONE_DTMF_5);
-    }
-
-    private void stop() {
-        generator.stopTone();
+    Signaller(Sidetone sidetone) {
+        this.sidetone = sidetone;
     }
 
     public void forceStop() {
-        stop();
+        sidetone.keyUp();
     }
 
     @Override
-    public void update(Observable o, Object arg) {
-        CWPMessage msg = (CWPMessage) arg;
-        Log.d(TAG, "Received protocol event : " + msg.event.name());
-        if (msg.event == CWPEvent.ELineUp) {
-            start();
-        } else if (msg.event == CWPEvent.ELineDown || msg.event == CWPEvent.EDisconnected) {
-            stop();
+    public void onEvent(CWPEvent event, int param) {
+        if (event == CWPEvent.ELineUp) {
+            sidetone.keyDown();
+        } else if (event == CWPEvent.ELineDown || event == CWPEvent.EDisconnected) {
+            sidetone.keyUp();
         }
     }
 }
-
@@ -0,0 +1,46 @@
+package esde06.tol.oulu.fi.benchmarks;
+
+import esde06.tol.oulu.fi.cwprotocol.CWPFrameDecoder;
+import esde06.tol.oulu.fi.cwprotocol.CWPFrameQueue;
+import esde06.tol.oulu.fi.cwprotocol.CWPTransport;
+import esde06.tol.oulu.fi.cwprotocol.CWPWriteStats;
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation.CWPState;
+
+// Transport without a peer: the benchmark thread plays the server by calling receive(),
+// and outbound frames are discarded as soon as the protocol flushes them.
+class CapturingTransport implements CWPTransport {
+
+    private final CWPWriteStats writeStats = new CWPWriteStats();
+    private CWPFrameQueue outbound;
+    private CWPFrameDecoder.FrameListener listener;
+    long framesSent = 0;
+
+    @Override
+    public void open(String serverAddress, int serverPort, CWPFrameQueue outbound, CWPFrameDecoder.FrameListener listener) {
+        this.outbound = outbound;
+        this.listener = listener;
+    }
+
+    // One frame per read.
+    void receive(CWPState state, int value) {
+        listener.onFrame(state, value);
+        listener.onReadEnd();
+    }
+
+    @Override
+    public void flush() {
+        while (outbound.poll() != CWPFrameQueue.EMPTY) {
+            framesSent++;
+        }
+    }
+
+    @Override
+    public void close() {
+        listener.onFrame(CWPState.Disconnected, 0);
+    }
+
+    @Override
+    public CWPWriteStats writeStats() {
+        return writeStats;
+    }
+}
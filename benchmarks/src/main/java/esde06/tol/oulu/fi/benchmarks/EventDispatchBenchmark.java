@@ -0,0 +1,152 @@
+package esde06.tol.oulu.fi.benchmarks;
+
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import esde06.tol.oulu.fi.cwprotocol.CWPBatchListener;
+import esde06.tol.oulu.fi.cwprotocol.CWPDelivery;
+import esde06.tol.oulu.fi.cwprotocol.CWPEventBatch;
+import esde06.tol.oulu.fi.cwprotocol.CWPEventBus;
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolListener;
+
+// Fan-out of one protocol event to the three listeners of the app (tapping, control, signaller).
+// eventBusFanOut is the CWPEventBus dispatch the app uses. observableFanOut keeps the previous
+// CWPModel dispatch for comparison: a new message per event, handed to java.util.Observable,
+// and a cast and switch in every observer. batchFanOut hands both events to batch listeners in one call.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventDispatchBenchmark {
+
+    static class EventMessage {
+        final CWProtocolListener.CWPEvent event;
+        final int param;
+
+        EventMessage(CWProtocolListener.CWPEvent event, int param) {
+            this.event = event;
+            this.param = param;
+        }
+    }
+
+    static class ObservableModel extends Observable implements CWProtocolListener {
+        @Override
+        public void onEvent(CWPEvent event, int param) {
+            setChanged();
+            notifyObservers(new EventMessage(event, param));
+        }
+    }
+
+    static class SwitchingObserver implements Observer {
+        private final Blackhole blackhole;
+
+        SwitchingObserver(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void update(Observable o, Object arg) {
+            EventMessage msg = (EventMessage) arg;
+            switch (msg.event) {
+                case ELineUp:
+                case ELineDown:
+                    blackhole.consume(msg.param);
+                    break;
+                default:
+                    blackhole.consume(msg.event);
+            }
+        }
+    }
+
+    static class SwitchingListener implements CWProtocolListener {
+        private final Blackhole blackhole;
+
+        SwitchingListener(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void onEvent(CWPEvent event, int param) {
+            switch (event) {
+                case ELineUp:
+                case ELineDown:
+                    blackhole.consume(param);
+                    break;
+                default:
+                    blackhole.consume(event);
+            }
+        }
+    }
+
+    static class SwitchingBatchListener implements CWPBatchListener {
+        private final Blackhole blackhole;
+
+        SwitchingBatchListener(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void onEvents(CWPEventBatch batch) {
+            for (int i = 0; i < batch.size(); i++) {
+                switch (batch.event(i)) {
+                    case ELineUp:
+                    case ELineDown:
+                        blackhole.consume(batch.param(i));
+                        break;
+                    default:
+                        blackhole.consume(batch.event(i));
+                }
+            }
+        }
+    }
+
+    private ObservableModel model;
+    private CWPEventBus bus;
+    private CWPEventBus batchBus;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        model = new ObservableModel();
+        bus = new CWPEventBus();
+        batchBus = new CWPEventBus();
+        for (int i = 0; i < 3; i++) {
+            model.addObserver(new SwitchingObserver(blackhole));
+            bus.addListener(new SwitchingListener(blackhole));
+            batchBus.addBatchListener(new SwitchingBatchListener(blackhole), CWPDelivery.INLINE);
+        }
+    }
+
+    @Benchmark
+    public void eventBusFanOut() {
+        bus.onEvent(CWProtocolListener.CWPEvent.ELineUp, 1000);
+        bus.onEvent(CWProtocolListener.CWPEvent.ELineDown, 120);
+    }
+
+    @Benchmark
+    public void batchFanOut() {
+        batchBus.publish(CWProtocolListener.CWPEvent.ELineUp, 1000, 0);
+        batchBus.publish(CWProtocolListener.CWPEvent.ELineDown, 120, 0);
+        batchBus.endBatch();
+    }
+
+    @Benchmark
+    public void observableFanOut() {
+        model.onEvent(CWProtocolListener.CWPEvent.ELineUp, 1000);
+        model.onEvent(CWProtocolListener.CWPEvent.ELineDown, 120);
+    }
+}
@@ -0,0 +1,100 @@
+package esde06.tol.oulu.fi.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import esde06.tol.oulu.fi.cwprotocol.CWPFrameDecoder;
+import esde06.tol.oulu.fi.cwprotocol.CWPFrameEncoder;
+import esde06.tol.oulu.fi.cwprotocol.CWPFrameQueue;
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation.CWPState;
+
+// Encode, decode and queue throughput for bursts of LineUp/LineDown frame pairs.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCodecBenchmark {
+
+    @Param({"2", "128"})
+    int burst;
+
+    private long[] frames;
+    private ByteBuffer encoded;
+    private ByteBuffer target;
+    private CWPFrameDecoder decoder;
+    private CWPFrameQueue queue;
+    private CWPFrameDecoder.FrameListener sink;
+
+    @Setup
+    public void setup(final Blackhole blackhole) {
+        frames = new long[burst];
+        for (int i = 0; i < burst; i++) {
+            frames[i] = i % 2 == 0
+                    ? CWPFrameQueue.pack(CWPFrameQueue.INT_FRAME, 1000 + i)
+                    : CWPFrameQueue.pack(CWPFrameQueue.SHORT_FRAME, 120);
+        }
+        target = ByteBuffer.allocateDirect(burst * 4).order(ByteOrder.BIG_ENDIAN);
+        encoded = ByteBuffer.allocateDirect(burst * 4).order(ByteOrder.BIG_ENDIAN);
+        for (long frame : frames) {
+            CWPFrameEncoder.encode(frame, encoded);
+        }
+        encoded.flip();
+        decoder = new CWPFrameDecoder(burst * 4);
+        queue = new CWPFrameQueue(Integer.highestOneBit(burst) * 2, CWPFrameQueue.OverflowPolicy.DropNewest);
+        sink = new CWPFrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(CWPState state, int value) {
+                blackhole.consume(value);
+            }
+
+            @Override
+            public void onReadEnd() {
+            }
+        };
+    }
+
+    @Benchmark
+    public int encode() {
+        target.clear();
+        for (long frame : frames) {
+            CWPFrameEncoder.encode(frame, target);
+        }
+        return target.position();
+    }
+
+    @Benchmark
+    public int decode() {
+        encoded.rewind();
+        decoder.buffer().put(encoded);
+        return decoder.decode(sink);
+    }
+
+    @Benchmark
+    public long queueOfferPoll() {
+        for (long frame : frames) {
+            queue.offer(CWPFrameQueue.tag(frame), CWPFrameQueue.value(frame));
+        }
+        long sum = 0;
+        long frame;
+        while ((frame = queue.poll()) != CWPFrameQueue.EMPTY) {
+            sum += frame;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,98 @@
+package esde06.tol.oulu.fi.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import esde06.tol.oulu.fi.morse.MorseDecoder;
+
+// Decoding cost for many keys at once, one decoder per channel fed with jittered 60 WPM keying.
+// One operation decodes the whole text, about 200 key elements, on every channel.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MorseDecoderBenchmark {
+
+    private static final String TEXT = "CQ CQ DE OH8 PARIS THE QUICK BROWN FOX JUMPS OVER THE LAZY DOG 73";
+    private static final String[] LETTERS = {
+            ".-", "-...", "-.-.", "-..", ".", "..-.", "--.", "....", "..", ".---", "-.-", ".-..", "--",
+            "-.", "---", ".--.", "--.-", ".-.", "...", "-", "..-", "...-", ".--", "-..-", "-.--", "--.."};
+    private static final String[] DIGITS = {
+            "-----", ".----", "..---", "...--", "....-", ".....", "-....", "--...", "---..", "----."};
+
+    @Param({"1", "256"})
+    int channels;
+
+    // Alternating line-up offsets and line-down durations, in milliseconds.
+    private int[] keying;
+    private MorseDecoder[] decoders;
+
+    @Setup
+    public void setup(final Blackhole blackhole) {
+        Random random = new Random(42);
+        double dit = 1200.0 / 60;
+        int[] events = new int[TEXT.length() * 16];
+        int count = 0;
+        int offset = 0;
+        for (char c : TEXT.toCharArray()) {
+            if (c == ' ') {
+                offset += jitter(random, 4 * dit);
+                continue;
+            }
+            String code = Character.isDigit(c) ? DIGITS[c - '0'] : LETTERS[c - 'A'];
+            for (int i = 0; i < code.length(); i++) {
+                int duration = jitter(random, code.charAt(i) == '.' ? dit : 3 * dit);
+                events[count++] = offset;
+                events[count++] = duration;
+                offset += duration + jitter(random, i < code.length() - 1 ? dit : 3 * dit);
+            }
+        }
+        keying = new int[count];
+        System.arraycopy(events, 0, keying, 0, count);
+        MorseDecoder.Listener listener = new MorseDecoder.Listener() {
+            @Override
+            public void onCharacter(MorseDecoder decoder, char character) {
+                blackhole.consume(character);
+            }
+        };
+        decoders = new MorseDecoder[channels];
+        for (int i = 0; i < channels; i++) {
+            decoders[i] = new MorseDecoder(listener, 60);
+        }
+    }
+
+    private static int jitter(Random random, double millis) {
+        return (int) Math.round(millis * (0.9 + 0.2 * random.nextDouble()));
+    }
+
+    @Benchmark
+    public void decode() {
+        int[] events = keying;
+        MorseDecoder[] all = decoders;
+        for (int i = 0; i < events.length; i += 2) {
+            for (MorseDecoder decoder : all) {
+                decoder.onLineUp(events[i]);
+                decoder.onLineDown(events[i + 1]);
+            }
+        }
+        for (MorseDecoder decoder : all) {
+            decoder.idle(Integer.MAX_VALUE);
+            decoder.reset();
+        }
+    }
+}
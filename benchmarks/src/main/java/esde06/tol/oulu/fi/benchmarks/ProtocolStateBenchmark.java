@@ -0,0 +1,101 @@
+package esde06.tol.oulu.fi.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import esde06.tol.oulu.fi.EventLogger;
+import esde06.tol.oulu.fi.cwprotocol.CWPClock;
+import esde06.tol.oulu.fi.cwprotocol.CWPJournal;
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation;
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation.CWPState;
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolListener;
+
+// Cost of the protocol state handling for server frames and user taps, run inline on the benchmark thread,
+// with and without the session journal.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolStateBenchmark {
+
+    @Param({"false", "true"})
+    boolean journal;
+
+    private CapturingTransport transport;
+    private CWProtocolImplementation protocol;
+    private File journalDirectory;
+
+    @Setup
+    public void setup(final Blackhole blackhole) throws IOException {
+        transport = new CapturingTransport();
+        protocol = new CWProtocolImplementation(new CWProtocolListener() {
+            @Override
+            public void onEvent(CWPEvent event, int param) {
+                blackhole.consume(param);
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        protocol.setTransport(transport);
+        if (journal) {
+            journalDirectory = Files.createTempDirectory("cwp-journal").toFile();
+            protocol.setJournal(new CWPJournal(journalDirectory, "benchmark", CWPClock.SYSTEM).setMaxSegments(2));
+        }
+        protocol.connect("benchmark", 0, 1);
+        transport.receive(CWPState.Connected, 0);
+        transport.receive(CWPState.LineDown, -1);
+    }
+
+    @TearDown(Level.Iteration)
+    public void clearHistory() {
+        EventLogger.getLoggingSummary();
+    }
+
+    @TearDown
+    public void deleteJournal() {
+        protocol.setJournal(null);
+        if (journalDirectory != null) {
+            for (File segment : CWPJournal.segments(journalDirectory, "benchmark")) {
+                segment.delete();
+            }
+            journalDirectory.delete();
+        }
+    }
+
+    @Benchmark
+    public boolean serverLineUpLineDown() {
+        transport.receive(CWPState.LineUp, 1000);
+        transport.receive(CWPState.LineDown, 120);
+        return protocol.serverSetLineUp();
+    }
+
+    @Benchmark
+    public boolean userTap() {
+        protocol.lineUp();
+        protocol.lineDown();
+        return protocol.lineIsUp();
+    }
+}
@@ -0,0 +1,92 @@
+package esde06.tol.oulu.fi.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import esde06.tol.oulu.fi.cwprotocol.CWPJournal;
+import esde06.tol.oulu.fi.cwprotocol.CWPReplay;
+import esde06.tol.oulu.fi.cwprotocol.CWPTimerWheel;
+import esde06.tol.oulu.fi.cwprotocol.CWPVirtualClock;
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation;
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation.CWPState;
+
+// Replays a journaled session of user taps and server keying as fast as possible. The session is
+// recorded once in setup under a virtual clock, a journal from a real device replays the same way.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplayBenchmark {
+
+    private static final int TAPS = 2000;
+
+    private File directory;
+    private CWPReplay replay;
+
+    @Setup
+    public void record() throws IOException {
+        directory = Files.createTempDirectory("cwp-replay").toFile();
+        CWPVirtualClock clock = new CWPVirtualClock();
+        CWPTimerWheel timers = CWPTimerWheel.driven(clock);
+        CWProtocolImplementation protocol = new CWProtocolImplementation(null, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, clock, timers);
+        CapturingTransport transport = new CapturingTransport();
+        protocol.setTransport(transport);
+        CWPJournal journal = new CWPJournal(directory, "benchmark", clock);
+        protocol.setJournal(journal);
+        protocol.connect("benchmark", 0, 1);
+        transport.receive(CWPState.Connected, 0);
+        transport.receive(CWPState.LineDown, -1);
+        for (int i = 0; i < TAPS; i++) {
+            clock.advance(40, TimeUnit.MILLISECONDS);
+            protocol.lineUp();
+            clock.advance(60, TimeUnit.MILLISECONDS);
+            protocol.lineDown();
+            clock.advance(30, TimeUnit.MILLISECONDS);
+            transport.receive(CWPState.LineUp, 1000 + i);
+            clock.advance(60, TimeUnit.MILLISECONDS);
+            transport.receive(CWPState.LineDown, 60);
+            timers.expire();
+        }
+        journal.close();
+        replay = new CWPReplay(CWPJournal.segments(directory, "benchmark"));
+    }
+
+    @TearDown
+    public void deleteJournal() {
+        for (File segment : CWPJournal.segments(directory, "benchmark")) {
+            segment.delete();
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public CWPReplay.Result replayAsFastAsPossible() {
+        CWPReplay.Result result = replay.run(CWPReplay.AS_FAST_AS_POSSIBLE, null);
+        if (!result.matches()) {
+            throw new IllegalStateException("Replay diverged: " + result);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,133 @@
+package esde06.tol.oulu.fi.benchmarks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import esde06.tol.oulu.fi.EventLogger;
+import esde06.tol.oulu.fi.cwprotocol.CWPEventLoop;
+import esde06.tol.oulu.fi.cwprotocol.CWPLoopbackTransport;
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation;
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolListener;
+
+// Tap to wire and back: lineUp() on the event thread, through the outbound ring and the loopback
+// transport, echoed by the loopback server and decoded into the server state change event.
+// The event thread is either a plain single-thread ExecutorService or the lock-free CWPEventLoop.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TapLatencyBenchmark {
+
+    @Param({"ExecutorService", "CWPEventLoop"})
+    String eventThreadType;
+
+    private final AtomicLong echoes = new AtomicLong();
+    private Executor eventThread;
+    private CWProtocolImplementation protocol;
+    private Runnable lineUp;
+    private Runnable lineDown;
+
+    @Setup
+    public void setup() throws Exception {
+        eventThread = eventThreadType.equals("CWPEventLoop")
+                ? CWPEventLoop.start("CWPProtocol")
+                : Executors.newSingleThreadExecutor();
+        protocol = new CWProtocolImplementation(new CWProtocolListener() {
+            @Override
+            public void onEvent(CWPEvent event, int param) {
+                if (event == CWPEvent.EServerStateChange) {
+                    echoes.incrementAndGet();
+                }
+            }
+        }, eventThread);
+        protocol.setTransport(new CWPLoopbackTransport().setEchoLines(true));
+        lineUp = new Runnable() {
+            @Override
+            public void run() {
+                protocol.lineUp();
+            }
+        };
+        lineDown = new Runnable() {
+            @Override
+            public void run() {
+                protocol.lineDown();
+            }
+        };
+        runOnEventThread(new Runnable() {
+            @Override
+            public void run() {
+                protocol.connect("loopback", 0, 1);
+            }
+        });
+        while (!protocol.isConnected()) {
+            Thread.yield();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        runOnEventThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    protocol.disconnect();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        if (eventThread instanceof CWPEventLoop) {
+            ((CWPEventLoop) eventThread).shutdown();
+        } else {
+            ((ExecutorService) eventThread).shutdown();
+        }
+    }
+
+    private void runOnEventThread(final Runnable task) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        eventThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                task.run();
+                done.countDown();
+            }
+        });
+        done.await();
+    }
+
+    @TearDown(Level.Iteration)
+    public void clearHistory() {
+        EventLogger.getLoggingSummary();
+    }
+
+    @Benchmark
+    public long tapRoundTrip() {
+        long expected = echoes.get() + 1;
+        eventThread.execute(lineUp);
+        while (echoes.get() < expected) {
+            Thread.yield();
+        }
+        eventThread.execute(lineDown);
+        return expected;
+    }
+}
@@ -0,0 +1,107 @@
+package esde06.tol.oulu.fi;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import esde06.tol.oulu.fi.cwprotocol.CWPClock;
+import esde06.tol.oulu.fi.cwprotocol.CWPHistogram;
+import esde06.tol.oulu.fi.cwprotocol.CWPLog;
+
+public class EventLogger {
+
+    private static final String TAG = "CWPLogger";
+    public static final String serverEvent = "ServerEvent";
+    public static final String lineUp = "LineUp";
+    public static final String lineDown = "LineDown";
+    public static final String ready = "Ready";         // connect() to the confirmed frequency
+    public static final String frequencyChange = "FrequencyChange";     // setFrequency() to the confirmed frequency
+
+    private static final long NOT_STARTED = Long.MIN_VALUE;
+    private static final double NANOS_PER_MILLI = 1000000.0;
+    private static volatile CWPClock clock = CWPClock.SYSTEM;
+
+    // One start stamp and one fixed-size histogram of nanosecond durations per event type,
+    // shared by the reader, writer and main threads.
+    private static final class EventTimer {
+        final String event;
+        final AtomicLong startedAt = new AtomicLong(NOT_STARTED);
+        final CWPHistogram durations = new CWPHistogram();
+
+        EventTimer(String event) {
+            this.event = event;
+        }
+    }
+
+    private static final EventTimer[] timers = {
+            new EventTimer(serverEvent),
+            new EventTimer(lineUp),
+            new EventTimer(lineDown),
+            new EventTimer(ready),
+            new EventTimer(frequencyChange)
+    };
+
+    private static EventTimer timer(String event) {
+        for (EventTimer timer : timers) {
+            if (timer.event.equals(event)) {
+                return timer;
+            }
+        }
+        throw new IllegalArgumentException("Unknown event: " + event);
+    }
+
+    public static void setClock(CWPClock newClock) {
+        clock = newClock;
+    }
+
+    public static void logEventStarted(String event) {
+        timer(event).startedAt.set(clock.nanoTime());
+        CWPLog.d(TAG, event);
+    }
+
+    public static void logEventEnded(String event) {
+        EventTimer timer = timer(event);
+        long eventStarted = timer.startedAt.getAndSet(NOT_STARTED);
+        if (eventStarted == NOT_STARTED) {
+            return;
+        }
+        long duration = clock.nanoTime() - eventStarted;
+        timer.durations.record(duration);
+        if (CWPLog.isEnabled()) {
+            CWPLog.d(TAG, event + " duration (ms): " + duration / NANOS_PER_MILLI);
+            logProtocolEventsCount();
+        }
+    }
+
+    // Records a duration the caller measured itself, for events that overlap, such as connects of many clients.
+    public static void logDuration(String event, long nanos) {
+        timer(event).durations.record(nanos);
+    }
+
+    public static CWPHistogram histogram(String event) {
+        return timer(event).durations;
+    }
+
+    public static void getLoggingSummary(){
+        CWPLog.d(TAG, "Profiling Summary for Events");
+        for (EventTimer timer : timers) {
+            computeStatistics(timer);
+        }
+    }
+
+    private static void logProtocolEventsCount(){
+        long eventsCount = 0;
+        for (EventTimer timer : timers) {
+            eventsCount += timer.durations.count();
+        }
+        CWPLog.d(TAG, "Events sent and received count: " + eventsCount);
+    }
+
+    private static void computeStatistics(EventTimer timer){
+        if (timer.durations.count() == 0){
+            return;
+        }
+        // Log event counts and latency percentiles.
+        CWPLog.d(TAG, timer.event + " (ms) " + timer.durations.summary(NANOS_PER_MILLI));
+        timer.durations.reset();  // start a new history
+    }
+
+}
@@ -0,0 +1,7 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+// Receives protocol events a batch at a time: the events of one inbound read or one user command, or of
+// several when the subscriber's executor falls behind. The batch is reused once the call returns.
+public interface CWPBatchListener {
+    void onEvents(CWPEventBatch batch);
+}
@@ -0,0 +1,15 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+// Monotonic nanosecond time source for protocol timing and instrumentation.
+// Wire values are still derived in milliseconds, durations are measured in nanoseconds.
+public interface CWPClock {
+
+    long nanoTime();
+
+    CWPClock SYSTEM = new CWPClock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+}
@@ -1,14 +1,13 @@
 package esde06.tol.oulu.fi.cwprotocol;
 
-import java.util.Observer;
 import java.io.IOException;
 
 public interface CWPControl {
     int DEFAULT_FREQUENCY = -1;
 
-    void addObserver(Observer observer);
+    void addListener(CWProtocolListener listener);
 
-    void deleteObserver(Observer observer);
+    void removeListener(CWProtocolListener listener);
 
     // Connection management
     void connect(String serverAddr, int serverPort, int frequency);
@@ -0,0 +1,38 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import java.util.concurrent.Executor;
+
+// How a CWPEventBus subscriber receives events.
+// Inline runs the listener on the publishing protocol thread, Ordered hands every event in order to an
+// executor such as an audio thread, Coalesced hands events to an executor such as the main looper but
+// drops line events that a later line event in the same batch supersedes.
+public final class CWPDelivery {
+
+    public enum Mode {Inline, Ordered, Coalesced}
+
+    public static final CWPDelivery INLINE = new CWPDelivery(Mode.Inline, null);
+
+    private final Mode mode;
+    private final Executor executor;
+
+    private CWPDelivery(Mode mode, Executor executor) {
+        this.mode = mode;
+        this.executor = executor;
+    }
+
+    public static CWPDelivery ordered(Executor executor) {
+        return new CWPDelivery(Mode.Ordered, executor);
+    }
+
+    public static CWPDelivery coalesced(Executor executor) {
+        return new CWPDelivery(Mode.Coalesced, executor);
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    public Executor executor() {
+        return executor;
+    }
+}
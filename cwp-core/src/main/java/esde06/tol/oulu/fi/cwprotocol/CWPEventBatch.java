@@ -0,0 +1,67 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolListener.CWPEvent;
+
+// Protocol events in publishing order as parallel primitive arrays: the event, its parameter and the
+// clock instant of the input behind it, the receive time for server frames and the tap time for the user.
+// Views that only show the current state render the last line event, audio and decoders walk them all.
+public final class CWPEventBatch {
+
+    private static final CWPEvent[] EVENTS = CWPEvent.values();
+
+    private final int[] events;
+    private final int[] params;
+    private final long[] timestamps;
+    private int size = 0;
+
+    public CWPEventBatch(int capacity) {
+        events = new int[capacity];
+        params = new int[capacity];
+        timestamps = new long[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public CWPEvent event(int index) {
+        return EVENTS[events[index]];
+    }
+
+    public int param(int index) {
+        return params[index];
+    }
+
+    public long timestamp(int index) {
+        return timestamps[index];
+    }
+
+    // Index of the last line event, the one that decides the line state after the batch, or -1.
+    public int lastLineEvent() {
+        for (int i = size - 1; i >= 0; i--) {
+            if (isLineEvent(EVENTS[events[i]])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static boolean isLineEvent(CWPEvent event) {
+        return event == CWPEvent.ELineUp || event == CWPEvent.ELineDown || event == CWPEvent.EServerStateChange;
+    }
+
+    boolean isFull() {
+        return size == events.length;
+    }
+
+    void add(int event, int param, long timestamp) {
+        events[size] = event;
+        params[size] = param;
+        timestamps[size] = timestamp;
+        size++;
+    }
+
+    void clear() {
+        size = 0;
+    }
+}
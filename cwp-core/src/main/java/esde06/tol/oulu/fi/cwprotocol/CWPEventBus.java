@@ -0,0 +1,254 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Fans protocol events out to listeners without allocating or locking per event.
+// Registration copies the subscription array, dispatch walks the current snapshot. Events are published
+// from one protocol thread; subscribers that are not inline get them through their own SPSC ring.
+// Batch listeners get the events published between two endBatch() calls in one callback, and a queued
+// batch listener one executor post per batch.
+public class CWPEventBus implements CWProtocolListener {
+
+    private static final String TAG = "CWPEventBus";
+    private static final Subscription[] NO_SUBSCRIPTIONS = new Subscription[0];
+    private static final BatchSubscription[] NO_BATCH_SUBSCRIPTIONS = new BatchSubscription[0];
+    private static final CWPEvent[] EVENTS = CWPEvent.values();
+    private static final int PENDING_CAPACITY = 1024;
+    private static final int BATCH_CAPACITY = 256;
+
+    private volatile Subscription[] subscriptions = NO_SUBSCRIPTIONS;
+    private volatile BatchSubscription[] batchSubscriptions = NO_BATCH_SUBSCRIPTIONS;
+
+    public void addListener(CWProtocolListener listener) {
+        addListener(listener, CWPDelivery.INLINE);
+    }
+
+    public synchronized void addListener(CWProtocolListener listener, CWPDelivery delivery) {
+        Subscription[] current = subscriptions;
+        for (Subscription registered : current) {
+            if (registered.listener == listener) {
+                return;
+            }
+        }
+        Subscription[] updated = new Subscription[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = new Subscription(listener, delivery);
+        subscriptions = updated;
+    }
+
+    public synchronized void removeListener(CWProtocolListener listener) {
+        Subscription[] current = subscriptions;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].listener == listener) {
+                current[i].active = false;  // events already queued for it are discarded
+                Subscription[] updated = new Subscription[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                subscriptions = updated;
+                return;
+            }
+        }
+    }
+
+    public synchronized void addBatchListener(CWPBatchListener listener, CWPDelivery delivery) {
+        BatchSubscription[] current = batchSubscriptions;
+        for (BatchSubscription registered : current) {
+            if (registered.listener == listener) {
+                return;
+            }
+        }
+        BatchSubscription[] updated = new BatchSubscription[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = new BatchSubscription(listener, delivery);
+        batchSubscriptions = updated;
+    }
+
+    public synchronized void removeBatchListener(CWPBatchListener listener) {
+        BatchSubscription[] current = batchSubscriptions;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].listener == listener) {
+                current[i].active = false;
+                BatchSubscription[] updated = new BatchSubscription[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                batchSubscriptions = updated;
+                return;
+            }
+        }
+    }
+
+    public int listenerCount() {
+        return subscriptions.length + batchSubscriptions.length;
+    }
+
+    @Override
+    public void onEvent(CWPEvent event, int param) {
+        publish(event, param, 0);
+    }
+
+    // protocol thread
+    public void publish(CWPEvent event, int param, long timestamp) {
+        Subscription[] current = subscriptions;
+        for (int i = 0; i < current.length; i++) {
+            current[i].deliver(event, param);
+        }
+        BatchSubscription[] batched = batchSubscriptions;
+        for (int i = 0; i < batched.length; i++) {
+            batched[i].add(event, param, timestamp);
+        }
+    }
+
+    // protocol thread, hands the events published since the previous call to the batch listeners
+    public void endBatch() {
+        BatchSubscription[] batched = batchSubscriptions;
+        for (int i = 0; i < batched.length; i++) {
+            batched[i].end();
+        }
+    }
+
+    private static final class Subscription implements Runnable {
+        final CWProtocolListener listener;
+        final CWPDelivery delivery;
+        final CWPFrameQueue pending;
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+        final long[] batch;
+        volatile boolean active = true;
+
+        Subscription(CWProtocolListener listener, CWPDelivery delivery) {
+            this.listener = listener;
+            this.delivery = delivery;
+            boolean queued = delivery.mode() != CWPDelivery.Mode.Inline;
+            this.pending = queued ? new CWPFrameQueue(PENDING_CAPACITY, CWPFrameQueue.OverflowPolicy.DropNewest) : null;
+            this.batch = delivery.mode() == CWPDelivery.Mode.Coalesced ? new long[PENDING_CAPACITY] : null;
+        }
+
+        // protocol thread
+        void deliver(CWPEvent event, int param) {
+            if (pending == null) {
+                listener.onEvent(event, param);
+                return;
+            }
+            if (!pending.offer(event.ordinal(), param)) {
+                CWPLog.d(TAG, "Subscriber queue is full, dropped " + event);
+            }
+            if (!scheduled.getAndSet(true)) {
+                delivery.executor().execute(this);
+            }
+        }
+
+        // subscriber executor
+        @Override
+        public void run() {
+            scheduled.set(false);
+            long event;
+            if (batch == null) {
+                while ((event = pending.poll()) != CWPFrameQueue.EMPTY) {
+                    if (active) {
+                        listener.onEvent(EVENTS[CWPFrameQueue.tag(event)], CWPFrameQueue.value(event));
+                    }
+                }
+                return;
+            }
+            int count = 0;
+            int lastLineEvent = -1;
+            while (count < batch.length && (event = pending.poll()) != CWPFrameQueue.EMPTY) {
+                if (CWPEventBatch.isLineEvent(EVENTS[CWPFrameQueue.tag(event)])) {
+                    lastLineEvent = count;
+                }
+                batch[count++] = event;
+            }
+            for (int i = 0; i < count && active; i++) {
+                CWPEvent type = EVENTS[CWPFrameQueue.tag(batch[i])];
+                if (i != lastLineEvent && CWPEventBatch.isLineEvent(type)) {
+                    continue;
+                }
+                listener.onEvent(type, CWPFrameQueue.value(batch[i]));
+            }
+        }
+    }
+
+    // An inline batch listener is called on the protocol thread from endBatch(). A queued one gets its
+    // events through a ring of parallel arrays that endBatch() publishes whole, so a callback never sees
+    // part of a batch; events published while its executor is behind arrive together in the next call.
+    private static final class BatchSubscription implements Runnable {
+        final CWPBatchListener listener;
+        final CWPDelivery delivery;
+        final CWPEventBatch batch = new CWPEventBatch(BATCH_CAPACITY);
+        final int[] events;
+        final int[] params;
+        final long[] timestamps;
+        final AtomicLong published = new AtomicLong(0);
+        final AtomicLong consumed = new AtomicLong(0);
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+        long written = 0;  // protocol thread
+        volatile boolean active = true;
+
+        BatchSubscription(CWPBatchListener listener, CWPDelivery delivery) {
+            this.listener = listener;
+            this.delivery = delivery;
+            boolean queued = delivery.mode() != CWPDelivery.Mode.Inline;
+            events = queued ? new int[PENDING_CAPACITY] : null;
+            params = queued ? new int[PENDING_CAPACITY] : null;
+            timestamps = queued ? new long[PENDING_CAPACITY] : null;
+        }
+
+        // protocol thread
+        void add(CWPEvent event, int param, long timestamp) {
+            if (events == null) {
+                if (batch.isFull()) {
+                    end();
+                }
+                batch.add(event.ordinal(), param, timestamp);
+                return;
+            }
+            if (written - consumed.get() == PENDING_CAPACITY) {
+                CWPLog.d(TAG, "Batch subscriber queue is full, dropped " + event);
+                return;
+            }
+            int slot = (int) written & (PENDING_CAPACITY - 1);
+            events[slot] = event.ordinal();
+            params[slot] = param;
+            timestamps[slot] = timestamp;
+            written++;
+        }
+
+        // protocol thread
+        void end() {
+            if (events == null) {
+                if (batch.size() > 0) {
+                    listener.onEvents(batch);
+                    batch.clear();
+                }
+                return;
+            }
+            if (written == published.get()) {
+                return;
+            }
+            published.set(written);
+            if (!scheduled.getAndSet(true)) {
+                delivery.executor().execute(this);
+            }
+        }
+
+        // subscriber executor
+        @Override
+        public void run() {
+            scheduled.set(false);
+            long head = consumed.get();
+            long tail = published.get();
+            while (head < tail) {
+                batch.clear();
+                while (head < tail && !batch.isFull()) {
+                    int slot = (int) head & (PENDING_CAPACITY - 1);
+                    batch.add(events[slot], params[slot], timestamps[slot]);
+                    head++;
+                }
+                consumed.set(head);
+                if (active) {
+                    listener.onEvents(batch);
+                }
+            }
+        }
+    }
+}
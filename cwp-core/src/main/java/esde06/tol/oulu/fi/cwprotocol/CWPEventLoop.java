@@ -0,0 +1,157 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// The single thread that owns protocol state. User commands, inbound frame drains and timer expiries
+// all arrive through one bounded lock-free MPSC ring and run here in arrival order, so no protocol state
+// is ever touched from two threads and no producer ever waits for a lock. Besides plain Runnables the ring
+// carries commands as a handler, an int and a long, so hot paths such as taps post without allocating
+// and carry the instant they were made. The loop parks when the ring is empty and announces it; the first
+// producer to see the announcement takes it back and unparks, the others skip the wake-up syscall.
+public class CWPEventLoop implements Executor {
+
+    public interface CommandHandler {
+        void onCommand(int command, long argument);
+    }
+
+    private static final String TAG = "CWPEventLoop";
+    public static final int DEFAULT_CAPACITY = 4096;  // power of two
+    private static final int BATCH = 64;
+
+    private final int mask;
+    private final AtomicLongArray sequences;   // slot i is free for ticket t when it holds t, full when t + 1
+    private final Runnable[] tasks;
+    private final CommandHandler[] handlers;
+    private final int[] commands;
+    private final long[] arguments;
+    private final AtomicLong tail = new AtomicLong(0);
+    private long head = 0;  // loop thread
+    private final Thread thread;
+    private final AtomicBoolean sleeping = new AtomicBoolean(false);
+    private volatile boolean running = true;
+
+    private CWPEventLoop(String name, int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mask = capacity - 1;
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        tasks = new Runnable[capacity];
+        handlers = new CommandHandler[capacity];
+        commands = new int[capacity];
+        arguments = new long[capacity];
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+        thread.setDaemon(true);
+    }
+
+    public static CWPEventLoop start(String name) {
+        return start(name, DEFAULT_CAPACITY);
+    }
+
+    public static CWPEventLoop start(String name, int capacity) {
+        CWPEventLoop loop = new CWPEventLoop(name, capacity);
+        loop.thread.start();
+        return loop;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        offer(task, null, 0, 0);
+    }
+
+    public void command(CommandHandler handler, int command, long argument) {
+        offer(null, handler, command, argument);
+    }
+
+    // Tasks queued before the shutdown still run.
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    // Approximate when called off the loop thread.
+    public int pending() {
+        return (int) (tail.get() - head);
+    }
+
+    // A full ring means the loop is stalled; producers yield until it frees a slot rather than drop work.
+    private void offer(Runnable task, CommandHandler handler, int command, long argument) {
+        long ticket;
+        while (true) {
+            ticket = tail.get();
+            long available = sequences.get((int) ticket & mask) - ticket;
+            if (available == 0) {
+                if (tail.compareAndSet(ticket, ticket + 1)) {
+                    break;
+                }
+            } else if (available < 0) {
+                Thread.yield();
+            }
+        }
+        int slot = (int) ticket & mask;
+        tasks[slot] = task;
+        handlers[slot] = handler;
+        commands[slot] = command;
+        arguments[slot] = argument;
+        sequences.set(slot, ticket + 1);    // a full volatile write, ordered before the read of sleeping
+        if (sleeping.get() && sleeping.compareAndSet(true, false)) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private boolean hasWork() {
+        return sequences.get((int) head & mask) == head + 1;
+    }
+
+    // loop thread
+    private void loop() {
+        while (running || hasWork()) {
+            int ran = 0;
+            while (ran < BATCH && hasWork()) {
+                runNext();
+                ran++;
+            }
+            if (ran == 0) {
+                sleeping.set(true);
+                if (!hasWork() && running) {
+                    LockSupport.park(this);
+                }
+                sleeping.set(false);
+            }
+        }
+        CWPLog.d(TAG, thread.getName() + " stopped");
+    }
+
+    private void runNext() {
+        int slot = (int) head & mask;
+        Runnable task = tasks[slot];
+        CommandHandler handler = handlers[slot];
+        int command = commands[slot];
+        long argument = arguments[slot];
+        tasks[slot] = null;
+        handlers[slot] = null;
+        sequences.lazySet(slot, head + mask + 1);
+        head++;
+        try {
+            if (task != null) {
+                task.run();
+            } else {
+                handler.onCommand(command, argument);
+            }
+        } catch (RuntimeException e) {
+            CWPLog.d(TAG, "Task failed: " + e);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation.CWPState;
+
+// Decodes server frames in place from one reusable buffer, as many as each read delivers.
+// A positive int (LineUp) is always followed by a short (LineDown), partial frames are kept for the next read.
+// An int of 0 or RESERVED_VALUE is neither a LineUp nor a frequency; it is skipped and logged, and the
+// stream goes on with the next int.
+public class CWPFrameDecoder {
+
+    public interface FrameListener {
+        void onFrame(CWPState state, int value);
+
+        // After the frames of one read, so they can be handed on together.
+        void onReadEnd();
+    }
+
+    private static final String TAG = "CWPFrameDecoder";
+    public static final int RESERVED_VALUE = -2147483648;
+    public static final int DEFAULT_BUFFER_LENGTH = 4096;
+
+    private final ByteBuffer buffer;
+    private boolean expectShort = false;
+
+    public CWPFrameDecoder() {
+        this(DEFAULT_BUFFER_LENGTH);
+    }
+
+    public CWPFrameDecoder(int bufferLength) {
+        buffer = ByteBuffer.allocateDirect(bufferLength).order(ByteOrder.BIG_ENDIAN);
+    }
+
+    // Buffer in fill mode, for callers that read into it themselves before calling decode().
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    // Reads whatever the channel has and decodes it. Returns the number of bytes read, -1 at end of stream.
+    public int readFrom(ReadableByteChannel channel, FrameListener listener) throws IOException {
+        int read = channel.read(buffer);
+        if (read > 0) {
+            decode(listener);
+        }
+        return read;
+    }
+
+    // Decodes every complete frame in the buffer and keeps the trailing partial frame. Returns frames decoded.
+    public int decode(FrameListener listener) {
+        int frames = 0;
+        buffer.flip();
+        while (true) {
+            if (expectShort) {
+                if (buffer.remaining() < 2) {
+                    break;
+                }
+                listener.onFrame(CWPState.LineDown, buffer.getShort());
+                expectShort = false;
+            } else {
+                if (buffer.remaining() < 4) {
+                    break;
+                }
+                int value = buffer.getInt();
+                if (value > 0) {
+                    listener.onFrame(CWPState.LineUp, value);
+                    expectShort = true;
+                } else if (value < 0 && value != RESERVED_VALUE) {
+                    // frequency confirmation
+                    listener.onFrame(CWPState.LineDown, value);
+                } else {
+                    CWPLog.d(TAG, "Skipped int frame " + value);
+                    continue;
+                }
+            }
+            frames++;
+        }
+        buffer.compact();
+        if (frames > 0) {
+            listener.onReadEnd();
+        }
+        return frames;
+    }
+
+    public boolean expectsShort() {
+        return expectShort;
+    }
+
+    public void reset() {
+        buffer.clear();
+        expectShort = false;
+    }
+}
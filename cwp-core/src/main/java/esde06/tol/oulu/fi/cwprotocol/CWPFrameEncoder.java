@@ -0,0 +1,32 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import java.nio.ByteBuffer;
+
+import esde06.tol.oulu.fi.EventLogger;
+
+// Writes queued frames to the wire format: big-endian int for LineUp and frequency, short for LineDown.
+public final class CWPFrameEncoder {
+
+    private CWPFrameEncoder() {
+    }
+
+    // Appends one frame to a big-endian buffer with at least 4 bytes remaining.
+    public static void encode(long frame, ByteBuffer target) {
+        if (CWPFrameQueue.tag(frame) == CWPFrameQueue.INT_FRAME) {
+            target.putInt(CWPFrameQueue.value(frame));
+        } else {
+            target.putShort((short) CWPFrameQueue.value(frame));
+        }
+    }
+
+    // Encodes and closes the send latency measurement started when the frame was queued. Frequency
+    // frames are ints too but negative, and are not timed here.
+    static void encodeAndLog(long frame, ByteBuffer target) {
+        encode(frame, target);
+        if (CWPFrameQueue.tag(frame) == CWPFrameQueue.SHORT_FRAME) {
+            EventLogger.logEventEnded(EventLogger.lineDown);
+        } else if (CWPFrameQueue.value(frame) >= 0) {
+            EventLogger.logEventEnded(EventLogger.lineUp);
+        }
+    }
+}
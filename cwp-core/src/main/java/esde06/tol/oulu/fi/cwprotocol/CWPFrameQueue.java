@@ -0,0 +1,103 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Bounded lock-free ring of frames between exactly one producer thread and one consumer thread.
+// Each slot holds a frame packed into a long: the tag in the upper half, the value in the lower half.
+public class CWPFrameQueue {
+
+    public enum OverflowPolicy {DropNewest, Block}
+
+    public static final int SHORT_FRAME = 2;
+    public static final int INT_FRAME = 4;
+    public static final long EMPTY = -1L;
+
+    private static final long BLOCK_PARK_NANOS = 50000;
+
+    private final long[] frames;
+    private final int mask;
+    private final OverflowPolicy policy;
+
+    private final AtomicLong head = new AtomicLong(0); // next slot to poll, written by the consumer only
+    private final AtomicLong tail = new AtomicLong(0); // next slot to offer, written by the producer only
+    private volatile long droppedFrames = 0;
+    private volatile int highWaterMark = 0;
+
+    public CWPFrameQueue(int capacity, OverflowPolicy policy) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        this.frames = new long[capacity];
+        this.mask = capacity - 1;
+        this.policy = policy;
+    }
+
+    public static long pack(int tag, int value) {
+        return ((long) tag << 32) | (value & 0xFFFFFFFFL);
+    }
+
+    public static int tag(long frame) {
+        return (int) (frame >>> 32);
+    }
+
+    public static int value(long frame) {
+        return (int) frame;
+    }
+
+    // Producer side. Returns false if the frame was dropped because the ring is full.
+    public boolean offer(int tag, int value) {
+        long currentTail = tail.get();
+        while (currentTail - head.get() >= frames.length) {
+            if (policy == OverflowPolicy.DropNewest) {
+                droppedFrames++;
+                return false;
+            }
+            LockSupport.parkNanos(BLOCK_PARK_NANOS);
+        }
+        frames[(int) currentTail & mask] = pack(tag, value);
+        tail.lazySet(currentTail + 1);
+        int depth = (int) (currentTail + 1 - head.get());
+        if (depth > highWaterMark) {
+            highWaterMark = depth;
+        }
+        return true;
+    }
+
+    // Consumer side. Returns EMPTY when there is nothing to poll.
+    public long poll() {
+        long currentHead = head.get();
+        if (currentHead >= tail.get()) {
+            return EMPTY;
+        }
+        long frame = frames[(int) currentHead & mask];
+        head.lazySet(currentHead + 1);
+        return frame;
+    }
+
+    public boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    // Queue depth gauge, safe to read from any thread.
+    public int size() {
+        long depth = tail.get() - head.get();
+        return depth < 0 ? 0 : (int) depth;
+    }
+
+    public int capacity() {
+        return frames.length;
+    }
+
+    public int highWaterMark() {
+        return highWaterMark;
+    }
+
+    public long droppedFrames() {
+        return droppedFrames;
+    }
+
+    public OverflowPolicy overflowPolicy() {
+        return policy;
+    }
+}
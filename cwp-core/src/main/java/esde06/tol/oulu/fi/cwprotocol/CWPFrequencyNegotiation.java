@@ -0,0 +1,102 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+// The frequency request of one protocol instance, owned by the event thread. One request is on the wire at
+// a time: changes made while it waits for the server's echo are held, replace each other, and only the
+// latest goes out once the echo or the timeout comes, so a burst of edits costs at most one extra round
+// trip and a single change exactly one. An unanswered request is sent again a limited number of times.
+public class CWPFrequencyNegotiation {
+
+    public static final int NONE = 0;       // frequencies on the wire are negative
+    public static final int MAX_ATTEMPTS = 3;
+
+    private int inFlight = NONE;
+    private int attempts = 0;               // sends of the request in flight without an echo
+    private boolean changing = false;
+    private long changeRequestedAt = 0;     // clock nanos
+
+    private volatile long sent = 0;
+    private volatile long held = 0;
+    private volatile long retries = 0;
+    private volatile long failures = 0;
+
+    public int inFlight() {
+        return inFlight;
+    }
+
+    boolean canSend() {
+        return inFlight == NONE;
+    }
+
+    boolean mayRetry() {
+        return attempts < MAX_ATTEMPTS;
+    }
+
+    // A change the user asked for, timed until the server confirms the latest one.
+    void requested(long now) {
+        if (!changing) {
+            changing = true;
+            changeRequestedAt = now;
+        }
+    }
+
+    void sent(int frequency) {
+        inFlight = frequency;
+        attempts++;
+        sent++;
+    }
+
+    void held() {
+        held++;
+    }
+
+    // The request in flight got its echo, or the connection it was sent on is gone.
+    void settle() {
+        inFlight = NONE;
+        attempts = 0;
+    }
+
+    // The request in flight is sent again.
+    void expire() {
+        inFlight = NONE;
+        retries++;
+    }
+
+    void failed() {
+        failures++;
+    }
+
+    // Nanos since the change was first requested, or -1 when no change was pending.
+    long confirmed(long now) {
+        if (!changing) {
+            return -1;
+        }
+        changing = false;
+        return now - changeRequestedAt;
+    }
+
+    void cancelChange() {
+        changing = false;
+    }
+
+    public long sentRequests() {
+        return sent;
+    }
+
+    public long heldRequests() {
+        return held;
+    }
+
+    public long retries() {
+        return retries;
+    }
+
+    public long failures() {
+        return failures;
+    }
+
+    @Override
+    public String toString() {
+        return "frequency requests sent: " + sent + " , held: " + held + " , retries: " + retries
+                + " , failures: " + failures;
+    }
+}
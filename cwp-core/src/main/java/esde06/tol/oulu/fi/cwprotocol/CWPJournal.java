@@ -0,0 +1,292 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+// Append-only binary journal of a protocol session: inbound and outbound frames, state transitions,
+// frequency changes, published events and the user commands that caused them, enough to replay it.
+// Segments are memory-mapped files of a fixed size, so a record is a handful of buffer stores and never
+// a system call. A segment starts with a header (magic, version, clock nanos, wall-clock millis) and
+// holds records of one type byte, the nanoseconds since the previous record as a varint and the value as
+// a zigzag varint. The zero-filled tail of a segment marks its end. A new segment is started when the
+// current one is full or older than the roll interval, and only the newest segments are kept.
+// Records are written by the protocol event thread only, the journal does no locking of its own. The file
+// work of a roll, creating and mapping the next segment, renaming it and deleting old ones, runs on a
+// short-lived roller thread ahead of time, so a roll on the event thread only swaps in a mapped spare.
+public class CWPJournal implements CWProtocolListener {
+
+    private static final String TAG = "CWPJournal";
+
+    // Record kinds, the low three bits of the type byte. The rest of the byte is an argument:
+    // the CWPState of inbound and state records, the CWPEvent of event records and the command of
+    // command records.
+    public static final int INBOUND = 1;
+    public static final int OUTBOUND_INT = 2;
+    public static final int OUTBOUND_SHORT = 3;
+    public static final int STATE = 4;
+    public static final int FREQUENCY = 5;
+    public static final int EVENT = 6;
+    public static final int COMMAND = 7;
+    static final int KIND_BITS = 3;
+    static final int KIND_MASK = (1 << KIND_BITS) - 1;
+
+    // Commands, the line ones carry how many nanoseconds after their scheduled instant they ran.
+    public static final int LINE_UP = 0;
+    public static final int LINE_DOWN = 1;
+    public static final int SET_FREQUENCY = 2;
+    public static final int CONNECT = 3;
+    public static final int DISCONNECT = 4;
+
+    static final int MAGIC = 0x4357504A;  // "CWPJ"
+    static final short VERSION = 1;
+    static final int HEADER_BYTES = 4 + 2 + 8 + 8;
+    public static final String SUFFIX = ".cwpj";
+    private static final String SPARE_SUFFIX = ".spare";   // not a segment until it is renamed
+
+    private static final int MAX_RECORD_BYTES = 1 + 10 + 5;
+    private static final int DEFAULT_SEGMENT_BYTES = 1 << 20;
+    private static final long DEFAULT_ROLL_NANOS = TimeUnit.HOURS.toNanos(1);
+    private static final int DEFAULT_MAX_SEGMENTS = 8;
+
+    private final File directory;
+    private final String prefix;
+    private final CWPClock clock;
+    private int segmentBytes = DEFAULT_SEGMENT_BYTES;
+    private long rollNanos = DEFAULT_ROLL_NANOS;
+    private int maxSegments = DEFAULT_MAX_SEGMENTS;
+
+    private MappedByteBuffer buffer;
+    private File segment;
+    private long segmentStart;
+    private long lastStamp;
+    private int sequence = 0;
+    private boolean failed = false;
+
+    // The next segment, mapped by the roller while the current one fills.
+    private static final class Spare {
+        final File file;
+        final MappedByteBuffer buffer;
+
+        Spare(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private volatile Spare spare = null;
+    private volatile Thread roller = null;
+
+    public CWPJournal(File directory, String prefix, CWPClock clock) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.clock = clock;
+    }
+
+    // Size and roll settings apply from the next segment.
+    public CWPJournal setSegmentBytes(int segmentBytes) {
+        this.segmentBytes = Math.max(HEADER_BYTES + MAX_RECORD_BYTES, segmentBytes);
+        return this;
+    }
+
+    public CWPJournal setRollInterval(long interval, TimeUnit unit) {
+        this.rollNanos = unit.toNanos(interval);
+        return this;
+    }
+
+    public CWPJournal setMaxSegments(int maxSegments) {
+        this.maxSegments = Math.max(1, maxSegments);
+        return this;
+    }
+
+    // Segments of a journal in the order they were written.
+    public static File[] segments(File directory, final String prefix) {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().startsWith(prefix + "-") && file.getName().endsWith(SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    public File currentSegment() {
+        return segment;
+    }
+
+    // Inbound frames and commands are stamped with the time the protocol acted on, so a replay under a
+    // virtual clock computes the same wire values.
+    public void recordInbound(CWProtocolImplementation.CWPState state, int value, long nanos) {
+        record(INBOUND | state.ordinal() << KIND_BITS, value, nanos);
+    }
+
+    public void recordOutbound(int frameType, int value) {
+        record(frameType == CWPFrameQueue.SHORT_FRAME ? OUTBOUND_SHORT : OUTBOUND_INT, value);
+    }
+
+    public void recordState(CWProtocolImplementation.CWPState state) {
+        record(STATE | state.ordinal() << KIND_BITS, 0);
+    }
+
+    public void recordFrequency(int frequency) {
+        record(FREQUENCY, frequency);
+    }
+
+    public void recordCommand(int command, int value, long nanos) {
+        record(COMMAND | command << KIND_BITS, value, nanos);
+    }
+
+    @Override
+    public void onEvent(CWPEvent event, int param) {
+        record(EVENT | event.ordinal() << KIND_BITS, param);
+    }
+
+    private void record(int type, int value) {
+        record(type, value, clock.nanoTime());
+    }
+
+    private void record(int type, int value, long now) {
+        if (failed) {
+            return;
+        }
+        if (buffer == null || buffer.remaining() < MAX_RECORD_BYTES || now - segmentStart >= rollNanos) {
+            if (!roll(now)) {
+                return;
+            }
+        }
+        buffer.put((byte) type);
+        putVarLong(now - lastStamp);
+        putVarLong(((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+        lastStamp = now;
+    }
+
+    private void putVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private boolean roll(long now) {
+        buffer = null;  // the kernel writes the old mapping back on its own
+        String name = String.format(Locale.US, "%s-%013d-%04d%s", prefix, System.currentTimeMillis(), sequence++, SUFFIX);
+        File next = new File(directory, name);
+        Spare taken = roller == null ? spare : null;
+        if (taken != null && taken.buffer.capacity() == segmentBytes) {
+            spare = null;
+            buffer = taken.buffer;
+        } else {
+            // the first segment, a roller still busy or a changed size: map this one here
+            taken = null;
+            buffer = map(next, segmentBytes);
+            if (buffer == null) {
+                failed = true;
+                return false;
+            }
+        }
+        segment = next;
+        segmentStart = now;
+        lastStamp = now;
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putLong(now);
+        buffer.putLong(System.currentTimeMillis());
+        CWPLog.d(TAG, "Journal segment " + next);
+        if (roller == null) {
+            startRoller(taken != null ? taken.file : null, next, segmentBytes);
+        }
+        return true;
+    }
+
+    // Renames the spare just taken to its segment name, deletes the oldest segments and maps a new spare.
+    private void startRoller(final File taken, final File name, final int bytes) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // the mapping stays valid across the rename
+                if (taken != null && !taken.renameTo(name)) {
+                    CWPLog.d(TAG, "Could not rename " + taken + " to " + name);
+                }
+                deleteOldSegments();
+                File file = new File(directory, prefix + SPARE_SUFFIX);
+                MappedByteBuffer mapped = map(file, bytes);
+                if (mapped != null) {
+                    spare = new Spare(file, mapped);
+                }
+                roller = null;
+            }
+        }, "CWPJournalRoller");
+        thread.setDaemon(true);
+        roller = thread;
+        thread.start();
+    }
+
+    private void deleteOldSegments() {
+        File[] segments = segments(directory, prefix);
+        for (int i = 0; i < segments.length - maxSegments; i++) {
+            if (!segments[i].delete()) {
+                CWPLog.d(TAG, "Could not delete old segment " + segments[i]);
+            }
+        }
+    }
+
+    // A zero-filled mapping of a new file, or null if it can not be made.
+    private MappedByteBuffer map(File file, int bytes) {
+        RandomAccessFile raf = null;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Can not create " + directory);
+            }
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+            // The mapping stays valid after the file is closed, so no descriptor is held.
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // Forces the current segment out and waits for the roller, so the segments on disk are complete;
+    // the next record starts a new one.
+    public void close() {
+        if (buffer != null) {
+            buffer.force();
+            buffer = null;
+        }
+        Thread pending = roller;
+        if (pending != null) {
+            try {
+                pending.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Spare unused = spare;
+        spare = null;
+        if (unused != null && !unused.file.delete()) {
+            CWPLog.d(TAG, "Could not delete " + unused.file);
+        }
+        // rolls made while the roller was busy left their old segments
+        deleteOldSegments();
+    }
+}
@@ -0,0 +1,117 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Reads the records of one CWPJournal segment in order, without allocating per record.
+// next() moves to the following record and the accessors describe the current one.
+public class CWPJournalReader {
+
+    private static final CWProtocolImplementation.CWPState[] STATES = CWProtocolImplementation.CWPState.values();
+    private static final CWProtocolListener.CWPEvent[] EVENTS = CWProtocolListener.CWPEvent.values();
+
+    private final ByteBuffer buffer;
+    private final long startNanos;
+    private final long wallClockMillis;
+    private long timeNanos;
+    private int kind;
+    private int argument;
+    private int value;
+
+    public CWPJournalReader(File segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment, "r");
+        try {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+            file.close();
+        }
+        if (buffer.remaining() < CWPJournal.HEADER_BYTES || buffer.getInt() != CWPJournal.MAGIC) {
+            throw new IOException("Not a CWP journal: " + segment);
+        }
+        short version = buffer.getShort();
+        if (version != CWPJournal.VERSION) {
+            throw new IOException("Unsupported journal version " + version + ": " + segment);
+        }
+        startNanos = buffer.getLong();
+        wallClockMillis = buffer.getLong();
+        timeNanos = startNanos;
+    }
+
+    // False at the end of the segment, and at a record cut short by a file that was truncated.
+    public boolean next() {
+        if (!buffer.hasRemaining()) {
+            return false;
+        }
+        int type = buffer.get() & 0xFF;
+        if (type == 0) {
+            return false;
+        }
+        long delta;
+        long zigzag;
+        try {
+            delta = getVarLong();
+            zigzag = getVarLong();
+        } catch (BufferUnderflowException e) {
+            buffer.position(buffer.limit());
+            return false;
+        }
+        kind = type & CWPJournal.KIND_MASK;
+        argument = type >>> CWPJournal.KIND_BITS;
+        timeNanos += delta;
+        value = (int) (zigzag >>> 1) ^ -(int) (zigzag & 1);
+        return true;
+    }
+
+    private long getVarLong() {
+        long result = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            result |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return result;
+    }
+
+    // Clock nanos and wall-clock millis when the segment was started.
+    public long startNanos() {
+        return startNanos;
+    }
+
+    public long wallClockMillis() {
+        return wallClockMillis;
+    }
+
+    // Clock nanos of the current record.
+    public long timeNanos() {
+        return timeNanos;
+    }
+
+    public int kind() {
+        return kind;
+    }
+
+    public int value() {
+        return value;
+    }
+
+    // For COMMAND records.
+    public int command() {
+        return argument;
+    }
+
+    // For INBOUND and STATE records.
+    public CWProtocolImplementation.CWPState state() {
+        return STATES[argument];
+    }
+
+    // For EVENT records.
+    public CWProtocolListener.CWPEvent event() {
+        return EVENTS[argument];
+    }
+}
@@ -0,0 +1,11 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+// Raw key timing as carried on the wire, for consumers such as a Morse decoder.
+// Line up comes with its offset since connect, line down with how long the line was up, both in
+// milliseconds. Called on the protocol thread, so implementations must not block.
+public interface CWPKeyListener {
+
+    void onLineUp(int offsetMillis);
+
+    void onLineDown(int durationMillis);
+}
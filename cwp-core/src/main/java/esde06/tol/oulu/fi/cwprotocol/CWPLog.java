@@ -0,0 +1,30 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+// Logging facade for the protocol code. It is silent until the platform installs a sink,
+// the Android app routes it to android.util.Log.
+public final class CWPLog {
+
+    public interface Sink {
+        void log(String tag, String message);
+    }
+
+    private static volatile Sink sink = null;
+
+    private CWPLog() {
+    }
+
+    public static void setSink(Sink newSink) {
+        sink = newSink;
+    }
+
+    public static boolean isEnabled() {
+        return sink != null;
+    }
+
+    public static void d(String tag, String message) {
+        Sink current = sink;
+        if (current != null) {
+            current.log(tag, message);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.locks.LockSupport;
+
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation.CWPState;
+
+// In-memory transport that plays the server side itself, for tests and benchmarks without a network.
+// Like the real server it announces the default frequency after connecting and confirms frequency frames
+// by echoing them back. Line frames can be echoed as if another client keyed them, and raw server bytes
+// can be injected. Server to client bytes are delayed by a fixed latency and handed to the decoder in
+// fragments of at most fragmentSize bytes.
+public class CWPLoopbackTransport implements CWPTransport {
+
+    private static final int WIRE_LENGTH = 16384;
+
+    private final CWPWriteStats writeStats = new CWPWriteStats();
+    private volatile long latencyNanos = 0;
+    private volatile int fragmentSize = Integer.MAX_VALUE;
+    private volatile boolean echoLines = false;
+    private Pipe pipe = null;
+
+    public CWPLoopbackTransport setLatencyMicros(long latencyMicros) {
+        this.latencyNanos = latencyMicros * 1000;
+        return this;
+    }
+
+    public CWPLoopbackTransport setFragmentSize(int fragmentSize) {
+        if (fragmentSize < 1) {
+            throw new IllegalArgumentException("Fragment size must be positive: " + fragmentSize);
+        }
+        this.fragmentSize = fragmentSize;
+        return this;
+    }
+
+    public CWPLoopbackTransport setEchoLines(boolean echoLines) {
+        this.echoLines = echoLines;
+        return this;
+    }
+
+    @Override
+    public void open(String serverAddress, int serverPort, CWPFrameQueue outbound, CWPFrameDecoder.FrameListener listener) {
+        writeStats.reset();
+        pipe = new Pipe(outbound, listener);
+        pipe.start();
+    }
+
+    @Override
+    public void flush() {
+        if (pipe != null) {
+            LockSupport.unpark(pipe);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (pipe != null) {
+            pipe.running = false;
+            LockSupport.unpark(pipe);
+            pipe = null;
+        }
+    }
+
+    @Override
+    public CWPWriteStats writeStats() {
+        return writeStats;
+    }
+
+    // Queues raw server bytes for delivery, callable from any thread.
+    public void inject(byte[] bytes) {
+        Pipe current = pipe;
+        if (current == null) {
+            return;
+        }
+        synchronized (current.injected) {
+            current.injected.put(bytes);
+        }
+        LockSupport.unpark(current);
+    }
+
+    public void injectLineUp(int timeOffset) {
+        inject(ByteBuffer.allocate(4).putInt(timeOffset).array());
+    }
+
+    public void injectLineDown(short duration) {
+        inject(ByteBuffer.allocate(2).putShort(duration).array());
+    }
+
+    private class Pipe extends Thread {
+        private final CWPFrameQueue outbound;
+        private final CWPFrameDecoder.FrameListener listener;
+        private final CWPFrameDecoder decoder = new CWPFrameDecoder();
+        private final ByteBuffer wire = ByteBuffer.allocate(WIRE_LENGTH).order(ByteOrder.BIG_ENDIAN);
+        private final ByteBuffer injected = ByteBuffer.allocate(WIRE_LENGTH).order(ByteOrder.BIG_ENDIAN);
+        private volatile boolean running = true;
+
+        Pipe(CWPFrameQueue outbound, CWPFrameDecoder.FrameListener listener) {
+            super("CWPLoopback");
+            setDaemon(true);
+            this.outbound = outbound;
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            listener.onFrame(CWPState.Connected, 0);
+            wire.putInt(CWPControl.DEFAULT_FREQUENCY);
+            while (running) {
+                serve();
+                if (wire.position() == 0) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                if (latencyNanos > 0) {
+                    LockSupport.parkNanos(latencyNanos);
+                }
+                deliver();
+            }
+            listener.onFrame(CWPState.Disconnected, 0);
+        }
+
+        // Server side: consume client frames and queue the replies.
+        private void serve() {
+            long frame;
+            int frames = 0;
+            while (wire.remaining() >= 4 && (frame = outbound.poll()) != CWPFrameQueue.EMPTY) {
+                frames++;
+                int value = CWPFrameQueue.value(frame);
+                if (CWPFrameQueue.tag(frame) == CWPFrameQueue.SHORT_FRAME) {
+                    if (echoLines) {
+                        wire.putShort((short) value);
+                    }
+                } else if (value < 0 || echoLines) {
+                    wire.putInt(value);
+                }
+            }
+            if (frames > 0) {
+                writeStats.recordWrite(frames);
+            }
+            synchronized (injected) {
+                injected.flip();
+                while (injected.hasRemaining() && wire.hasRemaining()) {
+                    wire.put(injected.get());
+                }
+                injected.compact();
+            }
+        }
+
+        private void deliver() {
+            wire.flip();
+            ByteBuffer target = decoder.buffer();
+            while (wire.hasRemaining()) {
+                int chunk = Math.min(Math.min(fragmentSize, wire.remaining()), target.remaining());
+                for (int i = 0; i < chunk; i++) {
+                    target.put(wire.get());
+                }
+                decoder.decode(listener);
+            }
+            wire.clear();
+        }
+    }
+}
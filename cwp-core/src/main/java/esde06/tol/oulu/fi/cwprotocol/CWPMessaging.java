@@ -1,12 +1,15 @@
 package esde06.tol.oulu.fi.cwprotocol;
 
-import java.util.Observer;
 import java.io.IOException;
 
 public interface CWPMessaging {
-    void addObserver(Observer observer);
+    void addListener(CWProtocolListener listener);
 
-    void deleteObserver(Observer observer);
+    void removeListener(CWProtocolListener listener);
+
+    void addBatchListener(CWPBatchListener listener);
+
+    void removeBatchListener(CWPBatchListener listener);
 
     void lineUp();
 
@@ -0,0 +1,184 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation.CWPState;
+
+// Non-blocking CWP connection driven entirely by a CWPSelectorLoop thread.
+class CWPNioConnection {
+
+    private static final String TAG = "CWPNioConnection";
+    private static final int BUFFER_LENGTH = 4096;
+
+    private final CWPSelectorLoop loop;
+    private final String serverAddress;
+    private final int serverPort;
+    private final CWPFrameQueue outbound;
+    private final CWPFrameDecoder.FrameListener listener;
+    private final CWPWriteStats writeStats;
+
+    private final CWPFrameDecoder decoder = new CWPFrameDecoder(BUFFER_LENGTH);
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_LENGTH).order(ByteOrder.BIG_ENDIAN);
+    private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+    private volatile boolean closeRequested = false;
+    private volatile boolean writePending = false;  // bytes wait for OP_WRITE, published by the loop thread
+
+    // loop thread state
+    private SocketChannel channel = null;
+    private SelectionKey key = null;
+    private boolean connected = false;
+    private boolean closed = false;
+
+    CWPNioConnection(CWPSelectorLoop loop, String serverAddress, int serverPort,
+                     CWPFrameQueue outbound, CWPFrameDecoder.FrameListener listener, CWPWriteStats writeStats) {
+        this.loop = loop;
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+        this.outbound = outbound;
+        this.listener = listener;
+        this.writeStats = writeStats;
+    }
+
+    // Called from any thread.
+    void start() {
+        loop.register(this);
+    }
+
+    void requestFlush() {
+        if (!flushRequested.getAndSet(true)) {
+            loop.wakeup();
+        }
+    }
+
+    void requestClose() {
+        closeRequested = true;
+        loop.wakeup();
+    }
+
+    boolean isWritePending() {
+        return writePending;
+    }
+
+    // Everything below runs on the loop thread.
+    boolean isClosed() {
+        return closed;
+    }
+
+    void open(Selector selector) {
+        try {
+            InetSocketAddress address = new InetSocketAddress(serverAddress, serverPort);
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            if (channel.connect(address)) {
+                key = channel.register(selector, SelectionKey.OP_READ, this);
+                onConnected();
+            } else {
+                key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            }
+        } catch (IOException e) {
+            CWPLog.d(TAG, "Connect failed: " + e.getMessage());
+            close();
+        }
+    }
+
+    void finishConnect() {
+        try {
+            if (channel.finishConnect()) {
+                key.interestOps(SelectionKey.OP_READ);
+                onConnected();
+            }
+        } catch (IOException e) {
+            CWPLog.d(TAG, "Connect failed: " + e.getMessage());
+            close();
+        }
+    }
+
+    // The frequency queued by connect() goes out in this selector pass, before Connected reaches the
+    // event thread.
+    private void onConnected() {
+        connected = true;
+        flush();
+        listener.onFrame(CWPState.Connected, 0);
+    }
+
+    void read() {
+        try {
+            if (decoder.readFrom(channel, listener) == -1) {
+                throw new IOException("Read -1 from server");
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    void service() {
+        if (closeRequested) {
+            close();
+            return;
+        }
+        if (flushRequested.getAndSet(false)) {
+            flush();
+        }
+    }
+
+    void flush() {
+        if (!connected || closed) {
+            return;
+        }
+        try {
+            do {
+                long frame;
+                int frames = 0;
+                while (writeBuffer.remaining() >= 4 && (frame = outbound.poll()) != CWPFrameQueue.EMPTY) {
+                    frames++;
+                    CWPFrameEncoder.encodeAndLog(frame, writeBuffer);
+                }
+                if (writeBuffer.position() == 0) {
+                    break;
+                }
+                writeBuffer.flip();
+                channel.write(writeBuffer);
+                writeBuffer.compact();
+                writeStats.recordWrite(frames);
+            } while (writeBuffer.position() == 0 && !outbound.isEmpty());
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        // wait for the socket to drain if the kernel did not take everything
+        writePending = writeBuffer.position() > 0;
+        int interest = writePending
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                : SelectionKey.OP_READ;
+        if (key.interestOps() != interest) {
+            key.interestOps(interest);
+        }
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        connected = false;
+        if (key != null) {
+            key.cancel();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        listener.onFrame(CWPState.Disconnected, 0);
+    }
+}
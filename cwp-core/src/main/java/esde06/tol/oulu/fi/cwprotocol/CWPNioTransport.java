@@ -0,0 +1,44 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+// Non-blocking SocketChannel transport, every connection is served by one shared CWPSelectorLoop thread.
+public class CWPNioTransport implements CWPTransport {
+
+    private final CWPSelectorLoop loop;
+    private final CWPWriteStats writeStats = new CWPWriteStats();
+    private CWPNioConnection connection = null;
+
+    public CWPNioTransport() {
+        this(CWPSelectorLoop.shared());
+    }
+
+    public CWPNioTransport(CWPSelectorLoop loop) {
+        this.loop = loop;
+    }
+
+    @Override
+    public void open(String serverAddress, int serverPort, CWPFrameQueue outbound, CWPFrameDecoder.FrameListener listener) {
+        writeStats.reset();
+        connection = new CWPNioConnection(loop, serverAddress, serverPort, outbound, listener, writeStats);
+        connection.start();
+    }
+
+    @Override
+    public void flush() {
+        if (connection != null) {
+            connection.requestFlush();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (connection != null) {
+            connection.requestClose();
+            connection = null;
+        }
+    }
+
+    @Override
+    public CWPWriteStats writeStats() {
+        return writeStats;
+    }
+}
@@ -0,0 +1,277 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+
+// Replays journaled sessions through a fresh CWProtocolImplementation and checks that it publishes the
+// same events and sends the same frames as the recording.
+// Recorded user commands are issued again and recorded inbound frames are handed in through a stand-in
+// transport. The protocol runs on the replay thread with a virtual clock and a driven timer wheel, so
+// it sees exactly the recorded timing whatever the pace. The pace is the recorded speed times a factor,
+// or as fast as possible with AS_FAST_AS_POSSIBLE. The journal must start at or before a connect.
+public class CWPReplay {
+
+    private static final String TAG = "CWPReplay";
+    public static final double AS_FAST_AS_POSSIBLE = Double.POSITIVE_INFINITY;
+    private static final long TIMER_STEP_NANOS = CWPTimerWheel.TICK_NANOS;
+    private static final CWProtocolImplementation.CWPState[] STATES = CWProtocolImplementation.CWPState.values();
+
+    // Outcome of one replay. A mismatch index is -1 when the sequences agree.
+    public static final class Result {
+        public final int records;
+        public final int expectedEvents;
+        public final int emittedEvents;
+        public final int firstEventMismatch;
+        public final int expectedFrames;
+        public final int sentFrames;
+        public final int firstFrameMismatch;
+        public final long elapsedNanos;
+
+        Result(int records, int expectedEvents, int emittedEvents, int firstEventMismatch,
+               int expectedFrames, int sentFrames, int firstFrameMismatch, long elapsedNanos) {
+            this.records = records;
+            this.expectedEvents = expectedEvents;
+            this.emittedEvents = emittedEvents;
+            this.firstEventMismatch = firstEventMismatch;
+            this.expectedFrames = expectedFrames;
+            this.sentFrames = sentFrames;
+            this.firstFrameMismatch = firstFrameMismatch;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public boolean matches() {
+            return firstEventMismatch < 0 && firstFrameMismatch < 0;
+        }
+
+        @Override
+        public String toString() {
+            return "records: " + records
+                    + " , events: " + emittedEvents + "/" + expectedEvents
+                    + " , first event mismatch: " + firstEventMismatch
+                    + " , frames: " + sentFrames + "/" + expectedFrames
+                    + " , first frame mismatch: " + firstFrameMismatch
+                    + " , elapsed (ms): " + elapsedNanos / 1000000.0;
+        }
+    }
+
+    // The recording flattened into arrays, read once and replayable any number of times.
+    private int count = 0;
+    private long[] times = new long[1024];
+    private int[] kinds = new int[1024];
+    private int[] arguments = new int[1024];
+    private int[] values = new int[1024];
+    private long[] expectedEvents;
+    private long[] expectedFrames;
+
+    public CWPReplay(File... segments) throws IOException {
+        int events = 0;
+        int frames = 0;
+        for (File segment : segments) {
+            CWPJournalReader reader = new CWPJournalReader(segment);
+            while (reader.next()) {
+                add(reader);
+                if (reader.kind() == CWPJournal.EVENT) {
+                    events++;
+                } else if (reader.kind() == CWPJournal.OUTBOUND_INT || reader.kind() == CWPJournal.OUTBOUND_SHORT) {
+                    frames++;
+                }
+            }
+        }
+        expectedEvents = new long[events];
+        expectedFrames = new long[frames];
+        events = 0;
+        frames = 0;
+        for (int i = 0; i < count; i++) {
+            if (kinds[i] == CWPJournal.EVENT) {
+                expectedEvents[events++] = CWPFrameQueue.pack(arguments[i], values[i]);
+            } else if (kinds[i] == CWPJournal.OUTBOUND_INT) {
+                expectedFrames[frames++] = CWPFrameQueue.pack(CWPFrameQueue.INT_FRAME, values[i]);
+            } else if (kinds[i] == CWPJournal.OUTBOUND_SHORT) {
+                expectedFrames[frames++] = CWPFrameQueue.pack(CWPFrameQueue.SHORT_FRAME, values[i]);
+            }
+        }
+    }
+
+    private void add(CWPJournalReader reader) {
+        if (count == times.length) {
+            times = Arrays.copyOf(times, count * 2);
+            kinds = Arrays.copyOf(kinds, count * 2);
+            arguments = Arrays.copyOf(arguments, count * 2);
+            values = Arrays.copyOf(values, count * 2);
+        }
+        times[count] = reader.timeNanos();
+        kinds[count] = reader.kind();
+        arguments[count] = reader.kind() == CWPJournal.INBOUND || reader.kind() == CWPJournal.STATE
+                ? reader.state().ordinal()
+                : reader.kind() == CWPJournal.EVENT ? reader.event().ordinal()
+                : reader.kind() == CWPJournal.COMMAND ? reader.command() : 0;
+        values[count] = reader.value();
+        count++;
+    }
+
+    public int records() {
+        return count;
+    }
+
+    // Replays at speed times the recorded pace; listener, if not null, also gets every event.
+    public Result run(double speed, final CWProtocolListener listener) {
+        final CWPVirtualClock clock = new CWPVirtualClock();
+        final CWPTimerWheel timers = CWPTimerWheel.driven(clock);
+        final ReplayTransport transport = new ReplayTransport(expectedFrames);
+        final EventCheck events = new EventCheck(expectedEvents, listener);
+        Executor inline = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        CWProtocolImplementation protocol = new CWProtocolImplementation(events, inline, clock, timers);
+        protocol.setTransport(transport);
+
+        long started = System.nanoTime();
+        long firstTime = count > 0 ? times[0] : 0;
+        long virtualStart = clock.nanoTime();
+        for (int i = 0; i < count; i++) {
+            long target = virtualStart + (times[i] - firstTime);
+            // Step through timer deadlines on the way, the wheel fires within a tick as it would live,
+            // and what the timers send goes out at its own pace rather than with the next record.
+            while (timers.pendingCount() > 0 && clock.nanoTime() < target) {
+                clock.advanceNanos(Math.min(TIMER_STEP_NANOS, target - clock.nanoTime()));
+                pace(started, clock.nanoTime() - virtualStart, speed);
+                timers.expire();
+            }
+            clock.advanceNanos(target - clock.nanoTime());
+            pace(started, clock.nanoTime() - virtualStart, speed);
+            timers.expire();
+            apply(protocol, transport, i);
+        }
+        Result result = new Result(count, expectedEvents.length, events.emitted, events.firstMismatch,
+                expectedFrames.length, transport.sent, transport.firstMismatch, System.nanoTime() - started);
+        CWPLog.d(TAG, "Replay " + result);
+        return result;
+    }
+
+    private static void pace(long started, long recordedNanos, double speed) {
+        if (speed != AS_FAST_AS_POSSIBLE) {
+            waitUntil(started + (long) (recordedNanos / speed));
+        }
+    }
+
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private void apply(CWProtocolImplementation protocol, ReplayTransport transport, int i) {
+        if (kinds[i] == CWPJournal.INBOUND) {
+            transport.receive(STATES[arguments[i]], values[i]);
+            return;
+        }
+        if (kinds[i] != CWPJournal.COMMAND) {
+            return;  // consequences, checked rather than replayed
+        }
+        long now = protocol.clock().nanoTime();
+        switch (arguments[i]) {
+            case CWPJournal.LINE_UP:
+                protocol.lineUpAt(now - values[i]);
+                break;
+            case CWPJournal.LINE_DOWN:
+                protocol.lineDownAt(now - values[i]);
+                break;
+            case CWPJournal.SET_FREQUENCY:
+                protocol.setFrequency(values[i]);
+                break;
+            case CWPJournal.CONNECT:
+                protocol.connect("replay", 0, values[i]);
+                break;
+            case CWPJournal.DISCONNECT:
+                try {
+                    protocol.disconnect();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                break;
+        }
+    }
+
+    // Compares published events with the recorded ones as they come.
+    private static final class EventCheck implements CWProtocolListener {
+        private final long[] expected;
+        private final CWProtocolListener listener;
+        int emitted = 0;
+        int firstMismatch = -1;
+
+        EventCheck(long[] expected, CWProtocolListener listener) {
+            this.expected = expected;
+            this.listener = listener;
+        }
+
+        @Override
+        public void onEvent(CWPEvent event, int param) {
+            if (firstMismatch < 0 && (emitted >= expected.length
+                    || expected[emitted] != CWPFrameQueue.pack(event.ordinal(), param))) {
+                firstMismatch = emitted;
+            }
+            emitted++;
+            if (listener != null) {
+                listener.onEvent(event, param);
+            }
+        }
+    }
+
+    // Stands in for the server: frames are handed in by the replay, sent frames are compared with the
+    // recorded ones. Disconnected comes from the recording, as the live transport would report it.
+    private static final class ReplayTransport implements CWPTransport {
+        private final long[] expected;
+        private final CWPWriteStats stats = new CWPWriteStats();
+        private CWPFrameQueue outbound;
+        private CWPFrameDecoder.FrameListener listener;
+        int sent = 0;
+        int firstMismatch = -1;
+
+        ReplayTransport(long[] expected) {
+            this.expected = expected;
+        }
+
+        void receive(CWProtocolImplementation.CWPState state, int value) {
+            if (listener != null) {
+                listener.onFrame(state, value);
+                listener.onReadEnd();
+            }
+        }
+
+        @Override
+        public void open(String serverAddress, int serverPort, CWPFrameQueue outbound,
+                         CWPFrameDecoder.FrameListener listener) {
+            this.outbound = outbound;
+            this.listener = listener;
+        }
+
+        @Override
+        public void flush() {
+            long frame;
+            while (outbound != null && (frame = outbound.poll()) != CWPFrameQueue.EMPTY) {
+                if (firstMismatch < 0 && (sent >= expected.length || expected[sent] != frame)) {
+                    firstMismatch = sent;
+                }
+                sent++;
+                stats.recordWrite(1);
+            }
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
+
+        @Override
+        public CWPWriteStats writeStats() {
+            return stats;
+        }
+    }
+}
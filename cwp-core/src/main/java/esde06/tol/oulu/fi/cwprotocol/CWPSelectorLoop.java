@@ -0,0 +1,124 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Single thread that connects, reads, decodes and writes any number of non-blocking CWP connections.
+public class CWPSelectorLoop implements Runnable {
+
+    private static final String TAG = "CWPSelectorLoop";
+    private static CWPSelectorLoop sharedLoop = null;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<CWPNioConnection> registrations = new ConcurrentLinkedQueue<>();
+    private final ArrayList<CWPNioConnection> connections = new ArrayList<>(); // owned by the loop thread
+    private volatile int connectionCount = 0;   // published by the loop thread after each pass
+    private volatile boolean running = false;
+
+    public CWPSelectorLoop() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, TAG);
+        thread.setDaemon(true);
+    }
+
+    // Loop shared by every protocol instance that does not bring its own.
+    public static synchronized CWPSelectorLoop shared() {
+        if (sharedLoop == null) {
+            try {
+                sharedLoop = new CWPSelectorLoop();
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to open selector", e);
+            }
+            sharedLoop.start();
+        }
+        return sharedLoop;
+    }
+
+    public void start() {
+        CWPLog.d(TAG, "Selector loop started");
+        running = true;
+        thread.start();
+    }
+
+    public void shutdown() {
+        CWPLog.d(TAG, "Selector loop stopped");
+        running = false;
+        selector.wakeup();
+    }
+
+    // As of the loop's last pass.
+    public int connectionCount() {
+        return connectionCount;
+    }
+
+    void register(CWPNioConnection connection) {
+        registrations.add(connection);
+        selector.wakeup();
+    }
+
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                CWPLog.d(TAG, "Select failed: " + e.getMessage());
+                break;
+            }
+
+            CWPNioConnection registered;
+            while ((registered = registrations.poll()) != null) {
+                connections.add(registered);
+                registered.open(selector);
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                CWPNioConnection connection = (CWPNioConnection) key.attachment();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isConnectable()) {
+                    connection.finishConnect();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    connection.read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.flush();
+                }
+            }
+
+            // pick up flush and close requests made from other threads
+            for (int i = connections.size() - 1; i >= 0; i--) {
+                CWPNioConnection connection = connections.get(i);
+                connection.service();
+                if (connection.isClosed()) {
+                    connections.remove(i);
+                }
+            }
+            connectionCount = connections.size();
+        }
+        for (int i = 0; i < connections.size(); i++) {
+            connections.get(i).close();
+        }
+        connections.clear();
+        connectionCount = 0;
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
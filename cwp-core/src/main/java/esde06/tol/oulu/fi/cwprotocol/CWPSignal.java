@@ -0,0 +1,27 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+// Reopenable gate a thread can block on, the plain JVM counterpart of android.os.ConditionVariable.
+final class CWPSignal {
+
+    private boolean opened = false;
+
+    synchronized void open() {
+        opened = true;
+        notifyAll();
+    }
+
+    synchronized void close() {
+        opened = false;
+    }
+
+    synchronized void block() {
+        while (!opened) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
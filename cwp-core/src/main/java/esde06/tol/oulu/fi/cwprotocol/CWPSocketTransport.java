@@ -0,0 +1,226 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.locks.LockSupport;
+
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation.CWPState;
+
+// Blocking java.net.Socket transport with one reader and one writer thread per connection.
+public class CWPSocketTransport implements CWPTransport {
+
+    // PerFrame writes and flushes every frame on its own, Coalesced drains all pending frames into one write.
+    public enum WriteMode {PerFrame, Coalesced}
+
+    private static final String TAG = "CWPSocketTransport";
+
+    private final WriteMode writeMode;
+    private final long batchWindowNanos;
+    private final CWPWriteStats writeStats = new CWPWriteStats();
+    private Connection connection = null;
+
+    public CWPSocketTransport() {
+        this(WriteMode.Coalesced, 0);
+    }
+
+    // A batch window delays each coalesced write so that frames generated
+    // programmatically within the window share one syscall.
+    public CWPSocketTransport(WriteMode writeMode, long batchWindowMicros) {
+        this.writeMode = writeMode;
+        this.batchWindowNanos = batchWindowMicros * 1000;
+    }
+
+    @Override
+    public void open(String serverAddress, int serverPort, CWPFrameQueue outbound, CWPFrameDecoder.FrameListener listener) {
+        writeStats.reset();
+        connection = new Connection(serverAddress, serverPort, outbound, listener);
+        connection.start();
+    }
+
+    @Override
+    public void flush() {
+        if (connection != null) {
+            connection.writerHandle.open();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (connection != null) {
+            connection.stop();
+            connection = null;
+        }
+    }
+
+    @Override
+    public CWPWriteStats writeStats() {
+        return writeStats;
+    }
+
+    private class Connection {
+        private final String serverAddress;
+        private final int serverPort;
+        private final CWPFrameQueue outbound;
+        private final CWPFrameDecoder.FrameListener listener;
+
+        private final Socket cwpSocket = new Socket();
+        private final CWPSignal writerHandle = new CWPSignal();
+        private final CWPConnectionReader reader = new CWPConnectionReader();
+        private final CWPConnectionWriter writer = new CWPConnectionWriter();
+        private volatile boolean running = false;
+        private volatile OutputStream nos = null; //Network Output Stream
+
+        Connection(String serverAddress, int serverPort, CWPFrameQueue outbound, CWPFrameDecoder.FrameListener listener) {
+            this.serverAddress = serverAddress;
+            this.serverPort = serverPort;
+            this.outbound = outbound;
+            this.listener = listener;
+        }
+
+        void start() {
+            running = true;
+            reader.start();
+            writer.start();
+        }
+
+        // Closing the socket unblocks the reader, which then reports Disconnected.
+        void stop() {
+            CWPLog.d(TAG, "Connection stopped");
+            running = false;
+            writerHandle.open();
+            try {
+                cwpSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private class CWPConnectionReader extends Thread {
+
+            private static final String TAG = "CWPReader";
+            private final CWPFrameDecoder decoder = new CWPFrameDecoder();
+
+            private InputStream doInitialize() throws IOException {
+                InetSocketAddress address = new InetSocketAddress(serverAddress, serverPort);
+                if (writeMode == WriteMode.Coalesced) {
+                    cwpSocket.setTcpNoDelay(true);
+                }
+                cwpSocket.connect(address);
+                OutputStream stream = cwpSocket.getOutputStream();
+                writer.sendQueued(stream);  // the frequency queued by connect() leaves right behind the handshake
+                nos = stream;
+                listener.onFrame(CWPState.Connected, 0);
+                writerHandle.open();    // frames queued meanwhile
+                return cwpSocket.getInputStream();
+            }
+
+            @Override
+            public void run() {
+                CWPLog.d(TAG, "Reading Started");
+                try {
+                    // read whatever has arrived and decode every complete frame in it
+                    ReadableByteChannel channel = Channels.newChannel(doInitialize());
+                    while (running) {
+                        if (decoder.readFrom(channel, listener) == -1) {
+                            throw new IOException("Read -1 from server");
+                        }
+                    }
+                } catch (IOException e) {
+                    CWPLog.d(TAG, "Reading Stopped: " + e.getMessage());
+                }
+                running = false;
+                writerHandle.open();
+                try {
+                    cwpSocket.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                listener.onFrame(CWPState.Disconnected, 0);
+            }
+        }
+
+        private class CWPConnectionWriter extends Thread {
+            private static final String TAG = "CWPWriter";
+            private static final int WRITE_BUFFER_LENGTH = 4096;
+            private final ByteBuffer outBuffer = ByteBuffer.allocate(WRITE_BUFFER_LENGTH).order(ByteOrder.BIG_ENDIAN);
+
+            private void writeBuffer(OutputStream stream, int frames) throws IOException {
+                stream.write(outBuffer.array(), 0, outBuffer.position());
+                stream.flush();
+                outBuffer.clear();
+                writeStats.recordWrite(frames);
+            }
+
+            private void sendFrames(OutputStream stream) throws IOException {
+                long frame;
+                if (writeMode == WriteMode.PerFrame) {
+                    while (running && (frame = outbound.poll()) != CWPFrameQueue.EMPTY) {
+                        CWPFrameEncoder.encodeAndLog(frame, outBuffer);
+                        writeBuffer(stream, 1);
+                    }
+                    return;
+                }
+                if (batchWindowNanos > 0) {
+                    LockSupport.parkNanos(batchWindowNanos);  // let frames generated in the window join this write
+                }
+                int frames = 0;
+                while (running && (frame = outbound.poll()) != CWPFrameQueue.EMPTY) {
+                    CWPFrameEncoder.encodeAndLog(frame, outBuffer);
+                    frames++;
+                    if (outBuffer.remaining() < 4) {
+                        writeBuffer(stream, frames);
+                        frames = 0;
+                    }
+                }
+                if (frames > 0) {
+                    writeBuffer(stream, frames);
+                }
+            }
+
+            // Reader thread, before nos is published, so the writer thread is not draining yet. Frames queued
+            // while connecting go out in one write without the batch window or a writer wake-up.
+            void sendQueued(OutputStream stream) throws IOException {
+                long frame;
+                int frames = 0;
+                while ((frame = outbound.poll()) != CWPFrameQueue.EMPTY) {
+                    CWPFrameEncoder.encodeAndLog(frame, outBuffer);
+                    frames++;
+                    if (outBuffer.remaining() < 4) {
+                        writeBuffer(stream, frames);
+                        frames = 0;
+                    }
+                }
+                if (frames > 0) {
+                    writeBuffer(stream, frames);
+                }
+            }
+
+            @Override
+            public void run() {
+                CWPLog.d(TAG, "Sending started");
+                while (running) {
+                    writerHandle.block();     // block thread execution when there is no data to send.
+                    writerHandle.close();     // close before draining so a frame queued meanwhile opens it again.
+                    OutputStream stream = nos;
+                    if (stream == null) {
+                        continue;             // still connecting, the reader opens the handle once connected
+                    }
+                    try {
+                        sendFrames(stream);
+                    } catch (IOException e) {
+                        outBuffer.clear();
+                        e.printStackTrace();
+                    }
+                }
+                CWPLog.d(TAG, "Sending stopped");
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation.CWPState;
+
+// Transition table of the protocol. States and inputs are small ints, every (state, input) pair has one
+// entry holding the next state and a bit set of actions, so handling an input is two array lookups and
+// the protocol runs the actions in a fixed order. Pairs without an entry leave the state as it is and do
+// nothing. The states split the public CWPState by who holds the line and by frequency negotiation.
+// Connecting has queued the frequency ahead of the connection, so the transport writes it as soon as the
+// socket is up and the handshake takes one round trip. Tuning waits for the server to echo the request in
+// flight, see CWPFrequencyNegotiation: the echo completes the change when it carries the latest frequency
+// and sends the latest one when the user changed it meanwhile, any other frequency is the default the
+// server announces on connect or the echo of an earlier request and is ignored, and a request that is not
+// echoed in time is sent again. Line frames arriving while tuning belong to the frequency we are leaving.
+public final class CWPStateMachine {
+
+    public static final int DISCONNECTED = 0;
+    public static final int TUNING = 1;
+    public static final int IDLE = 2;
+    public static final int SERVER_LINE_UP = 3;
+    public static final int USER_LINE_UP = 4;
+    public static final int SHARED_LINE_UP = 5;         // user and server both hold the line
+    public static final int TUNING_USER_LINE_UP = 6;    // user keyed before the frequency was confirmed
+    public static final int CONNECTING = 7;
+    public static final int STATE_COUNT = 8;
+
+    public static final int USER_UP = 0;
+    public static final int USER_DOWN = 1;
+    public static final int USER_FREQUENCY = 2;
+    public static final int LONG_LINE_UP = 3;           // the user line has been up longer than a short can carry
+    public static final int SERVER_CONNECTED = 4;
+    public static final int SERVER_DISCONNECTED = 5;
+    public static final int SERVER_UP = 6;
+    public static final int SERVER_DOWN = 7;
+    public static final int SERVER_FREQUENCY = 8;       // the echo of the request in flight, the latest frequency
+    public static final int SERVER_OTHER_FREQUENCY = 9;
+    public static final int USER_CONNECT = 10;
+    public static final int FREQUENCY_TIMEOUT = 11;     // the request in flight was not echoed in time
+    public static final int SERVER_SUPERSEDED_FREQUENCY = 12;  // the echo of a request changed meanwhile
+    public static final int INPUT_COUNT = 13;
+
+    // Actions in the order the protocol runs them.
+    public static final int ADOPT_FREQUENCY = 1;
+    public static final int SETTLE_FREQUENCY = 1 << 1;   // nothing is in flight any more
+    public static final int RETRY_FREQUENCY = 1 << 2;    // the request in flight is given up on
+    public static final int STAMP_CONNECTED = 1 << 3;
+    public static final int CANCEL_LINE = 1 << 4;        // the user line ends without a frame
+    public static final int SEND_LINE_UP = 1 << 5;
+    public static final int SEND_LINE_DOWN = 1 << 6;
+    public static final int SPLIT_LINE_UP = 1 << 7;
+    public static final int SEND_FREQUENCY = 1 << 8;     // or hold it while another request is in flight
+    public static final int EMIT_CONNECTED = 1 << 9;
+    public static final int EMIT_CHANGED_FREQUENCY = 1 << 10;
+    public static final int EMIT_LINE_DOWN = 1 << 11;
+    public static final int EMIT_LINE_UP = 1 << 12;
+    public static final int EMIT_DISCONNECTED = 1 << 13;
+    public static final int EMIT_SERVER_STATE_CHANGE = 1 << 14;
+
+    private static final String[] STATE_NAMES = {"Disconnected", "Tuning", "Idle", "ServerLineUp", "UserLineUp",
+            "SharedLineUp", "TuningUserLineUp", "Connecting"};
+    private static final String[] INPUT_NAMES = {"UserLineUp", "UserLineDown", "UserFrequency", "LongLineUp",
+            "ServerConnected", "ServerDisconnected", "ServerLineUp", "ServerLineDown", "ServerFrequency",
+            "ServerOtherFrequency", "UserConnect", "FrequencyTimeout", "ServerSupersededFrequency"};
+
+    private static final CWPState[] PUBLIC_STATES = {CWPState.Disconnected, CWPState.Connected, CWPState.LineDown,
+            CWPState.LineUp, CWPState.LineUp, CWPState.LineUp, CWPState.LineUp, CWPState.Disconnected};
+    private static final boolean[] USER_HOLDS_LINE = {false, false, false, false, true, true, true, false};
+    private static final boolean[] SERVER_HOLDS_LINE = {false, false, false, true, false, true, false, false};
+
+    private static final byte[] NEXT = new byte[STATE_COUNT * INPUT_COUNT];
+    private static final int[] ACTIONS = new int[STATE_COUNT * INPUT_COUNT];
+
+    static {
+        for (int state = 0; state < STATE_COUNT; state++) {
+            for (int input = 0; input < INPUT_COUNT; input++) {
+                on(state, input, state, 0);
+            }
+            int cancel = USER_HOLDS_LINE[state] ? CANCEL_LINE : 0;
+            // a connection the protocol did not ask for has no frequency in flight yet
+            on(state, SERVER_CONNECTED, TUNING,
+                    cancel | SETTLE_FREQUENCY | STAMP_CONNECTED | SEND_FREQUENCY | EMIT_CONNECTED);
+            on(state, SERVER_DISCONNECTED, DISCONNECTED, cancel | SETTLE_FREQUENCY | EMIT_DISCONNECTED);
+            // a new connection replaces the current one
+            int dropped = PUBLIC_STATES[state] != CWPState.Disconnected ? EMIT_DISCONNECTED : 0;
+            on(state, USER_CONNECT, CONNECTING, cancel | SETTLE_FREQUENCY | SEND_FREQUENCY | dropped);
+        }
+        // the frequency is sent with the next connect
+        on(DISCONNECTED, USER_FREQUENCY, DISCONNECTED, ADOPT_FREQUENCY);
+
+        on(CONNECTING, SERVER_CONNECTED, TUNING, STAMP_CONNECTED | EMIT_CONNECTED);
+        on(CONNECTING, USER_FREQUENCY, CONNECTING, ADOPT_FREQUENCY | SEND_FREQUENCY);
+
+        on(TUNING, USER_UP, TUNING_USER_LINE_UP, SEND_LINE_UP | EMIT_LINE_UP);
+        on(TUNING, USER_FREQUENCY, TUNING, ADOPT_FREQUENCY | SEND_FREQUENCY | EMIT_CONNECTED);
+        on(TUNING, SERVER_FREQUENCY, IDLE, SETTLE_FREQUENCY | EMIT_CHANGED_FREQUENCY | EMIT_LINE_DOWN);
+        on(TUNING, SERVER_SUPERSEDED_FREQUENCY, TUNING, SETTLE_FREQUENCY | SEND_FREQUENCY);
+        on(TUNING, FREQUENCY_TIMEOUT, TUNING, RETRY_FREQUENCY | SEND_FREQUENCY);
+
+        on(IDLE, USER_UP, USER_LINE_UP, SEND_LINE_UP | EMIT_LINE_UP);
+        on(IDLE, USER_FREQUENCY, TUNING, ADOPT_FREQUENCY | SEND_FREQUENCY | EMIT_CONNECTED);
+        on(IDLE, SERVER_UP, SERVER_LINE_UP, EMIT_LINE_UP);
+
+        // the line is up for the listeners already, the user joins and leaves quietly
+        on(SERVER_LINE_UP, USER_UP, SHARED_LINE_UP, SEND_LINE_UP);
+        on(SERVER_LINE_UP, SERVER_DOWN, IDLE, EMIT_LINE_DOWN);
+
+        on(USER_LINE_UP, USER_DOWN, IDLE, SEND_LINE_DOWN | EMIT_LINE_DOWN);
+        on(USER_LINE_UP, LONG_LINE_UP, USER_LINE_UP, SPLIT_LINE_UP);
+        on(USER_LINE_UP, SERVER_UP, SHARED_LINE_UP, EMIT_SERVER_STATE_CHANGE);
+        on(USER_LINE_UP, SERVER_DOWN, USER_LINE_UP, EMIT_SERVER_STATE_CHANGE);
+
+        on(SHARED_LINE_UP, USER_DOWN, SERVER_LINE_UP, SEND_LINE_DOWN);
+        on(SHARED_LINE_UP, LONG_LINE_UP, SHARED_LINE_UP, SPLIT_LINE_UP);
+        on(SHARED_LINE_UP, SERVER_UP, SHARED_LINE_UP, EMIT_SERVER_STATE_CHANGE);
+        on(SHARED_LINE_UP, SERVER_DOWN, USER_LINE_UP, EMIT_SERVER_STATE_CHANGE);
+
+        on(TUNING_USER_LINE_UP, USER_DOWN, TUNING, SEND_LINE_DOWN | EMIT_LINE_DOWN);
+        on(TUNING_USER_LINE_UP, LONG_LINE_UP, TUNING_USER_LINE_UP, SPLIT_LINE_UP);
+        on(TUNING_USER_LINE_UP, SERVER_FREQUENCY, USER_LINE_UP, SETTLE_FREQUENCY | EMIT_CHANGED_FREQUENCY);
+        on(TUNING_USER_LINE_UP, SERVER_SUPERSEDED_FREQUENCY, TUNING_USER_LINE_UP, SETTLE_FREQUENCY | SEND_FREQUENCY);
+        on(TUNING_USER_LINE_UP, FREQUENCY_TIMEOUT, TUNING_USER_LINE_UP, RETRY_FREQUENCY | SEND_FREQUENCY);
+    }
+
+    private CWPStateMachine() {
+    }
+
+    private static void on(int state, int input, int next, int actions) {
+        NEXT[state * INPUT_COUNT + input] = (byte) next;
+        ACTIONS[state * INPUT_COUNT + input] = actions;
+    }
+
+    public static int next(int state, int input) {
+        return NEXT[state * INPUT_COUNT + input];
+    }
+
+    public static int actions(int state, int input) {
+        return ACTIONS[state * INPUT_COUNT + input];
+    }
+
+    // Inputs for frames from the transport. Negative ints decode as LineDown and carry a frequency, which
+    // is an echo when it matches the request in flight.
+    public static int serverInput(CWPState frame, int value, int inFlight, int frequency) {
+        switch (frame) {
+            case Connected:
+                return SERVER_CONNECTED;
+            case Disconnected:
+                return SERVER_DISCONNECTED;
+            case LineUp:
+                return SERVER_UP;
+            default:
+                if (value >= 0) {
+                    return SERVER_DOWN;
+                }
+                if (value != inFlight) {
+                    return SERVER_OTHER_FREQUENCY;
+                }
+                return value == frequency ? SERVER_FREQUENCY : SERVER_SUPERSEDED_FREQUENCY;
+        }
+    }
+
+    public static CWPState publicState(int state) {
+        return PUBLIC_STATES[state];
+    }
+
+    public static boolean userHoldsLine(int state) {
+        return USER_HOLDS_LINE[state];
+    }
+
+    public static boolean serverHoldsLine(int state) {
+        return SERVER_HOLDS_LINE[state];
+    }
+
+    public static String stateName(int state) {
+        return STATE_NAMES[state];
+    }
+
+    public static String inputName(int input) {
+        return INPUT_NAMES[input];
+    }
+}
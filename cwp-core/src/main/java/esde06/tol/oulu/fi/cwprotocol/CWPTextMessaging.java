@@ -0,0 +1,13 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+// Messaging that can also key whole texts as Morse code.
+public interface CWPTextMessaging extends CWPMessaging {
+
+    // Queues the text to be keyed at the given speed after anything already queued.
+    void sendText(String text, int wpm);
+
+    // Drops queued texts and ends the one being keyed, releasing the line if it is up.
+    void cancelText();
+
+    boolean isSendingText();
+}
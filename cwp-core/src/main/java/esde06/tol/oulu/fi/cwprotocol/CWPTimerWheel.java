@@ -0,0 +1,233 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Hashed timer wheel with millisecond ticks on one shared thread.
+// Timeouts are reusable handles linked into the bucket of their deadline tick, so scheduling and
+// cancelling are O(1) and allocation-free. The wheel thread walks elapsed ticks and runs every timeout
+// whose deadline has passed, at most one tick late; later rounds that share a bucket stay put. The thread
+// parks until the tick of the nearest deadline has passed, or until the next schedule() while nothing is
+// pending, and a schedule() with an earlier deadline wakes it. Tasks run on the wheel thread and
+// must hand real work to their owner, e.g. through an Executor. A driven wheel has no thread at all,
+// its owner calls expire() after moving the clock, which keeps replays deterministic.
+public class CWPTimerWheel {
+
+    private static final String TAG = "CWPTimerWheel";
+    public static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int WHEEL_SIZE = 512;  // power of two
+    private static final int MASK = WHEEL_SIZE - 1;
+
+    // A reusable timer, pending in at most one bucket at a time.
+    public static final class Timeout {
+        private final Runnable task;
+        private long deadline;
+        private Timeout previous;
+        private Timeout next;
+        private int bucket = -1;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    private final CWPClock clock;
+    private final String name;
+    private final boolean threaded;
+    private final Timeout[] buckets = new Timeout[WHEEL_SIZE];
+    private int pending = 0;
+    private long lastTick;  // last tick whose bucket has been walked
+    private long wakeAt;    // clock nanos the wheel thread parks until while timeouts are pending
+    private Thread wheelThread;
+    private boolean stopped = false;
+
+    public CWPTimerWheel(CWPClock clock, String name) {
+        this(clock, name, true);
+    }
+
+    private CWPTimerWheel(CWPClock clock, String name, boolean threaded) {
+        this.clock = clock;
+        this.name = name;
+        this.threaded = threaded;
+        this.lastTick = tickOf(clock.nanoTime()) - 1;
+    }
+
+    public static CWPTimerWheel driven(CWPClock clock) {
+        return new CWPTimerWheel(clock, null, false);
+    }
+
+    private static long tickOf(long nanos) {
+        return nanos / TICK_NANOS;
+    }
+
+    public Timeout newTimeout(Runnable task) {
+        return new Timeout(task);
+    }
+
+    public void schedule(Timeout timeout, long delay, TimeUnit unit) {
+        scheduleAt(timeout, clock.nanoTime() + unit.toNanos(delay));
+    }
+
+    // Deadline in clock nanos, a pending timeout is moved. Ignored once the wheel is shut down.
+    public synchronized void scheduleAt(Timeout timeout, long deadline) {
+        if (stopped) {
+            return;
+        }
+        if (timeout.bucket >= 0) {
+            unlink(timeout);
+        }
+        if (pending == 0) {
+            lastTick = tickOf(clock.nanoTime()) - 1;  // ticks passed while idle hold nothing
+        }
+        long tick = Math.max(tickOf(deadline), lastTick + 1);
+        int bucket = (int) (tick & MASK);
+        timeout.deadline = deadline;
+        timeout.bucket = bucket;
+        timeout.previous = null;
+        timeout.next = buckets[bucket];
+        if (timeout.next != null) {
+            timeout.next.previous = timeout;
+        }
+        buckets[bucket] = timeout;
+        if (pending++ == 0 || dueAt(deadline) - wakeAt < 0) {
+            wake();
+        }
+    }
+
+    // When expire() runs a timeout with this deadline: once the tick it falls in has fully elapsed.
+    private static long dueAt(long deadline) {
+        return (tickOf(deadline) + 1) * TICK_NANOS;
+    }
+
+    // Earliest pending deadline, from every bucket since deadlines a revolution or more ahead share them.
+    private long nearestDeadline() {
+        long nearest = 0;
+        boolean found = false;
+        for (Timeout head : buckets) {
+            for (Timeout timeout = head; timeout != null; timeout = timeout.next) {
+                if (!found || timeout.deadline - nearest < 0) {
+                    nearest = timeout.deadline;
+                    found = true;
+                }
+            }
+        }
+        return nearest;
+    }
+
+    // True when the timeout was pending, so its task will not run.
+    public synchronized boolean cancel(Timeout timeout) {
+        if (timeout.bucket < 0) {
+            return false;
+        }
+        unlink(timeout);
+        return true;
+    }
+
+    public synchronized boolean isPending(Timeout timeout) {
+        return timeout.bucket >= 0;
+    }
+
+    public synchronized int pendingCount() {
+        return pending;
+    }
+
+    // Drops every pending timeout and ends the wheel thread.
+    public synchronized void shutdown() {
+        stopped = true;
+        for (Timeout head : buckets) {
+            while (head != null) {
+                Timeout next = head.next;
+                unlink(head);
+                head = next;
+            }
+        }
+        if (wheelThread != null) {
+            LockSupport.unpark(wheelThread);
+        }
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        pending--;
+    }
+
+    private void wake() {
+        if (!threaded) {
+            return;
+        }
+        if (wheelThread == null) {
+            wheelThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWheel();
+                }
+            }, name);
+            wheelThread.setDaemon(true);
+            wheelThread.start();
+        } else {
+            LockSupport.unpark(wheelThread);
+        }
+    }
+
+    // wheel thread
+    private void runWheel() {
+        while (true) {
+            boolean idle;
+            long wait;
+            synchronized (this) {
+                if (stopped) {
+                    return;
+                }
+                idle = pending == 0;
+                wakeAt = idle ? 0 : dueAt(nearestDeadline());
+                wait = wakeAt - clock.nanoTime();
+            }
+            if (idle) {
+                LockSupport.park(this);
+            } else if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+            }
+            expire();
+        }
+    }
+
+    // Runs the tasks of every timeout due by now. Called by the wheel thread each tick; callers that
+    // drive a virtual clock may call it directly after advancing time.
+    public void expire() {
+        Runnable task;
+        while ((task = nextExpired()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                CWPLog.d(TAG, "Timer task failed: " + e);
+            }
+        }
+    }
+
+    private synchronized Runnable nextExpired() {
+        long now = clock.nanoTime();
+        long elapsedTick = tickOf(now) - 1;  // only fully elapsed ticks, later deadlines in them are not due
+        long firstTick = Math.max(lastTick + 1, elapsedTick - MASK);
+        for (long tick = firstTick; tick <= elapsedTick && pending > 0; tick++) {
+            for (Timeout timeout = buckets[(int) (tick & MASK)]; timeout != null; timeout = timeout.next) {
+                if (timeout.deadline - now <= 0) {
+                    lastTick = tick - 1;  // come back to this bucket for the rest of it
+                    unlink(timeout);
+                    return timeout.task;
+                }
+            }
+        }
+        lastTick = Math.max(lastTick, elapsedTick);
+        return null;
+    }
+}
@@ -0,0 +1,16 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+// Moves CWP frames between the protocol and a server.
+// The listener receives Connected, every decoded frame and finally Disconnected, all from one transport thread.
+public interface CWPTransport {
+
+    void open(String serverAddress, int serverPort, CWPFrameQueue outbound, CWPFrameDecoder.FrameListener listener);
+
+    // Writes everything queued in the outbound ring so far.
+    void flush();
+
+    // Disconnected is still reported to the listener once the connection is gone.
+    void close();
+
+    CWPWriteStats writeStats();
+}
@@ -0,0 +1,31 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Clock that only moves when told to, for deterministic tests and replays.
+public class CWPVirtualClock implements CWPClock {
+
+    private final AtomicLong now = new AtomicLong(0);
+
+    @Override
+    public long nanoTime() {
+        return now.get();
+    }
+
+    public void advance(long duration, TimeUnit unit) {
+        now.addAndGet(unit.toNanos(duration));
+    }
+
+    public void advanceNanos(long nanos) {
+        now.addAndGet(nanos);
+    }
+
+    // Never moves the clock backwards.
+    public void set(long nanoTime) {
+        long current;
+        while (nanoTime > (current = now.get()) && !now.compareAndSet(current, nanoTime)) {
+            // retry
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+// Counts socket writes and the frames carried by each, updated by the single writing thread.
+public class CWPWriteStats {
+
+    private volatile long writes = 0;
+    private volatile long frames = 0;
+    private volatile int maxFramesPerWrite = 0;
+
+    void recordWrite(int framesInWrite) {
+        writes++;
+        frames += framesInWrite;
+        if (framesInWrite > maxFramesPerWrite) {
+            maxFramesPerWrite = framesInWrite;
+        }
+    }
+
+    public long writes() {
+        return writes;
+    }
+
+    public long frames() {
+        return frames;
+    }
+
+    public int maxFramesPerWrite() {
+        return maxFramesPerWrite;
+    }
+
+    public double framesPerWrite() {
+        long w = writes;
+        return w == 0 ? 0 : (double) frames / w;
+    }
+
+    void reset() {
+        writes = 0;
+        frames = 0;
+        maxFramesPerWrite = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "writes: " + writes + " , frames: " + frames
+                + " , frames per write: " + framesPerWrite() + " , max: " + maxFramesPerWrite;
+    }
+}
@@ -0,0 +1,554 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import esde06.tol.oulu.fi.EventLogger;
+
+
+public class CWProtocolImplementation implements CWPControl, CWPMessaging {
+
+    private static final String TAG = "ProtocolImplementation";
+    private static final String MONITORTAG = "LineUpMessageMonitor";
+
+    public enum CWPState {Disconnected, Connected, LineUp, LineDown}
+
+    private static final CWPState[] STATES = CWPState.values();
+    private static final long NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long LONG_LINE_UP_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long FREQUENCY_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final CWPKeyListener NO_KEY_LISTENER = new CWPKeyListener() {
+        @Override
+        public void onLineUp(int offsetMillis) {
+        }
+
+        @Override
+        public void onLineDown(int durationMillis) {
+        }
+    };
+
+    // One of the CWPStateMachine states, written on the event thread only.
+    private volatile int state = CWPStateMachine.DISCONNECTED;
+
+    private CWPTransport transport = new CWPSocketTransport();
+    private CWPTransport connectedTransport = null;
+    private int connection = 0;     // generation of connectedTransport, frames of older ones are dropped
+    private final Executor eventExecutor;
+    private final CWPClock clock;
+    private final CWPEventBus listeners = new CWPEventBus();
+    private volatile CWPKeyListener userKey = NO_KEY_LISTENER;
+    private volatile CWPKeyListener serverKey = NO_KEY_LISTENER;
+    private volatile CWPJournal journal = null;
+
+    private String serverAddress = null;
+    private int serverPort = -1;
+    private volatile int currentFrequency = CWPControl.DEFAULT_FREQUENCY;
+
+    private int reservedValue = -2147483648;
+    private long connectedStamp = 0;   // clock nanos
+    private long lastLineUpStamp = 0;  // clock nanos
+    private long connectRequestedAt = 0;  // clock nanos
+    private boolean readyPending = false; // until the first frequency of the connection is confirmed
+    private long frequencySentAt = 0;     // clock nanos
+
+    // Outbound frames are produced on the event thread only and drained by the transport.
+    private static final int OUTBOUND_CAPACITY = 1024;
+    private volatile CWPFrameQueue outbound = new CWPFrameQueue(OUTBOUND_CAPACITY, CWPFrameQueue.OverflowPolicy.DropNewest);
+
+    // A line held up longer than a short can carry is split into line down and line up again.
+    // The wheel fires at the exact deadline, the split itself runs on the event thread.
+    private final CWPTimerWheel timers;
+    private final CWPTimerWheel.Timeout longLineUpTimeout;
+    // A request that is not echoed in time is sent again, and the connection dropped once the attempts run out.
+    private final CWPFrequencyNegotiation frequencies = new CWPFrequencyNegotiation();
+    private final CWPTimerWheel.Timeout frequencyTimeout;
+
+    private final Runnable longLineUpHandler = new Runnable() {
+        @Override
+        public void run() {
+            // lineDown() may have cancelled the timeout after it fired
+            long now = clock.nanoTime();
+            if (now - lastLineUpStamp >= LONG_LINE_UP_NANOS) {
+                command(CWPStateMachine.LONG_LINE_UP, 0, now);
+            }
+        }
+    };
+
+    private final Runnable frequencyTimeoutHandler = new Runnable() {
+        @Override
+        public void run() {
+            // the echo may have settled the request after the timeout fired
+            long now = clock.nanoTime();
+            if (frequencies.canSend() || now - frequencySentAt < FREQUENCY_TIMEOUT_NANOS) {
+                return;
+            }
+            if (frequencies.mayRetry()) {
+                command(CWPStateMachine.FREQUENCY_TIMEOUT, 0, now);
+                return;
+            }
+            frequencies.failed();
+            CWPLog.d(TAG, "Frequency " + currentFrequency + " not confirmed after " + CWPFrequencyNegotiation.MAX_ATTEMPTS
+                    + " attempts, dropping the connection.");
+            if (connectedTransport != null) {
+                connectedTransport.close();     // reports Disconnected
+            }
+        }
+    };
+
+    // Protocol state is owned by the thread behind eventExecutor, a dedicated protocol thread in the app.
+    // Listeners choose their own thread through CWPDelivery.
+    public CWProtocolImplementation(CWProtocolListener listener, Executor eventExecutor) {
+        this(listener, eventExecutor, CWPClock.SYSTEM);
+    }
+
+    public CWProtocolImplementation(CWProtocolListener listener, Executor eventExecutor, CWPClock clock) {
+        this(listener, eventExecutor, clock, new CWPTimerWheel(clock, "CWPTimer"));
+    }
+
+    public CWProtocolImplementation(CWProtocolListener listener, final Executor eventExecutor, CWPClock clock,
+                                    CWPTimerWheel timers) {
+        if (listener != null) {
+            listeners.addListener(listener);
+        }
+        this.eventExecutor = eventExecutor;
+        this.clock = clock;
+        this.timers = timers;
+        this.longLineUpTimeout = timers.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                CWPLog.d(MONITORTAG, "LineUp signal is up for 30 seconds, handling it now..");
+                eventExecutor.execute(longLineUpHandler);
+            }
+        });
+        this.frequencyTimeout = timers.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                CWPLog.d(TAG, "Frequency " + currentFrequency + " not confirmed in time.");
+                CWProtocolImplementation.this.eventExecutor.execute(frequencyTimeoutHandler);
+            }
+        });
+    }
+
+    // Wire values carry milliseconds.
+    private static long toMillis(long nanos) {
+        return nanos / NANOS_PER_MILLI;
+    }
+
+    public void addListener(CWProtocolListener listener) {
+        listeners.addListener(listener);
+    }
+
+    public void addListener(CWProtocolListener listener, CWPDelivery delivery) {
+        listeners.addListener(listener, delivery);
+    }
+
+    // Events of one inbound read, or of one user command, arrive in one call.
+    public void addBatchListener(CWPBatchListener listener) {
+        listeners.addBatchListener(listener, CWPDelivery.INLINE);
+    }
+
+    public void addBatchListener(CWPBatchListener listener, CWPDelivery delivery) {
+        listeners.addBatchListener(listener, delivery);
+    }
+
+    public void removeBatchListener(CWPBatchListener listener) {
+        listeners.removeBatchListener(listener);
+    }
+
+    // Journals frames, state and events from here on; null stops journaling. A replaced journal is closed.
+    // Call on the event thread.
+    public void setJournal(CWPJournal newJournal) {
+        if (journal != null) {
+            listeners.removeListener(journal);
+            journal.close();
+        }
+        journal = newJournal;
+        if (newJournal != null) {
+            listeners.addListener(newJournal);
+        }
+    }
+
+    // Key timing of the local user and of the server, null stops the feed.
+    public void setUserKeyListener(CWPKeyListener listener) {
+        userKey = listener == null ? NO_KEY_LISTENER : listener;
+    }
+
+    public void setServerKeyListener(CWPKeyListener listener) {
+        serverKey = listener == null ? NO_KEY_LISTENER : listener;
+    }
+
+    public void removeListener(CWProtocolListener listener) {
+        listeners.removeListener(listener);
+    }
+
+    public CWPClock clock() {
+        return clock;
+    }
+
+    // Clock instant of the last Connected frame, the origin of the LineUp offsets this client sends.
+    public long connectedAt() {
+        return connectedStamp;
+    }
+
+    // Shared timers of this protocol instance, tasks run on the wheel thread.
+    public CWPTimerWheel timers() {
+        return timers;
+    }
+
+    // Takes effect on the next connect().
+    public void setTransport(CWPTransport transport) {
+        this.transport = transport;
+    }
+
+    public CWPWriteStats writeStats() {
+        return transport.writeStats();
+    }
+
+    // Event thread for the request in flight, the counters may be read anywhere.
+    public CWPFrequencyNegotiation frequencyNegotiation() {
+        return frequencies;
+    }
+
+    public void lineUp() {
+        lineUpAt(clock.nanoTime());
+    }
+
+    public void lineDown() {
+        lineDownAt(clock.nanoTime());
+    }
+
+    // Line changes at a scheduled clock instant rather than now, for keyers. The wire values are
+    // taken from the instants, so they stay exact however late the call itself runs.
+    public void lineUpAt(long clockNanos) {
+        long now = clock.nanoTime();
+        recordCommand(CWPJournal.LINE_UP, now - clockNanos, now);
+        EventLogger.logEventStarted(EventLogger.lineUp);
+        CWPLog.d(TAG, "Line Up signal generated by user.");
+        command(CWPStateMachine.USER_UP, 0, clockNanos);
+    }
+
+    public void lineDownAt(long clockNanos) {
+        long now = clock.nanoTime();
+        recordCommand(CWPJournal.LINE_DOWN, now - clockNanos, now);
+        EventLogger.logEventStarted(EventLogger.lineDown);
+        CWPLog.d(TAG, "Line Down signal generated by user.");
+        command(CWPStateMachine.USER_DOWN, 0, clockNanos);
+    }
+
+    // The frequency is queued before the transport opens, so it goes out right behind the TCP handshake
+    // and the server's echo makes the client ready one round trip after the connection is up.
+    public void connect(String serverAddr, int serverPort, int frequency) {
+        CWPLog.d(TAG, "Connect to CWP Server.");
+        long now = clock.nanoTime();
+        this.serverAddress = serverAddr;
+        this.serverPort = serverPort;
+        this.currentFrequency = Math.abs(frequency) * -1;
+        recordCommand(CWPJournal.CONNECT, frequency, now);
+        if (journal != null) {
+            journal.recordFrequency(currentFrequency);
+        }
+        // the old transport reports Disconnected asynchronously, as a frame of an older generation
+        connection++;
+        if (connectedTransport != null) {
+            connectedTransport.close();
+            connectedTransport = null;
+        }
+        outbound = new CWPFrameQueue(OUTBOUND_CAPACITY, CWPFrameQueue.OverflowPolicy.DropNewest);
+        connectRequestedAt = now;
+        readyPending = true;
+        command(CWPStateMachine.USER_CONNECT, 0, now);
+        connectedTransport = transport;
+        connectedTransport.open(serverAddr, serverPort, outbound, new InboundFrames(connection));
+        CWPLog.d(TAG, "Started Reading incoming messages.");
+    }
+
+    public void disconnect() throws IOException {
+        CWPLog.d(TAG, "Disconnect CWP Server.");
+        recordCommand(CWPJournal.DISCONNECT, 0, clock.nanoTime());
+        stopMonitoringLineUpMessage();
+        timers.cancel(frequencyTimeout);
+        if (connectedTransport != null) {
+            connectedTransport.close();
+            CWPLog.d(TAG, "Outbound " + connectedTransport.writeStats());
+            connectedTransport = null;
+        }
+        CWPLog.d(TAG, "Outbound queue high water mark: " + outbound.highWaterMark()
+                + " , dropped frames: " + outbound.droppedFrames());
+        CWPLog.d(TAG, "Negotiation " + frequencies);
+        EventLogger.getLoggingSummary();
+    }
+
+    private boolean sendFrequency() {
+        if (currentFrequency == reservedValue) {
+            CWPLog.d(TAG, "Incorrect frequency value... This will not work");
+            return false;
+        }
+        queueFrame(currentFrequency);
+        frequencies.sent(currentFrequency);
+        CWPLog.d(TAG, "Frequency change message : " + currentFrequency);
+        return true;
+    }
+
+    // The wait for the echo starts once the connection is up.
+    private void awaitFrequencyEcho(long now) {
+        frequencySentAt = now;
+        timers.scheduleAt(frequencyTimeout, now + FREQUENCY_TIMEOUT_NANOS);
+    }
+
+    public boolean isConnected() {
+        return CWPStateMachine.publicState(state) != CWPState.Disconnected;
+    }
+
+    public boolean lineIsUp() {
+        return CWPStateMachine.publicState(state) == CWPState.LineUp;
+    }
+
+    public boolean serverSetLineUp() {
+        return CWPStateMachine.serverHoldsLine(state);
+    }
+
+    public void setFrequency(int frequency) {
+        CWPLog.d(TAG, "Set frequency to " + frequency);
+        long now = clock.nanoTime();
+        recordCommand(CWPJournal.SET_FREQUENCY, frequency, now);
+        if (frequency == reservedValue) {
+            CWPLog.d(TAG, "Incorrect frequency value... This will not work");
+            return;
+        }
+        // ignored while the line is up
+        command(CWPStateMachine.USER_FREQUENCY, Math.abs(frequency) * -1, now);
+    }
+
+    public int frequency() {
+        return Math.abs(currentFrequency);
+    }
+
+    // Number of frames waiting for the writer thread.
+    public int pendingFrames() {
+        return outbound.size();
+    }
+
+    private void queueFrame(int message) {
+        enqueue(CWPFrameQueue.INT_FRAME, message);
+    }
+
+    private void queueFrame(short message) {
+        enqueue(CWPFrameQueue.SHORT_FRAME, message);
+    }
+
+    private void recordCommand(int command, long value, long now) {
+        if (journal != null) {
+            journal.recordCommand(command, (int) Math.min(value, Integer.MAX_VALUE), now);
+        }
+    }
+
+    private void setState(int next) {
+        CWPState publicState = CWPStateMachine.publicState(next);
+        if (journal != null && publicState != CWPStateMachine.publicState(state)) {
+            journal.recordState(publicState);
+        }
+        state = next;
+    }
+
+    private void enqueue(int frameType, int message) {
+        if (journal != null) {
+            journal.recordOutbound(frameType, message);
+        }
+        if (!outbound.offer(frameType, message)) {
+            CWPLog.d(TAG, "Outbound queue is full, dropped message : " + message);
+        }
+        if (connectedTransport != null) {
+            connectedTransport.flush();
+        }
+    }
+
+    private void processStateChange(CWPState frame, int receivedData) {
+        long now = clock.nanoTime();
+        if (journal != null) {
+            journal.recordInbound(frame, receivedData, now);
+        }
+        if (frame == CWPState.LineUp) {
+            serverKey.onLineUp(receivedData);
+        } else if (frame == CWPState.LineDown && receivedData >= 0) {  // negative is a frequency
+            serverKey.onLineDown(receivedData);
+        }
+        handle(CWPStateMachine.serverInput(frame, receivedData, frequencies.inFlight(), currentFrequency),
+                receivedData, now);
+        EventLogger.logEventEnded(EventLogger.serverEvent);
+    }
+
+    // An input of its own, its events make one batch.
+    private void command(int input, int value, long clockNanos) {
+        handle(input, value, clockNanos);
+        listeners.endBatch();
+    }
+
+    // Runs one input through the transition table. The value is the server frame value or the requested
+    // frequency, the instant is when the input happened and stamps the frames it sends.
+    private void handle(int input, int value, long clockNanos) {
+        int from = state;
+        int actions = CWPStateMachine.actions(from, input);
+        if (CWPLog.isEnabled()) {
+            CWPLog.d(TAG, CWPStateMachine.inputName(input) + " in " + CWPStateMachine.stateName(from)
+                    + " -> " + CWPStateMachine.stateName(CWPStateMachine.next(from, input)));
+        }
+        if ((actions & CWPStateMachine.ADOPT_FREQUENCY) != 0) {
+            currentFrequency = value;
+            if (journal != null) {
+                journal.recordFrequency(currentFrequency);
+            }
+            frequencies.requested(clockNanos);
+        }
+        if ((actions & CWPStateMachine.SETTLE_FREQUENCY) != 0) {
+            frequencies.settle();
+            timers.cancel(frequencyTimeout);
+        }
+        if ((actions & CWPStateMachine.RETRY_FREQUENCY) != 0) {
+            frequencies.expire();
+        }
+        if ((actions & CWPStateMachine.STAMP_CONNECTED) != 0) {
+            connectedStamp = clockNanos;
+            if (!frequencies.canSend()) {
+                awaitFrequencyEcho(clock.nanoTime());    // sent while connecting
+            }
+        }
+        if ((actions & CWPStateMachine.CANCEL_LINE) != 0) {
+            stopMonitoringLineUpMessage();
+        }
+        setState(CWPStateMachine.next(from, input));
+        if ((actions & CWPStateMachine.SEND_LINE_UP) != 0) {
+            lastLineUpStamp = clockNanos;
+            int message = lineUpOffset();
+            queueFrame(message);
+            userKey.onLineUp(message);
+            startMonitoringLineUpMessage();
+        }
+        if ((actions & CWPStateMachine.SEND_LINE_DOWN) != 0) {
+            short message = (short) toMillis(clockNanos - lastLineUpStamp);
+            queueFrame(message);
+            userKey.onLineDown(message);
+            stopMonitoringLineUpMessage();
+        }
+        if ((actions & CWPStateMachine.SPLIT_LINE_UP) != 0) {
+            handleLongLineUpMessage();
+            startMonitoringLineUpMessage();
+        }
+        if ((actions & CWPStateMachine.SEND_FREQUENCY) != 0) {
+            if (!frequencies.canSend()) {
+                frequencies.held();     // the echo or the timeout sends the latest frequency
+                CWPLog.d(TAG, "Frequency " + currentFrequency + " waits for " + frequencies.inFlight());
+            } else if (sendFrequency() && isConnected()) {
+                awaitFrequencyEcho(clock.nanoTime());
+            }
+        }
+        if ((actions & CWPStateMachine.EMIT_CONNECTED) != 0) {
+            listeners.publish(CWProtocolListener.CWPEvent.EConnected, 0, clockNanos);
+        }
+        if ((actions & CWPStateMachine.EMIT_CHANGED_FREQUENCY) != 0) {
+            if (readyPending) {
+                EventLogger.logDuration(EventLogger.ready, clockNanos - connectRequestedAt);
+                readyPending = false;
+                frequencies.cancelChange();
+            } else {
+                long changeNanos = frequencies.confirmed(clockNanos);
+                if (changeNanos >= 0) {
+                    EventLogger.logDuration(EventLogger.frequencyChange, changeNanos);
+                }
+            }
+            listeners.publish(CWProtocolListener.CWPEvent.EChangedFrequency, Math.abs(value), clockNanos);
+        }
+        if ((actions & CWPStateMachine.EMIT_LINE_DOWN) != 0) {
+            listeners.publish(CWProtocolListener.CWPEvent.ELineDown, value, clockNanos);
+        }
+        if ((actions & CWPStateMachine.EMIT_LINE_UP) != 0) {
+            listeners.publish(CWProtocolListener.CWPEvent.ELineUp, value, clockNanos);
+        }
+        if ((actions & CWPStateMachine.EMIT_DISCONNECTED) != 0) {
+            listeners.publish(CWProtocolListener.CWPEvent.EDisconnected, value, clockNanos);
+        }
+        if ((actions & CWPStateMachine.EMIT_SERVER_STATE_CHANGE) != 0) {
+            listeners.publish(CWProtocolListener.CWPEvent.EServerStateChange, value, clockNanos);
+        }
+    }
+
+    private void handleLongLineUpMessage() {
+        // Split at the deadline itself, so the wire values do not depend on how late the timer ran.
+        CWPLog.d(MONITORTAG, "Sending LineDown Signal");
+        short lineDownMessage = (short) toMillis(LONG_LINE_UP_NANOS);
+        CWPLog.d(MONITORTAG, "Line Down message: " + lineDownMessage);
+        queueFrame(lineDownMessage);
+        CWPLog.d(MONITORTAG, "Sending LineUp Signal");
+        lastLineUpStamp += LONG_LINE_UP_NANOS;
+        int lineUpMessage = lineUpOffset();
+        CWPLog.d(MONITORTAG, "Line Up message: " + lineUpMessage);
+        queueFrame(lineUpMessage);
+    }
+
+    // Milliseconds since the connection was made. An int of 0 is not a LineUp on the wire, so a line up
+    // in the connection's first millisecond goes out as 1.
+    private int lineUpOffset() {
+        return (int) Math.max(1, toMillis(lastLineUpStamp - connectedStamp));
+    }
+
+    private void startMonitoringLineUpMessage() {
+        timers.scheduleAt(longLineUpTimeout, lastLineUpStamp + LONG_LINE_UP_NANOS);
+    }
+
+    private void stopMonitoringLineUpMessage() {
+        timers.cancel(longLineUpTimeout);
+    }
+
+    // Frames of one connection, handed from the transport thread to the event thread through an SPSC ring.
+    // The frames of one read are posted once and their events published as one batch. Connected and
+    // Disconnected come outside reads and are posted right away. Frames of a connection that connect()
+    // has replaced meanwhile are dropped.
+    private class InboundFrames implements CWPFrameDecoder.FrameListener, Runnable {
+        private static final int INBOUND_CAPACITY = 4096;
+        private final CWPFrameQueue inbound = new CWPFrameQueue(INBOUND_CAPACITY, CWPFrameQueue.OverflowPolicy.DropNewest);
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private final int generation;
+
+        InboundFrames(int generation) {
+            this.generation = generation;
+        }
+
+        // transport thread
+        @Override
+        public void onFrame(CWPState state, int value) {
+            EventLogger.logEventStarted(EventLogger.serverEvent);
+            if (!inbound.offer(state.ordinal(), value)) {
+                CWPLog.d(TAG, "Inbound queue is full, dropped " + state + " message : " + value);
+            }
+            if (state == CWPState.Connected || state == CWPState.Disconnected) {
+                post();
+            }
+        }
+
+        // transport thread
+        @Override
+        public void onReadEnd() {
+            post();
+        }
+
+        private void post() {
+            if (!scheduled.getAndSet(true)) {
+                eventExecutor.execute(this);
+            }
+        }
+
+        // event thread
+        @Override
+        public void run() {
+            scheduled.set(false);
+            long frame;
+            while ((frame = inbound.poll()) != CWPFrameQueue.EMPTY) {
+                if (generation == connection) {
+                    processStateChange(STATES[CWPFrameQueue.tag(frame)], CWPFrameQueue.value(frame));
+                }
+            }
+            listeners.endBatch();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package esde06.tol.oulu.fi.morse;
+
+// International Morse code table shared by the decoder and the keyer.
+// A code is the character's elements as bits behind a leading 1, dit 0 and dah 1, so "A" (.-) is 0b101.
+public final class MorseCode {
+
+    public static final int MAX_ELEMENTS = 7;
+
+    private static final char[] CHARACTERS = new char[2 << MAX_ELEMENTS];
+    private static final String[] PATTERNS = new String[128];
+
+    static {
+        String[] table = {
+                "A.-", "B-...", "C-.-.", "D-..", "E.", "F..-.", "G--.", "H....", "I..", "J.---",
+                "K-.-", "L.-..", "M--", "N-.", "O---", "P.--.", "Q--.-", "R.-.", "S...", "T-",
+                "U..-", "V...-", "W.--", "X-..-", "Y-.--", "Z--..",
+                "0-----", "1.----", "2..---", "3...--", "4....-", "55....", "6-....", "7--...",
+                "8---..", "9----.",
+                "..-.-.-", ",--..--", "?..--..", "'.----.", "!-.-.--", "/-..-.", "(-.--.", ")-.--.-",
+                "&.-...", ":---...", ";-.-.-.", "=-...-", "+.-.-.", "--....-", "_..--.-", "\".-..-.",
+                "$...-..-", "@.--.-."
+        };
+        for (String entry : table) {
+            String pattern = entry.substring(1);
+            int code = 1;
+            for (int i = 0; i < pattern.length(); i++) {
+                code = (code << 1) | (pattern.charAt(i) == '-' ? 1 : 0);
+            }
+            CHARACTERS[code] = entry.charAt(0);
+            PATTERNS[entry.charAt(0)] = pattern;
+        }
+    }
+
+    private MorseCode() {
+    }
+
+    // Character for a code, or 0 when the code is not in the table.
+    public static char character(int code) {
+        return code > 0 && code < CHARACTERS.length ? CHARACTERS[code] : 0;
+    }
+
+    // Dits and dahs for a character, e.g. ".-" for 'a', or null when it has no Morse code.
+    public static String pattern(char character) {
+        char upper = Character.toUpperCase(character);
+        return upper < PATTERNS.length ? PATTERNS[upper] : null;
+    }
+}
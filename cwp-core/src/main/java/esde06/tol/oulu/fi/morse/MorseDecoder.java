@@ -0,0 +1,207 @@
+package esde06.tol.oulu.fi.morse;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import esde06.tol.oulu.fi.cwprotocol.CWPClock;
+import esde06.tol.oulu.fi.cwprotocol.CWPKeyListener;
+import esde06.tol.oulu.fi.cwprotocol.CWPTimerWheel;
+
+// Streaming Morse decoder for one key, fed with line timing from the protocol.
+// Marks are split into dits and dahs at twice the shortest of the last few marks, which follows a
+// sudden change of speed within a character or two. The dit length itself is a moving average of
+// classified marks and element gaps. Gaps of two dits end a character and gaps of five dits a word.
+// A character is emitted as soon as the gap after it is long enough: on the next line up, or from
+// idle() when the caller knows time has passed without one. Given a timer wheel, the decoder calls idle()
+// itself once the line has stayed down for a character gap, and again for a word gap. Elements are
+// collected as bits behind a leading sentinel bit and looked up in MorseCode, so decoding does not allocate.
+// Not thread-safe, use one instance per key on one thread.
+public class MorseDecoder implements CWPKeyListener {
+
+    public interface Listener {
+        void onCharacter(MorseDecoder decoder, char character);
+    }
+
+    public static final int DEFAULT_WPM = 20;
+    public static final char UNKNOWN = '*';
+
+    private static final int MILLIS_PER_DIT_AT_1_WPM = 1200;  // PARIS, 50 dits per word
+    private static final int MAX_ELEMENTS = MorseCode.MAX_ELEMENTS;
+    private static final int RECENT_MARKS = 8;  // power of two
+    private static final float ADAPTATION = 0.3f;
+    private static final float MIN_DIT_MILLIS = 2f;
+    private static final float MAX_DIT_MILLIS = 1500f;
+    private static final long NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Listener listener;
+    private final int[] recentMarks = new int[RECENT_MARKS];
+    private int markCount = 0;
+    private float ditMillis;
+    private int code = 1;
+    private int elements = 0;
+    private boolean wordEnded = true;  // no space before the first character
+    private boolean markEnded = false;
+    private int lineUpOffset = 0;
+    private int markEndOffset = 0;
+
+    // Idle timer, null without a wheel.
+    private final CWPClock clock;
+    private final CWPTimerWheel timers;
+    private final CWPTimerWheel.Timeout idleTimeout;
+    private long lineDownAt = 0;        // clock nanos
+    private boolean idleArmed = false;  // the line is down and the gap after it not yet spaced out
+
+    public MorseDecoder(Listener listener) {
+        this(listener, DEFAULT_WPM);
+    }
+
+    public MorseDecoder(Listener listener, int initialWpm) {
+        this.listener = listener;
+        this.ditMillis = MILLIS_PER_DIT_AT_1_WPM / (float) initialWpm;
+        this.clock = null;
+        this.timers = null;
+        this.idleTimeout = null;
+    }
+
+    // The wheel fires on its own thread, the check runs on owner, the thread that feeds the key events.
+    public MorseDecoder(Listener listener, int initialWpm, CWPClock clock, CWPTimerWheel timers,
+                        final Executor owner) {
+        this.listener = listener;
+        this.ditMillis = MILLIS_PER_DIT_AT_1_WPM / (float) initialWpm;
+        this.clock = clock;
+        this.timers = timers;
+        final Runnable idleCheck = new Runnable() {
+            @Override
+            public void run() {
+                idleTimedOut();
+            }
+        };
+        this.idleTimeout = timers.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                owner.execute(idleCheck);
+            }
+        });
+    }
+
+    public float ditMillis() {
+        return ditMillis;
+    }
+
+    public int wpm() {
+        return Math.round(MILLIS_PER_DIT_AT_1_WPM / ditMillis);
+    }
+
+    @Override
+    public void onLineUp(int offsetMillis) {
+        if (timers != null) {
+            idleArmed = false;
+            timers.cancel(idleTimeout);
+        }
+        if (markEnded) {
+            space(offsetMillis - markEndOffset);
+        }
+        lineUpOffset = offsetMillis;
+    }
+
+    @Override
+    public void onLineDown(int durationMillis) {
+        mark(durationMillis);
+        markEndOffset = lineUpOffset + durationMillis;
+        markEnded = true;
+        if (timers != null) {
+            lineDownAt = clock.nanoTime();
+            idleArmed = true;
+            armIdle(2);
+        }
+    }
+
+    private void armIdle(int dits) {
+        timers.scheduleAt(idleTimeout, lineDownAt + (long) Math.ceil(dits * ditMillis) * NANOS_PER_MILLI);
+    }
+
+    // owner thread, after a character gap and then a word gap without a line up
+    private void idleTimedOut() {
+        if (!idleArmed) {
+            return;  // a line up got here first
+        }
+        int gapMillis = (int) ((clock.nanoTime() - lineDownAt) / NANOS_PER_MILLI);
+        if (gapMillis < 2 * ditMillis) {
+            armIdle(2);
+            return;
+        }
+        idle(gapMillis);
+        if (wordEnded) {
+            idleArmed = false;
+        } else {
+            armIdle(5);
+        }
+    }
+
+    // Lets a pending character or word space out when the line has stayed down for gapMillis.
+    public void idle(int gapMillis) {
+        space(gapMillis);
+    }
+
+    // Drops any partly keyed character, e.g. after a disconnect.
+    public void reset() {
+        if (timers != null) {
+            idleArmed = false;
+            timers.cancel(idleTimeout);
+        }
+        code = 1;
+        elements = 0;
+        wordEnded = true;
+        markEnded = false;
+    }
+
+    // Dah threshold: twice the shortest recent mark when both dits and dahs are in view,
+    // otherwise twice the current dit estimate.
+    private float dahThreshold() {
+        int filled = Math.min(markCount, RECENT_MARKS);
+        if (filled < 2) {
+            return 2 * ditMillis;
+        }
+        int shortest = Integer.MAX_VALUE;
+        int longest = 0;
+        for (int i = 0; i < filled; i++) {
+            shortest = Math.min(shortest, recentMarks[i]);
+            longest = Math.max(longest, recentMarks[i]);
+        }
+        return longest >= 2 * shortest ? 2 * shortest : 2 * ditMillis;
+    }
+
+    private void adapt(float sample) {
+        ditMillis += ADAPTATION * (sample - ditMillis);
+        ditMillis = Math.max(MIN_DIT_MILLIS, Math.min(MAX_DIT_MILLIS, ditMillis));
+    }
+
+    private void mark(int durationMillis) {
+        recentMarks[markCount++ & (RECENT_MARKS - 1)] = Math.max(1, durationMillis);
+        boolean dah = durationMillis >= dahThreshold();
+        // A dah pulls the estimate by at most three dits, so a held line does not wreck it.
+        adapt(dah ? Math.min(durationMillis / 3f, 3 * ditMillis) : durationMillis);
+        if (elements < MAX_ELEMENTS) {
+            code = (code << 1) | (dah ? 1 : 0);
+        }
+        elements++;
+    }
+
+    private void space(int gapMillis) {
+        if (gapMillis < 2 * ditMillis && elements > 0) {
+            adapt(gapMillis);  // gap inside a character, nominally one dit
+            return;
+        }
+        if (gapMillis >= 2 * ditMillis && elements > 0) {
+            char character = elements <= MAX_ELEMENTS ? MorseCode.character(code) : 0;
+            code = 1;
+            elements = 0;
+            wordEnded = false;
+            listener.onCharacter(this, character == 0 ? UNKNOWN : character);
+        }
+        if (gapMillis >= 5 * ditMillis && !wordEnded) {
+            wordEnded = true;
+            listener.onCharacter(this, ' ');
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package esde06.tol.oulu.fi.morse;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import esde06.tol.oulu.fi.cwprotocol.CWPClock;
+import esde06.tol.oulu.fi.cwprotocol.CWPLog;
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation;
+
+// Keys text as Morse code through the protocol.
+// Each text becomes a schedule of line up and line down instants relative to its start. The keyer
+// thread parks until an instant is close, yields through the last stretch, and then releases it to the
+// protocol thread, which keys the line at the scheduled instant. Wire values come from the schedule,
+// so late wake-ups from GC or a busy protocol thread move when a frame is sent, never what it says,
+// and the absolute deadlines keep long texts from drifting.
+public class MorseKeyer {
+
+    private static final String TAG = "MorseKeyer";
+    private static final long NANOS_PER_DIT_AT_1_WPM = TimeUnit.MILLISECONDS.toNanos(1200);
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private final CWProtocolImplementation protocol;
+    private final Executor protocolExecutor;
+    private final CWPClock clock;
+    private final BlockingQueue<Message> messages = new LinkedBlockingQueue<Message>();
+    private volatile Message current;
+    private Thread keyerThread;
+
+    // protocolExecutor must be the thread that owns the protocol state.
+    public MorseKeyer(CWProtocolImplementation protocol, Executor protocolExecutor) {
+        this.protocol = protocol;
+        this.protocolExecutor = protocolExecutor;
+        this.clock = protocol.clock();
+    }
+
+    // Line up and line down offsets in nanoseconds from the start of the text, alternating and
+    // starting with line up. The last entry is where the text ends, a word gap after the last mark.
+    // Characters without Morse code are skipped, whitespace is a word gap.
+    public static long[] schedule(String text, int wpm) {
+        if (wpm <= 0) {
+            throw new IllegalArgumentException("wpm must be positive: " + wpm);
+        }
+        long dit = NANOS_PER_DIT_AT_1_WPM / wpm;
+        long[] schedule = new long[text.length() * 2 * MorseCode.MAX_ELEMENTS + 1];
+        int count = 0;
+        long at = 0;
+        int gap = -1;  // dits before the next mark, none before the first
+        for (int i = 0; i < text.length(); i++) {
+            char character = text.charAt(i);
+            if (Character.isWhitespace(character)) {
+                gap = gap < 0 ? gap : 7;
+                continue;
+            }
+            String pattern = MorseCode.pattern(character);
+            if (pattern == null) {
+                continue;
+            }
+            if (gap > 0) {
+                at += gap * dit;
+            }
+            for (int e = 0; e < pattern.length(); e++) {
+                if (e > 0) {
+                    at += dit;
+                }
+                schedule[count++] = at;
+                at += (pattern.charAt(e) == '-' ? 3 : 1) * dit;
+                schedule[count++] = at;
+            }
+            gap = 3;
+        }
+        long end = count > 0 ? at + 7 * dit : 0;
+        schedule[count++] = end;
+        return Arrays.copyOf(schedule, count);
+    }
+
+    public synchronized void send(String text, int wpm) {
+        messages.add(new Message(schedule(text, wpm)));
+        if (keyerThread == null) {
+            keyerThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    keyMessages();
+                }
+            }, "CWPKeyer");
+            keyerThread.setDaemon(true);
+            keyerThread.start();
+        }
+    }
+
+    // The text stops on the protocol thread, in line with whatever the caller posts there next, so a
+    // line the text left up goes down before a user's own line up and never after it.
+    public synchronized void cancel() {
+        messages.clear();
+        final Message message = current;
+        if (message != null) {
+            message.cancelled = true;
+            LockSupport.unpark(keyerThread);
+            protocolExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    message.stop();
+                }
+            });
+        }
+    }
+
+    // Cancels the text and ends the keyer thread, a later send() starts a new one.
+    public synchronized void shutdown() {
+        cancel();
+        if (keyerThread != null) {
+            keyerThread.interrupt();
+            keyerThread = null;
+        }
+    }
+
+    public boolean isSending() {
+        return current != null || !messages.isEmpty();
+    }
+
+    // keyer thread
+    private void keyMessages() {
+        while (true) {
+            Message message;
+            try {
+                message = messages.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            current = message;
+            key(message);
+            current = null;
+        }
+    }
+
+    private void key(Message message) {
+        long[] schedule = message.schedule;
+        long start = clock.nanoTime();
+        message.start = start;
+        int marks = schedule.length - 1;
+        for (int i = 0; i < marks; i++) {
+            if (!waitUntil(start + schedule[i], message)) {
+                CWPLog.d(TAG, "Text cancelled");
+                return;
+            }
+            message.release(i + 1);
+        }
+        waitUntil(start + schedule[marks], message);
+    }
+
+    // Parks until just before the deadline, then yields up to it. False when cancelled first.
+    private boolean waitUntil(long deadline, Message message) {
+        long remaining;
+        while ((remaining = deadline - clock.nanoTime()) > 0) {
+            if (message.cancelled) {
+                return false;
+            }
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            } else {
+                Thread.yield();
+            }
+        }
+        return !message.cancelled;
+    }
+
+    // One text on its way out. The keyer thread releases schedule entries, the protocol thread applies
+    // them in order, posted the same way inbound frames are.
+    private final class Message implements Runnable {
+        final long[] schedule;
+        final AtomicInteger released = new AtomicInteger(0);
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+        volatile long start;
+        volatile boolean cancelled = false;
+        int applied = 0;            // protocol thread
+        boolean stopped = false;    // protocol thread
+
+        Message(long[] schedule) {
+            this.schedule = schedule;
+        }
+
+        // keyer thread
+        void release(int count) {
+            released.set(count);
+            if (!scheduled.getAndSet(true)) {
+                protocolExecutor.execute(this);
+            }
+        }
+
+        // protocol thread, entries released after this are dropped
+        void stop() {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+            if (applied % 2 == 1) {
+                protocol.lineDown();  // let go of a line left up
+            }
+        }
+
+        // protocol thread
+        @Override
+        public void run() {
+            scheduled.set(false);
+            if (stopped) {
+                return;
+            }
+            int due = released.get();
+            while (applied < due) {
+                long at = start + schedule[applied];
+                if (applied % 2 == 0) {
+                    protocol.lineUpAt(at);
+                } else {
+                    protocol.lineDownAt(at);
+                }
+                applied++;
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package esde06.tol.oulu.fi.sidetone;
+
+import esde06.tol.oulu.fi.cwprotocol.CWPClock;
+import esde06.tol.oulu.fi.cwprotocol.CWPHistogram;
+import esde06.tol.oulu.fi.cwprotocol.CWPLog;
+
+// Keyed sidetone engine. One render thread keeps the sink fed with silence while the key is up, so
+// the device stays primed and a key-down is heard after at most one block plus the device buffer.
+// keyDown() and keyUp() only flip volatile flags and are safe from any thread.
+public class Sidetone implements Runnable {
+
+    private static final String TAG = "Sidetone";
+
+    private final SidetoneSink sink;
+    private final SidetoneSynthesizer synthesizer;
+    private final CWPClock clock;
+    private final short[] block;
+    // Time from keyDown() until the first tone samples are handed to the sink, in nanoseconds.
+    private final CWPHistogram keyLatency = new CWPHistogram();
+
+    private volatile boolean keyDown = false;
+    // Latches a press so a tap shorter than one block still sounds.
+    private volatile boolean pressed = false;
+    private volatile long keyDownStamp;
+    private volatile boolean running = false;
+    private Thread renderThread;
+
+    public Sidetone(SidetoneSink sink) {
+        this(sink, new SidetoneSynthesizer(sink.sampleRate()), CWPClock.SYSTEM);
+    }
+
+    public Sidetone(SidetoneSink sink, SidetoneSynthesizer synthesizer, CWPClock clock) {
+        this.sink = sink;
+        this.synthesizer = synthesizer;
+        this.clock = clock;
+        this.block = new short[sink.blockSize()];
+    }
+
+    public void keyDown() {
+        if (!keyDown) {
+            keyDownStamp = clock.nanoTime();
+            pressed = true;
+            keyDown = true;
+        }
+    }
+
+    public void keyUp() {
+        keyDown = false;
+    }
+
+    // Volume is 0 - 1.
+    public void setVolume(float volume) {
+        synthesizer.setVolume(volume);
+    }
+
+    public CWPHistogram keyLatency() {
+        return keyLatency;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        renderThread = new Thread(this, "CWPSidetone");
+        renderThread.setDaemon(true);
+        renderThread.start();
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        keyDown = false;
+        try {
+            renderThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        renderThread = null;
+        CWPLog.d(TAG, "Key to tone (ms) " + keyLatency.summary(1000000.0));
+    }
+
+    @Override
+    public void run() {
+        sink.open();
+        try {
+            while (running) {
+                pump();
+            }
+        } finally {
+            sink.close();
+        }
+    }
+
+    // Renders and writes one block. Called by the render thread, or directly when the sink does not block.
+    public void pump() {
+        boolean down = keyDown;
+        if (pressed) {
+            pressed = false;
+            down = true;
+        }
+        boolean startsTone = down && synthesizer.isSilent();
+        synthesizer.render(block, 0, block.length, down);
+        if (startsTone) {
+            keyLatency.record(clock.nanoTime() - keyDownStamp);
+        }
+        sink.write(block, 0, block.length);
+    }
+}
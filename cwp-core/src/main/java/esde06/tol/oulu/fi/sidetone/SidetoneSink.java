@@ -0,0 +1,18 @@
+package esde06.tol.oulu.fi.sidetone;
+
+// Destination for rendered sidetone PCM, mono 16-bit.
+// open(), write() and close() are called from the sidetone render thread only. write() is expected to
+// block while the device buffer is full, which is what paces the render loop.
+public interface SidetoneSink {
+
+    int sampleRate();
+
+    // Samples handed to write() at a time, smaller blocks react to the key sooner.
+    int blockSize();
+
+    void open();
+
+    void write(short[] samples, int offset, int length);
+
+    void close();
+}
@@ -0,0 +1,110 @@
+package esde06.tol.oulu.fi.sidetone;
+
+import java.util.Arrays;
+
+// Renders a keyed sine tone into 16-bit PCM without allocating.
+// The sine is pre-rendered at the current volume as a table holding a whole number of cycles, so the
+// sustained tone is plain array copies. Key transitions run through a raised-cosine ramp, which keeps
+// the tone free of clicks; releasing the key mid-attack ramps down from wherever the attack got to.
+// Not thread-safe except for setVolume(), render() belongs to one audio thread.
+public class SidetoneSynthesizer {
+
+    public static final int DEFAULT_FREQUENCY_HZ = 700;
+    public static final float DEFAULT_RAMP_MILLIS = 5f;
+
+    private final int sampleRate;
+    private final int frequency;
+    private final float[] ramp;
+    private volatile short[] sine;
+    private int phase = 0;
+    private int envelope = 0;  // position on the ramp, 0 is silence and ramp.length full level
+
+    public SidetoneSynthesizer(int sampleRate) {
+        this(sampleRate, DEFAULT_FREQUENCY_HZ, DEFAULT_RAMP_MILLIS);
+    }
+
+    public SidetoneSynthesizer(int sampleRate, int frequency, float rampMillis) {
+        if (sampleRate <= 0 || frequency <= 0 || frequency * 2 > sampleRate) {
+            throw new IllegalArgumentException("Unusable tone " + frequency + " Hz at " + sampleRate + " Hz");
+        }
+        this.sampleRate = sampleRate;
+        this.frequency = frequency;
+        int rampSamples = Math.max(1, Math.round(rampMillis * sampleRate / 1000f));
+        ramp = new float[rampSamples];
+        for (int i = 0; i < rampSamples; i++) {
+            ramp[i] = (float) (0.5 - 0.5 * Math.cos(Math.PI * (i + 1) / rampSamples));
+        }
+        setVolume(1f);
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    // Volume is 0 - 1, the table is re-rendered so the next render() picks it up as a whole.
+    public void setVolume(float volume) {
+        float level = Math.max(0f, Math.min(1f, volume)) * Short.MAX_VALUE;
+        int divisor = gcd(sampleRate, frequency);
+        int length = sampleRate / divisor;  // holds frequency / divisor whole cycles
+        short[] table = new short[length];
+        for (int i = 0; i < length; i++) {
+            table[i] = (short) Math.round(level * Math.sin(2 * Math.PI * frequency * (double) i / sampleRate));
+        }
+        sine = table;
+    }
+
+    public int sampleRate() {
+        return sampleRate;
+    }
+
+    public int frequency() {
+        return frequency;
+    }
+
+    public int rampSamples() {
+        return ramp.length;
+    }
+
+    public boolean isSilent() {
+        return envelope == 0;
+    }
+
+    // Fills length samples for the given key state, carrying phase and envelope over to the next call.
+    public void render(short[] out, int offset, int length, boolean keyDown) {
+        short[] table = sine;
+        int end = offset + length;
+        int i = offset;
+        if (!keyDown && envelope == 0) {
+            phase = 0;  // every tone starts at a zero crossing
+            Arrays.fill(out, offset, end, (short) 0);
+            return;
+        }
+        while (i < end) {
+            if (keyDown && envelope == ramp.length) {
+                int chunk = Math.min(end - i, table.length - phase);
+                System.arraycopy(table, phase, out, i, chunk);
+                i += chunk;
+                phase = (phase + chunk) % table.length;
+                continue;
+            }
+            if (!keyDown && envelope == 0) {
+                phase = 0;
+                Arrays.fill(out, i, end, (short) 0);
+                return;
+            }
+            float level = keyDown ? ramp[envelope++] : ramp[--envelope];
+            if (!keyDown && envelope == 0) {
+                level = 0f;
+            }
+            out[i++] = (short) (table[phase] * level);
+            if (++phase == table.length) {
+                phase = 0;
+            }
+        }
+    }
+}
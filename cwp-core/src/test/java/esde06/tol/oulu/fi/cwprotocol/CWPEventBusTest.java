@@ -0,0 +1,152 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation.CWPState;
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolListener.CWPEvent;
+
+public class CWPEventBusTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    // Copies every batch it gets, the bus reuses them.
+    private static final class Recorder implements CWPBatchListener {
+        final List<List<String>> batches = new ArrayList<List<String>>();
+
+        @Override
+        public void onEvents(CWPEventBatch batch) {
+            List<String> copy = new ArrayList<String>();
+            for (int i = 0; i < batch.size(); i++) {
+                copy.add(batch.event(i) + " " + batch.param(i) + " @" + batch.timestamp(i));
+            }
+            batches.add(copy);
+        }
+    }
+
+    private static final class ManualExecutor implements Executor {
+        final List<Runnable> posted = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            posted.add(command);
+        }
+
+        void runAll() {
+            List<Runnable> tasks = new ArrayList<Runnable>(posted);
+            posted.clear();
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        }
+    }
+
+    @Test
+    public void framesOfOneReadArriveAsOneBatch() {
+        final CWPVirtualClock clock = new CWPVirtualClock();
+        final CWPFrameDecoder decoder = new CWPFrameDecoder();
+        final CWPFrameDecoder.FrameListener[] inbound = new CWPFrameDecoder.FrameListener[1];
+        CWProtocolImplementation protocol = new CWProtocolImplementation(null, DIRECT, clock,
+                CWPTimerWheel.driven(clock));
+        protocol.setTransport(new CWPTransport() {
+            @Override
+            public void open(String serverAddress, int serverPort, CWPFrameQueue outbound,
+                             CWPFrameDecoder.FrameListener listener) {
+                inbound[0] = listener;
+                listener.onFrame(CWPState.Connected, 0);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public CWPWriteStats writeStats() {
+                return new CWPWriteStats();
+            }
+        });
+        Recorder recorder = new Recorder();
+        protocol.addBatchListener(recorder);
+
+        clock.advance(1, TimeUnit.MILLISECONDS);
+        protocol.connect("bus", 0, 1);
+        clock.advance(1, TimeUnit.MILLISECONDS);
+        read(decoder, inbound[0], ByteBuffer.allocate(4).putInt(-1));
+        clock.advance(1, TimeUnit.MILLISECONDS);
+        read(decoder, inbound[0], ByteBuffer.allocate(12).putInt(1000).putShort((short) 120).putInt(2000)
+                .putShort((short) 80));
+        long tappedAt = clock.nanoTime();
+        clock.advance(5, TimeUnit.MILLISECONDS);
+        protocol.lineUpAt(tappedAt);
+
+        assertEquals(4, recorder.batches.size());
+        assertEquals("[EConnected 0 @1000000]", recorder.batches.get(0).toString());
+        assertEquals("[EChangedFrequency 1 @2000000, ELineDown -1 @2000000]", recorder.batches.get(1).toString());
+        assertEquals("[ELineUp 1000 @3000000, ELineDown 120 @3000000, ELineUp 2000 @3000000, ELineDown 80 @3000000]",
+                recorder.batches.get(2).toString());
+        assertEquals("[ELineUp 0 @3000000]", recorder.batches.get(3).toString());
+    }
+
+    private static void read(CWPFrameDecoder decoder, CWPFrameDecoder.FrameListener listener, ByteBuffer bytes) {
+        bytes.flip();
+        decoder.buffer().put(bytes);
+        decoder.decode(listener);
+    }
+
+    @Test
+    public void queuedListenerGetsOnePostForBatchesItHasNotRunYet() {
+        CWPEventBus bus = new CWPEventBus();
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        bus.addBatchListener(recorder, CWPDelivery.ordered(executor));
+
+        bus.publish(CWPEvent.ELineUp, 1000, 10);
+        bus.publish(CWPEvent.ELineDown, 120, 10);
+        assertEquals(0, executor.posted.size());
+        bus.endBatch();
+        bus.publish(CWPEvent.ELineUp, 2000, 20);
+        bus.endBatch();
+        bus.publish(CWPEvent.ELineDown, 80, 30);
+        assertEquals(1, executor.posted.size());
+
+        executor.runAll();
+        assertEquals(1, recorder.batches.size());
+        assertEquals("[ELineUp 1000 @10, ELineDown 120 @10, ELineUp 2000 @20]", recorder.batches.get(0).toString());
+
+        bus.endBatch();
+        executor.runAll();
+        assertEquals("[ELineDown 80 @30]", recorder.batches.get(1).toString());
+
+        bus.removeBatchListener(recorder);
+        bus.publish(CWPEvent.ELineUp, 3000, 40);
+        bus.endBatch();
+        executor.runAll();
+        assertEquals(2, recorder.batches.size());
+    }
+
+    @Test
+    public void lastLineEventDecidesTheLineState() {
+        CWPEventBatch batch = new CWPEventBatch(8);
+        assertEquals(-1, batch.lastLineEvent());
+        batch.add(CWPEvent.ELineUp.ordinal(), 1000, 0);
+        batch.add(CWPEvent.ELineDown.ordinal(), 120, 0);
+        batch.add(CWPEvent.EDisconnected.ordinal(), 0, 0);
+        assertEquals(1, batch.lastLineEvent());
+    }
+}
@@ -0,0 +1,143 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class CWPEventLoopTest {
+
+    private CWPEventLoop loop;
+
+    @After
+    public void tearDown() {
+        if (loop != null) {
+            loop.shutdown();
+        }
+    }
+
+    @Test
+    public void producersLoseNothingAndKeepTheirOrder() throws Exception {
+        final int producers = 8;
+        final int perProducer = 50000;
+        // a small ring, so producers wrap it many times and find it full
+        loop = CWPEventLoop.start("CWPEventLoopTest", 64);
+        final long[] last = new long[producers];       // loop thread
+        final int[] outOfOrder = new int[1];
+        final int[] received = new int[1];
+        for (int p = 0; p < producers; p++) {
+            last[p] = -1;
+        }
+        final CWPEventLoop.CommandHandler handler = new CWPEventLoop.CommandHandler() {
+            @Override
+            public void onCommand(int producer, long sequence) {
+                if (sequence != last[producer] + 1) {
+                    outOfOrder[0]++;
+                }
+                last[producer] = sequence;
+                received[0]++;
+            }
+        };
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        loop.command(handler, producer, i);
+                    }
+                }
+            });
+            threads[p].setDaemon(true);
+            threads[p].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            // a loop that misses a wake-up leaves producers spinning on a full ring
+            thread.join(TimeUnit.SECONDS.toMillis(20));
+            assertFalse(thread.isAlive());
+        }
+        final CountDownLatch drained = new CountDownLatch(1);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                drained.countDown();
+            }
+        });
+        assertTrue(drained.await(10, TimeUnit.SECONDS));
+
+        assertEquals(0, outOfOrder[0]);
+        assertEquals(producers * perProducer, received[0]);
+        for (int p = 0; p < producers; p++) {
+            assertEquals(perProducer - 1, last[p]);
+        }
+    }
+
+    @Test
+    public void parkedLoopWakesForTheNextTask() throws Exception {
+        loop = CWPEventLoop.start("CWPEventLoopPark");
+        Thread thread = findThread("CWPEventLoopPark");
+        assertNotNull(thread);
+        final AtomicInteger ran = new AtomicInteger(0);
+        for (int round = 1; round <= 200; round++) {
+            waitUntilParked(thread);
+            final CountDownLatch done = new CountDownLatch(1);
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ran.incrementAndGet();
+                    done.countDown();
+                }
+            });
+            assertTrue("round " + round, done.await(1, TimeUnit.SECONDS));
+        }
+        assertEquals(200, ran.get());
+    }
+
+    @Test
+    public void tasksQueuedBeforeShutdownStillRun() throws Exception {
+        loop = CWPEventLoop.start("CWPEventLoopShutdown");
+        final CountDownLatch ran = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ran.countDown();
+                }
+            });
+        }
+        loop.shutdown();
+        assertTrue(ran.await(1, TimeUnit.SECONDS));
+    }
+
+    private static Thread findThread(String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(name)) {
+                return thread;
+            }
+        }
+        return null;
+    }
+
+    private static void waitUntilParked(Thread thread) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (thread.getState() != Thread.State.WAITING) {
+            assertTrue("loop never parked", System.nanoTime() < deadline);
+            Thread.sleep(0, 100000);
+        }
+    }
+}
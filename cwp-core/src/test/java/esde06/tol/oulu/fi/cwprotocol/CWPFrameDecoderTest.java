@@ -0,0 +1,125 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation.CWPState;
+
+public class CWPFrameDecoderTest implements CWPFrameDecoder.FrameListener {
+
+    private final CWPFrameDecoder decoder = new CWPFrameDecoder(64);
+    private final List<String> frames = new ArrayList<String>();
+    private int readEnds = 0;
+
+    @Override
+    public void onFrame(CWPState state, int value) {
+        frames.add(state + " " + value);
+    }
+
+    @Override
+    public void onReadEnd() {
+        readEnds++;
+    }
+
+    // A frequency echo, two line pairs and a line pair held for the longest a short can say.
+    private static byte[] stream() {
+        ByteBuffer stream = ByteBuffer.allocate(32);
+        stream.putInt(-5);
+        stream.putInt(1200).putShort((short) 60);
+        stream.putInt(Integer.MAX_VALUE).putShort(Short.MAX_VALUE);
+        stream.putInt(1500).putShort((short) 0);
+        return Arrays.copyOf(stream.array(), stream.position());
+    }
+
+    private static final List<String> EXPECTED = Arrays.asList(
+            "LineDown -5", "LineUp 1200", "LineDown 60",
+            "LineUp 2147483647", "LineDown 32767", "LineUp 1500", "LineDown 0");
+
+    private void feed(byte[] bytes, int from, int to) {
+        decoder.buffer().put(bytes, from, to - from);
+        decoder.decode(this);
+    }
+
+    @Test
+    public void wholeStreamInOneRead() {
+        byte[] bytes = stream();
+        feed(bytes, 0, bytes.length);
+        assertEquals(EXPECTED, frames);
+        assertEquals(1, readEnds);
+        assertFalse(decoder.expectsShort());
+    }
+
+    @Test
+    public void streamSplitAtEveryByteOffset() {
+        byte[] bytes = stream();
+        for (int split = 0; split <= bytes.length; split++) {
+            decoder.reset();
+            frames.clear();
+            feed(bytes, 0, split);
+            feed(bytes, split, bytes.length);
+            assertEquals("split at " + split, EXPECTED, frames);
+        }
+    }
+
+    @Test
+    public void streamFedOneByteAtATime() {
+        byte[] bytes = stream();
+        for (int i = 0; i < bytes.length; i++) {
+            feed(bytes, i, i + 1);
+        }
+        assertEquals(EXPECTED, frames);
+        assertEquals(EXPECTED.size(), readEnds);
+    }
+
+    @Test
+    public void shortIsExpectedAcrossReads() {
+        ByteBuffer pair = ByteBuffer.allocate(6).putInt(1200).putShort((short) 60);
+        byte[] bytes = pair.array();
+        feed(bytes, 0, 4);
+        assertEquals(Arrays.asList("LineUp 1200"), frames);
+        assertTrue(decoder.expectsShort());
+        feed(bytes, 4, 5);
+        assertTrue(decoder.expectsShort());
+        assertEquals(1, frames.size());
+        assertEquals(1, readEnds);  // a read without a whole frame ends nothing
+        feed(bytes, 5, 6);
+        assertFalse(decoder.expectsShort());
+        assertEquals(Arrays.asList("LineUp 1200", "LineDown 60"), frames);
+    }
+
+    @Test
+    public void zeroAndReservedIntsAreSkipped() {
+        ByteBuffer stream = ByteBuffer.allocate(32);
+        stream.putInt(0);
+        stream.putInt(-3);
+        stream.putInt(CWPFrameDecoder.RESERVED_VALUE);
+        stream.putInt(900).putShort((short) 0);    // a short of 0 is a line down like any other
+        stream.putInt(0);
+        byte[] bytes = Arrays.copyOf(stream.array(), stream.position());
+        feed(bytes, 0, bytes.length);
+        assertEquals(Arrays.asList("LineDown -3", "LineUp 900", "LineDown 0"), frames);
+        assertFalse(decoder.expectsShort());
+
+        // nothing but a skipped int is not a read with frames
+        feed(new byte[4], 0, 4);
+        assertEquals(1, readEnds);
+    }
+
+    @Test
+    public void resetDropsAPartialFrame() {
+        byte[] bytes = stream();
+        feed(bytes, 4, 7);      // half of the first pair
+        decoder.reset();
+        assertFalse(decoder.expectsShort());
+        feed(bytes, 0, bytes.length);
+        assertEquals(EXPECTED, frames);
+    }
+}
@@ -0,0 +1,57 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import esde06.tol.oulu.fi.EventLogger;
+
+// Only line frames close the send latency measurement of their kind.
+public class CWPFrameEncoderTest {
+
+    private final CWPVirtualClock clock = new CWPVirtualClock();
+    private final ByteBuffer wire = ByteBuffer.allocate(64);
+
+    @Before
+    public void setUp() {
+        EventLogger.setClock(clock);
+        EventLogger.histogram(EventLogger.lineUp).reset();
+        EventLogger.histogram(EventLogger.lineDown).reset();
+    }
+
+    @After
+    public void tearDown() {
+        EventLogger.setClock(CWPClock.SYSTEM);
+    }
+
+    @Test
+    public void frequencyFrameLeavesTheLineUpTimerRunning() {
+        EventLogger.logEventStarted(EventLogger.lineUp);
+        clock.advance(2, TimeUnit.MILLISECONDS);
+        CWPFrameEncoder.encodeAndLog(CWPFrameQueue.pack(CWPFrameQueue.INT_FRAME, -5), wire);
+        assertEquals(0, EventLogger.histogram(EventLogger.lineUp).count());
+
+        clock.advance(3, TimeUnit.MILLISECONDS);
+        CWPFrameEncoder.encodeAndLog(CWPFrameQueue.pack(CWPFrameQueue.INT_FRAME, 0), wire);
+        assertEquals(1, EventLogger.histogram(EventLogger.lineUp).count());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(5), EventLogger.histogram(EventLogger.lineUp).max(),
+                TimeUnit.MILLISECONDS.toNanos(1));
+        assertEquals(8, wire.position());
+    }
+
+    @Test
+    public void lineDownFrameEndsTheLineDownTimer() {
+        EventLogger.logEventStarted(EventLogger.lineUp);
+        EventLogger.logEventStarted(EventLogger.lineDown);
+        clock.advance(1, TimeUnit.MILLISECONDS);
+        CWPFrameEncoder.encodeAndLog(CWPFrameQueue.pack(CWPFrameQueue.SHORT_FRAME, 60), wire);
+        assertEquals(1, EventLogger.histogram(EventLogger.lineDown).count());
+        assertEquals(0, EventLogger.histogram(EventLogger.lineUp).count());
+        assertEquals(2, wire.position());
+    }
+}
@@ -0,0 +1,121 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CWPFrameQueueTest {
+
+    @Test
+    public void framesKeepTheirTagAndValue() {
+        int[] values = {0, 1, -1, 32767, -32768, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        for (int value : values) {
+            long frame = CWPFrameQueue.pack(CWPFrameQueue.INT_FRAME, value);
+            assertEquals(CWPFrameQueue.INT_FRAME, CWPFrameQueue.tag(frame));
+            assertEquals(value, CWPFrameQueue.value(frame));
+            assertTrue(frame != CWPFrameQueue.EMPTY);
+        }
+    }
+
+    @Test
+    public void wrapsAroundTheRingInOrder() {
+        CWPFrameQueue queue = new CWPFrameQueue(4, CWPFrameQueue.OverflowPolicy.DropNewest);
+        int next = 0;
+        int expected = 0;
+        // uneven batches, so head and tail meet every slot many times over
+        for (int round = 0; round < 100; round++) {
+            int batch = 1 + round % 4;
+            for (int i = 0; i < batch; i++) {
+                assertTrue(queue.offer(CWPFrameQueue.SHORT_FRAME, next++));
+            }
+            assertEquals(batch, queue.size());
+            for (int i = 0; i < batch; i++) {
+                assertEquals(expected++, CWPFrameQueue.value(queue.poll()));
+            }
+            assertTrue(queue.isEmpty());
+            assertEquals(CWPFrameQueue.EMPTY, queue.poll());
+        }
+        assertEquals(0, queue.droppedFrames());
+    }
+
+    @Test
+    public void dropNewestKeepsWhatIsQueued() {
+        CWPFrameQueue queue = new CWPFrameQueue(4, CWPFrameQueue.OverflowPolicy.DropNewest);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(CWPFrameQueue.INT_FRAME, i));
+        }
+        assertFalse(queue.offer(CWPFrameQueue.INT_FRAME, 4));
+        assertFalse(queue.offer(CWPFrameQueue.INT_FRAME, 5));
+        assertEquals(2, queue.droppedFrames());
+        assertEquals(4, queue.size());
+
+        // room again after a poll, the dropped frames are gone for good
+        assertEquals(0, CWPFrameQueue.value(queue.poll()));
+        assertTrue(queue.offer(CWPFrameQueue.INT_FRAME, 6));
+        assertEquals(1, CWPFrameQueue.value(queue.poll()));
+        assertEquals(2, CWPFrameQueue.value(queue.poll()));
+        assertEquals(3, CWPFrameQueue.value(queue.poll()));
+        assertEquals(6, CWPFrameQueue.value(queue.poll()));
+        assertEquals(CWPFrameQueue.EMPTY, queue.poll());
+        assertEquals(2, queue.droppedFrames());
+    }
+
+    @Test
+    public void highWaterMarkIsTheDeepestTheQueueGot() {
+        CWPFrameQueue queue = new CWPFrameQueue(8, CWPFrameQueue.OverflowPolicy.DropNewest);
+        assertEquals(0, queue.highWaterMark());
+        queue.offer(CWPFrameQueue.INT_FRAME, 1);
+        queue.offer(CWPFrameQueue.INT_FRAME, 2);
+        queue.offer(CWPFrameQueue.INT_FRAME, 3);
+        assertEquals(3, queue.highWaterMark());
+        queue.poll();
+        queue.poll();
+        queue.offer(CWPFrameQueue.INT_FRAME, 4);
+        assertEquals(3, queue.highWaterMark());
+        for (int i = 0; i < 10; i++) {
+            queue.offer(CWPFrameQueue.INT_FRAME, i);
+        }
+        // full, and drops do not raise it past the capacity
+        assertEquals(8, queue.highWaterMark());
+        while (queue.poll() != CWPFrameQueue.EMPTY) {
+            // drain
+        }
+        assertEquals(8, queue.highWaterMark());
+    }
+
+    @Test
+    public void blockingProducerWaitsForTheConsumer() throws Exception {
+        final CWPFrameQueue queue = new CWPFrameQueue(2, CWPFrameQueue.OverflowPolicy.Block);
+        final int frames = 10000;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < frames; i++) {
+                    queue.offer(CWPFrameQueue.INT_FRAME, i);
+                }
+            }
+        });
+        producer.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        int expected = 0;
+        while (expected < frames && System.nanoTime() < deadline) {
+            long frame = queue.poll();
+            if (frame != CWPFrameQueue.EMPTY) {
+                assertEquals(expected++, CWPFrameQueue.value(frame));
+            }
+        }
+        producer.join(TimeUnit.SECONDS.toMillis(1));
+        assertEquals(frames, expected);
+        assertEquals(0, queue.droppedFrames());
+        assertTrue(queue.highWaterMark() <= 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBeAPowerOfTwo() {
+        new CWPFrameQueue(6, CWPFrameQueue.OverflowPolicy.DropNewest);
+    }
+}
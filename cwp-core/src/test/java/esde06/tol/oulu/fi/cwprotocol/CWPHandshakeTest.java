@@ -0,0 +1,271 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import esde06.tol.oulu.fi.EventLogger;
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation.CWPState;
+
+// Connect and frequency changes send the frequency and wait for the server to echo it, one request at a time.
+public class CWPHandshakeTest implements CWPTransport, CWProtocolListener {
+
+    private final CWPVirtualClock clock = new CWPVirtualClock();
+    private final CWPTimerWheel timers = CWPTimerWheel.driven(clock);
+    private final List<String> events = new ArrayList<String>();
+    private CWProtocolImplementation protocol;
+    private CWPFrameQueue outbound;
+    private CWPFrameDecoder.FrameListener inbound;
+    private int framesQueuedAtOpen = -1;
+    private boolean closed = false;
+    private boolean reportClose = true;     // false leaves Disconnected to the test, as a late frame
+
+    @Before
+    public void setUp() {
+        protocol = new CWProtocolImplementation(this, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, clock, timers);
+        protocol.setTransport(this);
+        EventLogger.histogram(EventLogger.ready).reset();
+        EventLogger.histogram(EventLogger.frequencyChange).reset();
+    }
+
+    private void connectAndTune() {
+        protocol.connect("handshake", 0, 3);
+        serverFrame(CWPState.Connected, 0);
+        serverFrame(CWPState.LineDown, -3);
+        sent();
+        events.clear();
+    }
+
+    @Test
+    public void frequencyIsQueuedBeforeTheTransportOpens() {
+        protocol.connect("handshake", 0, 3);
+        assertEquals(1, framesQueuedAtOpen);
+        assertEquals("[-3]", sent().toString());
+        assertFalse(protocol.isConnected());
+
+        clock.advance(20, TimeUnit.MILLISECONDS);
+        serverFrame(CWPState.Connected, 0);
+        assertEquals("[EConnected 0]", events.toString());
+        assertTrue(sent().isEmpty());
+
+        // the default the server announces on connect is not answered
+        serverFrame(CWPState.LineDown, -1);
+        assertTrue(sent().isEmpty());
+        assertEquals(0, EventLogger.histogram(EventLogger.ready).count());
+
+        clock.advance(20, TimeUnit.MILLISECONDS);
+        serverFrame(CWPState.LineDown, -3);
+        assertEquals("[EConnected 0, EChangedFrequency 3, ELineDown -3]", events.toString());
+        assertEquals(1, EventLogger.histogram(EventLogger.ready).count());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(40), EventLogger.histogram(EventLogger.ready).max(),
+                TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    @Test
+    public void unconfirmedFrequencyIsAskedForAgain() {
+        protocol.connect("handshake", 0, 3);
+        serverFrame(CWPState.Connected, 0);
+        assertEquals("[-3]", sent().toString());
+
+        advance(1999);
+        assertTrue(sent().isEmpty());
+        advance(2);
+        assertEquals("[-3]", sent().toString());
+
+        serverFrame(CWPState.LineDown, -3);
+        advance(5000);
+        assertTrue(sent().isEmpty());
+        assertEquals(0, timers.pendingCount());
+    }
+
+    @Test
+    public void disconnectStopsWaiting() {
+        protocol.connect("handshake", 0, 3);
+        serverFrame(CWPState.Connected, 0);
+        sent();
+        serverFrame(CWPState.Disconnected, 0);
+        advance(5000);
+        assertTrue(sent().isEmpty());
+        assertEquals(0, timers.pendingCount());
+    }
+
+    @Test
+    public void switchingChannelsCostsOneRoundTrip() {
+        connectAndTune();
+        clock.advance(1, TimeUnit.MILLISECONDS);
+        protocol.setFrequency(5);
+        assertEquals("[-5]", sent().toString());
+        clock.advance(30, TimeUnit.MILLISECONDS);
+        serverFrame(CWPState.LineDown, -5);
+        assertEquals("[EConnected 0, EChangedFrequency 5, ELineDown -5]", events.toString());
+        assertTrue(sent().isEmpty());
+        assertEquals(1, EventLogger.histogram(EventLogger.frequencyChange).count());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(30), EventLogger.histogram(EventLogger.frequencyChange).max(),
+                TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    @Test
+    public void changesWhileARequestIsInFlightCollapseIntoTheLatest() {
+        connectAndTune();
+        protocol.setFrequency(5);
+        protocol.setFrequency(6);
+        protocol.setFrequency(7);
+        assertEquals("[-5]", sent().toString());
+        assertEquals(-5, protocol.frequencyNegotiation().inFlight());
+
+        serverFrame(CWPState.LineDown, -5);
+        assertEquals("[-7]", sent().toString());
+        assertFalse(events.contains("EChangedFrequency 5"));
+        serverFrame(CWPState.LineDown, -6);     // not in flight
+        assertTrue(sent().isEmpty());
+        serverFrame(CWPState.LineDown, -7);
+        assertTrue(events.contains("EChangedFrequency 7"));
+        assertEquals(7, protocol.frequency());
+        assertEquals(2, protocol.frequencyNegotiation().heldRequests());
+        assertEquals(1, EventLogger.histogram(EventLogger.frequencyChange).count());
+    }
+
+    @Test
+    public void frequencyChangedWhileConnectingWaitsForTheFirstEcho() {
+        protocol.connect("handshake", 0, 3);
+        protocol.setFrequency(4);
+        assertEquals("[-3]", sent().toString());
+        serverFrame(CWPState.Connected, 0);
+        assertTrue(sent().isEmpty());
+        serverFrame(CWPState.LineDown, -3);
+        assertEquals("[-4]", sent().toString());
+        serverFrame(CWPState.LineDown, -4);
+        assertEquals("[EConnected 0, EChangedFrequency 4, ELineDown -4]", events.toString());
+    }
+
+    @Test
+    public void retriesRunOutAndDropTheConnection() {
+        protocol.connect("handshake", 0, 3);
+        serverFrame(CWPState.Connected, 0);
+        assertEquals("[-3]", sent().toString());
+        for (int retry = 1; retry < CWPFrequencyNegotiation.MAX_ATTEMPTS; retry++) {
+            advance(2000);
+            assertEquals("[-3]", sent().toString());
+        }
+        assertFalse(closed);
+        advance(2000);
+        assertTrue(sent().isEmpty());
+        assertTrue(closed);
+        assertFalse(protocol.isConnected());
+        assertEquals(CWPFrequencyNegotiation.MAX_ATTEMPTS - 1, protocol.frequencyNegotiation().retries());
+        assertEquals(1, protocol.frequencyNegotiation().failures());
+    }
+
+    @Test
+    public void reconnectWhileConnectedReplacesTheConnection() {
+        connectAndTune();
+        CWPFrameDecoder.FrameListener old = inbound;
+        protocol.connect("handshake", 0, 4);
+        assertTrue(closed);
+        assertEquals("[EDisconnected 0]", events.toString());
+        assertEquals("[-4]", sent().toString());
+
+        // the replaced connection's frames do not reach the state machine
+        serverFrame(CWPState.Connected, 0);
+        old.onFrame(CWPState.LineDown, -4);
+        old.onReadEnd();
+        assertEquals("[EDisconnected 0, EConnected 0]", events.toString());
+        assertEquals(-4, protocol.frequencyNegotiation().inFlight());
+
+        serverFrame(CWPState.LineDown, -4);
+        assertEquals("[EDisconnected 0, EConnected 0, EChangedFrequency 4, ELineDown -4]", events.toString());
+        assertTrue(sent().isEmpty());
+    }
+
+    @Test
+    public void lateDisconnectedOfTheOldConnectionKeepsTheRequestInFlight() throws Exception {
+        reportClose = false;
+        connectAndTune();
+        protocol.disconnect();
+        CWPFrameDecoder.FrameListener old = inbound;
+        protocol.connect("handshake", 0, 3);
+        assertEquals("[-3]", sent().toString());
+
+        old.onFrame(CWPState.Disconnected, 0);
+        serverFrame(CWPState.Connected, 0);
+        assertTrue(sent().isEmpty());
+        assertEquals(-3, protocol.frequencyNegotiation().inFlight());
+        serverFrame(CWPState.LineDown, -3);
+        assertEquals("[EDisconnected 0, EConnected 0, EChangedFrequency 3, ELineDown -3]", events.toString());
+        assertEquals(2, protocol.frequencyNegotiation().sentRequests());
+    }
+
+    @Test
+    public void lineUpRightAfterConnectingIsNotZero() {
+        connectAndTune();
+        clock.advance(500, TimeUnit.MICROSECONDS);
+        protocol.lineUp();
+        protocol.lineDown();
+        assertEquals("[1, 0]", sent().toString());
+        clock.advance(5, TimeUnit.MILLISECONDS);
+        protocol.lineUp();
+        assertEquals("[5]", sent().toString());
+    }
+
+    private void advance(long millis) {
+        clock.advance(millis, TimeUnit.MILLISECONDS);
+        timers.expire();
+    }
+
+    private void serverFrame(CWPState state, int value) {
+        inbound.onFrame(state, value);
+        inbound.onReadEnd();
+    }
+
+    private List<Integer> sent() {
+        List<Integer> frames = new ArrayList<Integer>();
+        long frame;
+        while ((frame = outbound.poll()) != CWPFrameQueue.EMPTY) {
+            frames.add(CWPFrameQueue.value(frame));
+        }
+        return frames;
+    }
+
+    @Override
+    public void onEvent(CWPEvent event, int param) {
+        events.add(event + " " + param);
+    }
+
+    @Override
+    public void open(String serverAddress, int serverPort, CWPFrameQueue outbound,
+                     CWPFrameDecoder.FrameListener listener) {
+        this.outbound = outbound;
+        this.inbound = listener;
+        framesQueuedAtOpen = outbound.size();
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (reportClose) {
+            inbound.onFrame(CWPState.Disconnected, 0);
+        }
+    }
+
+    @Override
+    public CWPWriteStats writeStats() {
+        return new CWPWriteStats();
+    }
+}
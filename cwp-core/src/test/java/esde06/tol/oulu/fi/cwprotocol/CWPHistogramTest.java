@@ -0,0 +1,136 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CWPHistogramTest {
+
+    // Half a sub-bucket step per power of two, the bound the class comment promises.
+    private static final double MAX_RELATIVE_ERROR = 1.0 / 32;
+    private static final double[] PERCENTILES = {1, 10, 50, 90, 99, 99.9, 100};
+
+    @Test
+    public void smallValuesHaveTheirOwnBuckets() {
+        for (int value = 0; value < 64; value++) {
+            assertEquals(value, CWPHistogram.bucketIndex(value));
+            assertEquals(value, CWPHistogram.bucketUpperBound(value));
+        }
+        assertEquals(0, CWPHistogram.bucketIndex(-5));
+    }
+
+    @Test
+    public void bucketsTileTheRangeWithoutGaps() {
+        int last = CWPHistogram.bucketIndex(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, CWPHistogram.bucketUpperBound(last));
+        for (int index = 0; index < last; index++) {
+            long upper = CWPHistogram.bucketUpperBound(index);
+            assertEquals("upper bound of " + index, index, CWPHistogram.bucketIndex(upper));
+            assertEquals("value after " + upper, index + 1, CWPHistogram.bucketIndex(upper + 1));
+            long lower = index == 0 ? 0 : CWPHistogram.bucketUpperBound(index - 1) + 1;
+            assertTrue("width of " + index, upper - lower <= Math.max(0, lower * MAX_RELATIVE_ERROR));
+        }
+        // the first buckets past the exact range are two wide
+        assertEquals(64, CWPHistogram.bucketIndex(65));
+        assertEquals(65, CWPHistogram.bucketIndex(66));
+    }
+
+    @Test
+    public void percentilesOfAUniformRange() {
+        long[] values = new long[100000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i + 1;
+        }
+        assertPercentiles(values);
+    }
+
+    @Test
+    public void percentilesOfALongTail() {
+        // latencies: mostly around a millisecond, a few tens of milliseconds, in nanoseconds
+        Random random = new Random(42);
+        long[] values = new long[50000];
+        for (int i = 0; i < values.length; i++) {
+            double millis = -Math.log(1 - random.nextDouble()) * (i % 100 == 0 ? 20 : 1);
+            values[i] = (long) (millis * 1000000);
+        }
+        assertPercentiles(values);
+    }
+
+    @Test
+    public void concurrentRecordsAreAllCounted() throws Exception {
+        final int threads = 8;
+        final int perThread = 200000;
+        final CWPHistogram histogram = new CWPHistogram();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        long expectedSum = 0;
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            for (int i = 0; i < perThread; i++) {
+                expectedSum += valueOf(first, i);
+            }
+            Thread recorder = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < perThread; i++) {
+                            histogram.record(valueOf(first, i));
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    done.countDown();
+                }
+            }, "CWPHistogramTest-" + t);
+            recorder.setDaemon(true);
+            recorder.start();
+        }
+        start.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        long count = (long) threads * perThread;
+        assertEquals(count, histogram.count());
+        assertEquals((double) expectedSum / count, histogram.mean(), 0);
+        assertEquals(0, histogram.min());
+        assertEquals(valueOf(threads - 1, perThread - 1), histogram.max());
+        assertEquals(histogram.max(), histogram.valueAtPercentile(100));
+        // every thread records 0 - 1999 with the odd values shifted by its index, so the median is near 1000
+        long median = histogram.valueAtPercentile(50);
+        assertTrue("median " + median, median >= 1000 && median <= 1000 * (1 + MAX_RELATIVE_ERROR) + threads);
+
+        histogram.reset();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.valueAtPercentile(50));
+    }
+
+    private static long valueOf(int thread, int i) {
+        return (i % 2000) + thread * (i % 2);
+    }
+
+    private static void assertPercentiles(long[] values) {
+        CWPHistogram histogram = new CWPHistogram();
+        for (long value : values) {
+            histogram.record(value);
+        }
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        assertEquals(sorted.length, histogram.count());
+        assertEquals(sorted[0], histogram.min());
+        assertEquals(sorted[sorted.length - 1], histogram.max());
+        for (double percentile : PERCENTILES) {
+            long exact = sorted[(int) Math.ceil(percentile / 100 * sorted.length) - 1];
+            long reported = histogram.valueAtPercentile(percentile);
+            // the bucket's upper bound, never below the exact value
+            assertTrue("p" + percentile + " " + reported + " < " + exact, reported >= exact);
+            assertTrue("p" + percentile + " " + reported + " vs " + exact,
+                    reported - exact <= exact * MAX_RELATIVE_ERROR);
+        }
+    }
+}
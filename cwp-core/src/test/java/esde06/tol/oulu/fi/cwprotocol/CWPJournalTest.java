@@ -0,0 +1,180 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CWPJournalTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final CWPVirtualClock clock = new CWPVirtualClock();
+
+    @Test
+    public void valuesAndTimesSurviveTheVarintEncoding() throws Exception {
+        int[] values = {0, 1, -1, 63, -64, 64, -65, 8191, -8192, 8192, 1 << 20, -(1 << 27),
+                Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE + 1};
+        long[] gaps = {0, 1, 127, 128, 16383, 16384, TimeUnit.SECONDS.toNanos(3), TimeUnit.HOURS.toNanos(20)};
+        CWPJournal journal = new CWPJournal(folder.getRoot(), "varint", clock).setRollInterval(1, TimeUnit.DAYS);
+        clock.advance(5, TimeUnit.SECONDS);
+        long start = clock.nanoTime();
+        for (int i = 0; i < values.length; i++) {
+            clock.advanceNanos(gaps[i % gaps.length]);
+            journal.recordFrequency(values[i]);
+        }
+        journal.close();
+
+        File[] segments = CWPJournal.segments(folder.getRoot(), "varint");
+        assertEquals(1, segments.length);
+        CWPJournalReader reader = new CWPJournalReader(segments[0]);
+        assertEquals(start, reader.startNanos());
+        long time = start;
+        for (int i = 0; i < values.length; i++) {
+            assertTrue(reader.next());
+            time += gaps[i % gaps.length];
+            assertEquals(CWPJournal.FREQUENCY, reader.kind());
+            assertEquals("value " + i, values[i], reader.value());
+            assertEquals("time " + i, time, reader.timeNanos());
+        }
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void fullSegmentRollsOverWithoutLosingARecord() throws Exception {
+        // room for 17 records of three bytes before less than the largest record is left
+        CWPJournal journal = new CWPJournal(folder.getRoot(), "full", clock)
+                .setSegmentBytes(CWPJournal.HEADER_BYTES + 64)
+                .setMaxSegments(10);
+        for (int i = 0; i < 40; i++) {
+            clock.advanceNanos(100);
+            journal.recordCommand(CWPJournal.SET_FREQUENCY, i, clock.nanoTime());
+        }
+        journal.close();
+
+        File[] segments = CWPJournal.segments(folder.getRoot(), "full");
+        assertEquals(3, segments.length);
+        int[] counts = {17, 17, 6};
+        int next = 0;
+        for (int s = 0; s < segments.length; s++) {
+            CWPJournalReader reader = new CWPJournalReader(segments[s]);
+            int count = 0;
+            while (reader.next()) {
+                assertEquals(CWPJournal.COMMAND, reader.kind());
+                assertEquals(CWPJournal.SET_FREQUENCY, reader.command());
+                assertEquals(next, reader.value());
+                next++;
+                assertEquals(100 * next, reader.timeNanos());
+                count++;
+            }
+            assertEquals("segment " + s, counts[s], count);
+        }
+        assertEquals(40, next);
+    }
+
+    @Test
+    public void rollIntervalStartsANewSegmentAtTheBoundary() throws Exception {
+        CWPJournal journal = new CWPJournal(folder.getRoot(), "interval", clock)
+                .setRollInterval(1, TimeUnit.SECONDS);
+        clock.advance(1, TimeUnit.SECONDS);
+        journal.recordFrequency(-1);
+        clock.advanceNanos(TimeUnit.SECONDS.toNanos(1) - 1);
+        journal.recordFrequency(-2);
+        clock.advanceNanos(1);
+        journal.recordFrequency(-3);
+        journal.close();
+
+        File[] segments = CWPJournal.segments(folder.getRoot(), "interval");
+        assertEquals(2, segments.length);
+        CWPJournalReader first = new CWPJournalReader(segments[0]);
+        assertTrue(first.next());
+        assertEquals(-1, first.value());
+        assertTrue(first.next());
+        assertEquals(-2, first.value());
+        assertFalse(first.next());
+        CWPJournalReader second = new CWPJournalReader(segments[1]);
+        assertEquals(TimeUnit.SECONDS.toNanos(2), second.startNanos());
+        assertTrue(second.next());
+        assertEquals(-3, second.value());
+        assertEquals(TimeUnit.SECONDS.toNanos(2), second.timeNanos());
+        assertFalse(second.next());
+    }
+
+    @Test
+    public void rollTakesTheSpareMappedAhead() throws Exception {
+        CWPJournal journal = new CWPJournal(folder.getRoot(), "spare", clock)
+                .setRollInterval(1, TimeUnit.SECONDS);
+        journal.recordFrequency(-1);
+        File spare = new File(folder.getRoot(), "spare.spare");
+        for (int i = 0; i < 200 && !spare.exists(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(spare.exists());
+        Thread.sleep(50);
+        clock.advance(1, TimeUnit.SECONDS);
+        journal.recordFrequency(-2);
+        File second = journal.currentSegment();
+        journal.close();
+
+        assertFalse(spare.exists());
+        File[] segments = CWPJournal.segments(folder.getRoot(), "spare");
+        assertEquals(2, segments.length);
+        assertEquals(second, segments[1]);
+        CWPJournalReader reader = new CWPJournalReader(second);
+        assertEquals(TimeUnit.SECONDS.toNanos(1), reader.startNanos());
+        assertTrue(reader.next());
+        assertEquals(-2, reader.value());
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void onlyTheNewestSegmentsAreKept() throws Exception {
+        CWPJournal journal = new CWPJournal(folder.getRoot(), "kept", clock)
+                .setRollInterval(1, TimeUnit.SECONDS)
+                .setMaxSegments(2);
+        for (int i = 0; i < 6; i++) {
+            clock.advance(1, TimeUnit.SECONDS);
+            journal.recordFrequency(-i);
+        }
+        journal.close();
+
+        File[] segments = CWPJournal.segments(folder.getRoot(), "kept");
+        assertEquals(2, segments.length);
+        assertEquals(segments.length, folder.getRoot().list().length);
+        CWPJournalReader last = new CWPJournalReader(segments[1]);
+        assertTrue(last.next());
+        assertEquals(-5, last.value());
+    }
+
+    @Test
+    public void truncatedTailEndsTheSegmentAtTheLastWholeRecord() throws Exception {
+        CWPJournal journal = new CWPJournal(folder.getRoot(), "truncated", clock);
+        journal.recordFrequency(-3);
+        clock.advance(10, TimeUnit.SECONDS);
+        // a long time gap and a large value make a record of many bytes
+        journal.recordFrequency(Integer.MIN_VALUE + 1);
+        journal.close();
+
+        File segment = CWPJournal.segments(folder.getRoot(), "truncated")[0];
+        // the first record takes three bytes, cut the second one in its time varint
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.setLength(CWPJournal.HEADER_BYTES + 3 + 1 + 2);
+        } finally {
+            file.close();
+        }
+        CWPJournalReader reader = new CWPJournalReader(segment);
+        assertTrue(reader.next());
+        assertEquals(-3, reader.value());
+        assertFalse(reader.next());
+        assertFalse(reader.next());
+    }
+}
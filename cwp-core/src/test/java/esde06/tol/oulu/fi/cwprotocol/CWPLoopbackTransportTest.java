@@ -0,0 +1,114 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+// The protocol on its own event loop against the loopback server, with server bytes cut into fragments.
+public class CWPLoopbackTransportTest implements CWProtocolListener {
+
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+    private CWPEventLoop loop;
+    private CWProtocolImplementation protocol;
+    private CWPLoopbackTransport transport;
+
+    @Override
+    public void onEvent(CWPEvent event, int param) {
+        events.add(event + " " + param);
+    }
+
+    private void start(int fragmentSize) {
+        loop = CWPEventLoop.start("CWPLoopbackTransportTest");
+        protocol = new CWProtocolImplementation(this, loop);
+        transport = new CWPLoopbackTransport().setFragmentSize(fragmentSize).setLatencyMicros(200);
+        protocol.setTransport(transport);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                protocol.connect("loopback", 0, 4);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        if (loop != null) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        protocol.disconnect();
+                    } catch (java.io.IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            loop.shutdown();
+        }
+    }
+
+    @Test
+    public void singleByteFragments() throws Exception {
+        assertLineFramesSurvive(1);
+    }
+
+    @Test
+    public void fragmentsSplittingEveryFrame() throws Exception {
+        assertLineFramesSurvive(3);
+    }
+
+    @Test
+    public void fragmentsLongerThanAFrame() throws Exception {
+        assertLineFramesSurvive(5);
+    }
+
+    @Test
+    public void frequencyChangeIsEchoedThroughFragments() throws Exception {
+        start(1);
+        await(3);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                protocol.setFrequency(9);
+            }
+        });
+        assertEquals("[EConnected 0, EChangedFrequency 9, ELineDown -9]", await(3).toString());
+        assertEquals(9, protocol.frequency());
+    }
+
+    // Another client's line pairs, with ints and shorts straddling the fragment edges.
+    private void assertLineFramesSurvive(int fragmentSize) throws InterruptedException {
+        start(fragmentSize);
+        assertEquals("[EConnected 0, EChangedFrequency 4, ELineDown -4]", await(3).toString());
+        for (int i = 1; i <= 20; i++) {
+            transport.injectLineUp(1000 * i);
+            transport.injectLineDown((short) (40 + i));
+        }
+        List<String> lines = await(40);
+        for (int i = 1; i <= 20; i++) {
+            assertEquals("ELineUp " + 1000 * i, lines.get(2 * i - 2));
+            assertEquals("ELineDown " + (40 + i), lines.get(2 * i - 1));
+        }
+        assertTrue(protocol.isConnected());
+    }
+
+    private List<String> await(int count) throws InterruptedException {
+        List<String> received = new ArrayList<String>();
+        while (received.size() < count) {
+            String event = events.poll(2, TimeUnit.SECONDS);
+            if (event == null) {
+                throw new AssertionError("got only " + received);
+            }
+            received.add(event);
+        }
+        return received;
+    }
+}
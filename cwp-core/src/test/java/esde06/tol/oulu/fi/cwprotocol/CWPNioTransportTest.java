@@ -0,0 +1,192 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation.CWPState;
+
+// The selector loop against a local server socket that the test thread reads and writes by hand.
+public class CWPNioTransportTest implements CWPFrameDecoder.FrameListener {
+
+    private final BlockingQueue<String> frames = new LinkedBlockingQueue<String>();
+    private final CWPFrameQueue outbound = new CWPFrameQueue(1024, CWPFrameQueue.OverflowPolicy.DropNewest);
+    private CWPSelectorLoop loop;
+    private ServerSocketChannel server;
+    private SocketChannel peer;
+
+    @Before
+    public void setUp() throws IOException {
+        loop = new CWPSelectorLoop();
+        loop.start();
+        server = ServerSocketChannel.open();
+        // a small window, so the client's writes back up quickly while the peer is not reading
+        server.socket().setReceiveBufferSize(4096);
+        server.bind(new InetSocketAddress("localhost", 0));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        loop.shutdown();
+        if (peer != null) {
+            peer.close();
+        }
+        server.close();
+    }
+
+    @Override
+    public void onFrame(CWPState state, int value) {
+        frames.add(state + " " + value);
+    }
+
+    @Override
+    public void onReadEnd() {
+    }
+
+    private int port() {
+        return server.socket().getLocalPort();
+    }
+
+    @Test
+    public void queuedFrequencyGoesOutOnConnectAndFramesComeIn() throws Exception {
+        CWPNioTransport transport = new CWPNioTransport(loop);
+        outbound.offer(CWPFrameQueue.INT_FRAME, -4);
+        transport.open("localhost", port(), outbound, this);
+        peer = server.accept();
+        assertEquals("Connected 0", next());
+        assertEquals(-4, readBytes(4).getInt());
+        awaitConnections(1);
+
+        ByteBuffer reply = ByteBuffer.allocate(10);
+        reply.putInt(-4).putInt(1500).putShort((short) 120).flip();
+        peer.write(reply);
+        assertEquals("LineDown -4", next());
+        assertEquals("LineUp 1500", next());
+        assertEquals("LineDown 120", next());
+
+        outbound.offer(CWPFrameQueue.INT_FRAME, 2000);
+        outbound.offer(CWPFrameQueue.SHORT_FRAME, 60);
+        transport.flush();
+        ByteBuffer sent = readBytes(6);
+        assertEquals(2000, sent.getInt());
+        assertEquals(60, sent.getShort());
+    }
+
+    @Test
+    public void partialWritesWaitForTheSocketAndLoseNothing() throws Exception {
+        CWPNioConnection connection = new CWPNioConnection(loop, "localhost", port(), outbound, this,
+                new CWPWriteStats());
+        connection.start();
+        peer = server.accept();
+        assertEquals("Connected 0", next());
+
+        // the peer reads nothing until the kernel buffers are full and the loop waits for OP_WRITE
+        int queued = 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!connection.isWritePending()) {
+            assertTrue("writes never backed up", System.nanoTime() < deadline);
+            while (outbound.offer(CWPFrameQueue.INT_FRAME, queued + 1)) {
+                queued++;
+            }
+            connection.requestFlush();
+            Thread.sleep(1);
+        }
+        assertTrue(queued > 1024);
+
+        // draining the socket lets the loop finish the write and drop OP_WRITE again
+        ByteBuffer received = readBytes(4 * queued);
+        for (int i = 1; i <= queued; i++) {
+            assertEquals(i, received.getInt());
+        }
+        deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (connection.isWritePending()) {
+            assertTrue("OP_WRITE still set", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+        assertTrue(outbound.isEmpty());
+    }
+
+    @Test
+    public void closeEndsTheConnectionOnBothSides() throws Exception {
+        CWPNioTransport transport = new CWPNioTransport(loop);
+        transport.open("localhost", port(), outbound, this);
+        peer = server.accept();
+        assertEquals("Connected 0", next());
+        awaitConnections(1);
+
+        transport.close();
+        assertEquals("Disconnected 0", next());
+        peer.socket().setSoTimeout(2000);
+        assertEquals(-1, peer.socket().getInputStream().read());
+        awaitConnections(0);
+    }
+
+    @Test
+    public void serverClosingDisconnects() throws Exception {
+        CWPNioTransport transport = new CWPNioTransport(loop);
+        transport.open("localhost", port(), outbound, this);
+        peer = server.accept();
+        assertEquals("Connected 0", next());
+        peer.close();
+        assertEquals("Disconnected 0", next());
+        awaitConnections(0);
+        assertFalse(peer.isOpen());
+    }
+
+    @Test
+    public void refusedConnectDisconnects() throws Exception {
+        int port = port();
+        server.close();
+        new CWPNioTransport(loop).open("localhost", port, outbound, this);
+        assertEquals("Disconnected 0", next());
+        awaitConnections(0);
+    }
+
+    private String next() throws InterruptedException {
+        String frame = frames.poll(2, TimeUnit.SECONDS);
+        if (frame == null) {
+            throw new AssertionError("no frame");
+        }
+        return frame;
+    }
+
+    // Non-blocking reads with a deadline, so bytes the client never sends fail the test instead of hanging it.
+    private ByteBuffer readBytes(int length) throws Exception {
+        peer.configureBlocking(false);
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (buffer.hasRemaining()) {
+            int read = peer.read(buffer);
+            if (read == -1) {
+                throw new AssertionError("closed after " + buffer.position() + " bytes");
+            }
+            if (read == 0) {
+                assertTrue("only " + buffer.position() + " of " + length + " bytes", System.nanoTime() < deadline);
+                Thread.sleep(1);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private void awaitConnections(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (loop.connectionCount() != count) {
+            assertTrue("connections: " + loop.connectionCount(), System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation.CWPState;
+
+// A session is recorded into a journal under a virtual clock, then replayed from the segments.
+public class CWPReplayTest implements CWPTransport {
+
+    private static final long LATE_NANOS = TimeUnit.MILLISECONDS.toNanos(40);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final CWPVirtualClock clock = new CWPVirtualClock();
+    private final CWPTimerWheel timers = CWPTimerWheel.driven(clock);
+    private final List<String> events = new ArrayList<String>();
+    private final List<Long> eventTimes = new ArrayList<Long>();
+    private CWProtocolImplementation protocol;
+    private CWPJournal journal;
+    private CWPFrameQueue outbound;
+    private CWPFrameDecoder.FrameListener inbound;
+
+    @Before
+    public void setUp() {
+        protocol = new CWProtocolImplementation(new CWProtocolListener() {
+            @Override
+            public void onEvent(CWPEvent event, int param) {
+                events.add(event + " " + param);
+                eventTimes.add(clock.nanoTime());
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, clock, timers);
+        protocol.setTransport(this);
+        clock.advance(1, TimeUnit.SECONDS);
+        journal = new CWPJournal(folder.getRoot(), "session", clock);
+        protocol.setJournal(journal);
+    }
+
+    @Test
+    public void replayKeepsTheRecordedEventsAndTimingAtOneAndTwoTimesSpeed() throws Exception {
+        protocol.connect("replay", 0, 3);
+        advance(30);
+        serverFrame(CWPState.Connected, 0);
+        advance(20);
+        serverFrame(CWPState.LineDown, -3);
+        for (int i = 0; i < 4; i++) {
+            advance(60);
+            protocol.lineUp();
+            advance(60 + 120 * (i % 2));
+            protocol.lineDown();
+        }
+        advance(50);
+        serverFrame(CWPState.LineUp, 1200);
+        advance(90);
+        serverFrame(CWPState.LineDown, 90);
+        advance(40);
+        protocol.disconnect();
+        journal.close();
+
+        File[] segments = CWPJournal.segments(folder.getRoot(), "session");
+        assertEquals(1, segments.length);
+        long recorded = clock.nanoTime() - eventTimes.get(0) + TimeUnit.MILLISECONDS.toNanos(30);
+        for (double speed : new double[] {1, 2}) {
+            List<Long> replayTimes = new ArrayList<Long>();
+            List<String> replayed = replay(segments, speed, replayTimes);
+            assertEquals(events, replayed);
+            // each event comes when the recording says, scaled by the speed and never early
+            long connectedAt = eventTimes.get(0) - TimeUnit.MILLISECONDS.toNanos(30);
+            for (int i = 0; i < events.size(); i++) {
+                long expected = (long) ((eventTimes.get(i) - connectedAt) / speed);
+                long actual = replayTimes.get(i);
+                assertTrue("event " + i + " at " + actual + " expected " + expected + " at " + speed + "x",
+                        actual >= expected - TimeUnit.MILLISECONDS.toNanos(1) && actual < expected + LATE_NANOS);
+            }
+            assertTrue(replayTimes.get(replayTimes.size() - 1) < recorded / speed + LATE_NANOS);
+        }
+    }
+
+    @Test
+    public void longLineUpSplitAcrossSegmentsReplays() throws Exception {
+        journal.setRollInterval(20, TimeUnit.SECONDS);
+        protocol.connect("replay", 0, 3);
+        advance(30);
+        serverFrame(CWPState.Connected, 0);
+        advance(20);
+        serverFrame(CWPState.LineDown, -3);
+        advance(100);
+        protocol.lineUp();
+        // two splits on the way, the segment rolls on each
+        for (int second = 0; second < 65; second++) {
+            advance(1000);
+        }
+        protocol.lineDown();
+        advance(100);
+        protocol.disconnect();
+        journal.close();
+
+        File[] segments = CWPJournal.segments(folder.getRoot(), "session");
+        assertEquals(3, segments.length);
+        CWPReplay replay = new CWPReplay(segments);
+        CWPReplay.Result result = replay.run(CWPReplay.AS_FAST_AS_POSSIBLE, null);
+        assertTrue(result.toString(), result.matches());
+        assertEquals(events.size(), result.emittedEvents);
+        // connect frequency, then line up, two splits of line down and up again, and the last line down
+        assertEquals(1 + 1 + 2 * 2 + 1, result.sentFrames);
+        assertEquals(result.expectedFrames, result.sentFrames);
+    }
+
+    @Test
+    public void replacedJournalIsClosed() throws Exception {
+        protocol.connect("replay", 0, 3);
+        advance(30);
+        serverFrame(CWPState.Connected, 0);
+        Thread.sleep(100);
+        protocol.setJournal(null);
+        // forced out with its spare deleted, only the segment is left
+        File[] segments = CWPJournal.segments(folder.getRoot(), "session");
+        assertEquals(1, segments.length);
+        assertEquals(1, folder.getRoot().list().length);
+        CWPJournalReader reader = new CWPJournalReader(segments[0]);
+        assertTrue(reader.next());
+        assertEquals(CWPJournal.COMMAND, reader.kind());
+    }
+
+    private List<String> replay(File[] segments, double speed, final List<Long> times) throws Exception {
+        final List<String> replayed = new ArrayList<String>();
+        CWPReplay replay = new CWPReplay(segments);
+        final long started = System.nanoTime();
+        CWPReplay.Result result = replay.run(speed, new CWProtocolListener() {
+            @Override
+            public void onEvent(CWPEvent event, int param) {
+                replayed.add(event + " " + param);
+                times.add(System.nanoTime() - started);
+            }
+        });
+        assertTrue(result.toString(), result.matches());
+        assertEquals(result.expectedFrames, result.sentFrames);
+        return replayed;
+    }
+
+    private void advance(long millis) {
+        clock.advance(millis, TimeUnit.MILLISECONDS);
+        timers.expire();
+    }
+
+    private void serverFrame(CWPState state, int value) {
+        inbound.onFrame(state, value);
+        inbound.onReadEnd();
+    }
+
+    @Override
+    public void open(String serverAddress, int serverPort, CWPFrameQueue outbound,
+                     CWPFrameDecoder.FrameListener listener) {
+        this.outbound = outbound;
+        this.inbound = listener;
+    }
+
+    @Override
+    public void flush() {
+        while (outbound.poll() != CWPFrameQueue.EMPTY) {
+            // the recording is in the journal
+        }
+    }
+
+    @Override
+    public void close() {
+        inbound.onFrame(CWPState.Disconnected, 0);
+        inbound.onReadEnd();
+    }
+
+    @Override
+    public CWPWriteStats writeStats() {
+        return new CWPWriteStats();
+    }
+}
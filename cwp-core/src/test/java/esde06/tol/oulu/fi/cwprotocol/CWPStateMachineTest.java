@@ -0,0 +1,449 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import static esde06.tol.oulu.fi.cwprotocol.CWPStateMachine.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation.CWPState;
+
+// Invariants of the transition table, checked for every (state, input) pair, and the same invariants
+// observed from outside while millions of random inputs run through the protocol itself.
+public class CWPStateMachineTest {
+
+    private static final long SEED = 20240521L;
+    private static final int SEQUENCES = 10000;
+    private static final int SEQUENCE_LENGTH = 200;
+
+    private static boolean lineUp(int state) {
+        return publicState(state) == CWPState.LineUp;
+    }
+
+    private static boolean tuning(int state) {
+        return state == TUNING || state == TUNING_USER_LINE_UP;
+    }
+
+    // A frequency is in flight.
+    private static boolean awaiting(int state) {
+        return tuning(state) || state == CONNECTING;
+    }
+
+    // Inputs that end the current connection.
+    private static boolean transport(int input) {
+        return input == SERVER_CONNECTED || input == SERVER_DISCONNECTED || input == USER_CONNECT;
+    }
+
+    private static boolean has(int actions, int action) {
+        return (actions & action) != 0;
+    }
+
+    private static String pair(int state, int input) {
+        return inputName(input) + " in " + stateName(state);
+    }
+
+    @Test
+    public void everyPairHasATransition() {
+        for (int state = 0; state < STATE_COUNT; state++) {
+            for (int input = 0; input < INPUT_COUNT; input++) {
+                int next = next(state, input);
+                assertTrue(pair(state, input), next >= 0 && next < STATE_COUNT);
+            }
+        }
+    }
+
+    @Test
+    public void transportWinsInEveryState() {
+        for (int state = 0; state < STATE_COUNT; state++) {
+            assertEquals(pair(state, SERVER_CONNECTED), TUNING, next(state, SERVER_CONNECTED));
+            assertTrue(has(actions(state, SERVER_CONNECTED), STAMP_CONNECTED | EMIT_CONNECTED));
+            assertEquals(pair(state, SERVER_DISCONNECTED), DISCONNECTED, next(state, SERVER_DISCONNECTED));
+            assertTrue(has(actions(state, SERVER_DISCONNECTED), EMIT_DISCONNECTED));
+            assertEquals(pair(state, USER_CONNECT), CONNECTING, next(state, USER_CONNECT));
+            assertTrue(has(actions(state, USER_CONNECT), SEND_FREQUENCY));
+        }
+    }
+
+    @Test
+    public void nothingIsSentWhileDisconnected() {
+        for (int input = 0; input < INPUT_COUNT; input++) {
+            int actions = actions(DISCONNECTED, input);
+            assertFalse(pair(DISCONNECTED, input), has(actions, SEND_LINE_UP | SEND_LINE_DOWN | SPLIT_LINE_UP));
+            if (input != SERVER_CONNECTED && input != USER_CONNECT) {
+                assertFalse(pair(DISCONNECTED, input), has(actions, SEND_FREQUENCY));
+                assertEquals(pair(DISCONNECTED, input), DISCONNECTED, next(DISCONNECTED, input));
+            }
+        }
+    }
+
+    @Test
+    public void lineFramesFollowUserOwnership() {
+        for (int state = 0; state < STATE_COUNT; state++) {
+            for (int input = 0; input < INPUT_COUNT; input++) {
+                int next = next(state, input);
+                int actions = actions(state, input);
+                boolean raised = !userHoldsLine(state) && userHoldsLine(next);
+                boolean released = userHoldsLine(state) && !userHoldsLine(next);
+                boolean transport = transport(input);
+                String pair = pair(state, input);
+                assertEquals(pair, raised, has(actions, SEND_LINE_UP));
+                assertEquals(pair, released && !transport, has(actions, SEND_LINE_DOWN));
+                assertEquals(pair, released && transport, has(actions, CANCEL_LINE));
+                if (raised) {
+                    assertEquals(pair, USER_UP, input);
+                }
+                if (released && !transport) {
+                    assertEquals(pair, USER_DOWN, input);
+                }
+                if (has(actions, SPLIT_LINE_UP)) {
+                    assertTrue(pair, userHoldsLine(state) && state == next && input == LONG_LINE_UP);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void serverOwnershipFollowsServerFrames() {
+        for (int state = 0; state < STATE_COUNT; state++) {
+            for (int input = 0; input < INPUT_COUNT; input++) {
+                int next = next(state, input);
+                if (serverHoldsLine(state) != serverHoldsLine(next)) {
+                    assertTrue(pair(state, input), input == SERVER_UP || input == SERVER_DOWN || transport(input));
+                }
+                if (input == SERVER_UP && publicState(state) != CWPState.Disconnected && !tuning(state)) {
+                    assertTrue(pair(state, input), serverHoldsLine(next));
+                }
+                if (input == SERVER_DOWN) {
+                    assertFalse(pair(state, input), serverHoldsLine(next));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void lineEventsFollowTheVisibleLine() {
+        for (int state = 0; state < STATE_COUNT; state++) {
+            for (int input = 0; input < INPUT_COUNT; input++) {
+                int next = next(state, input);
+                int actions = actions(state, input);
+                String pair = pair(state, input);
+                assertEquals(pair, !lineUp(state) && lineUp(next), has(actions, EMIT_LINE_UP));
+                if (lineUp(state) && !lineUp(next)) {
+                    assertTrue(pair, has(actions, EMIT_LINE_DOWN | EMIT_CONNECTED | EMIT_DISCONNECTED));
+                }
+                if (has(actions, EMIT_LINE_DOWN)) {
+                    assertFalse(pair, lineUp(next));
+                }
+                if (has(actions, EMIT_SERVER_STATE_CHANGE)) {
+                    assertTrue(pair, userHoldsLine(state) && userHoldsLine(next));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void frequencyChangesOnlyWhileTheLineIsDown() {
+        for (int state = 0; state < STATE_COUNT; state++) {
+            for (int input = 0; input < INPUT_COUNT; input++) {
+                int next = next(state, input);
+                int actions = actions(state, input);
+                String pair = pair(state, input);
+                if (has(actions, ADOPT_FREQUENCY)) {
+                    assertTrue(pair, input == USER_FREQUENCY && !lineUp(state));
+                }
+                if (input == USER_FREQUENCY && lineUp(state)) {
+                    assertEquals(pair, 0, actions);
+                    assertEquals(pair, state, next);
+                }
+                if (has(actions, SEND_FREQUENCY)) {
+                    assertTrue(pair, awaiting(next));
+                }
+                if (awaiting(state) && !awaiting(next)) {
+                    assertTrue(pair, has(actions, SETTLE_FREQUENCY));
+                }
+                // the default announced on connect and echoes of earlier requests are not answered
+                if (input == SERVER_OTHER_FREQUENCY) {
+                    assertEquals(pair, 0, actions);
+                }
+                if (input == FREQUENCY_TIMEOUT) {
+                    assertEquals(pair, awaiting(state) && state != CONNECTING, has(actions, SEND_FREQUENCY));
+                    assertEquals(pair, has(actions, SEND_FREQUENCY), has(actions, RETRY_FREQUENCY));
+                }
+                // the request in flight was echoed but the user changed the frequency meanwhile
+                if (input == SERVER_SUPERSEDED_FREQUENCY && tuning(state)) {
+                    assertEquals(pair, state, next);
+                    assertEquals(pair, SETTLE_FREQUENCY | SEND_FREQUENCY, actions);
+                }
+                if (has(actions, RETRY_FREQUENCY)) {
+                    assertEquals(pair, FREQUENCY_TIMEOUT, input);
+                }
+                assertEquals(pair, input == SERVER_FREQUENCY && tuning(state), has(actions, EMIT_CHANGED_FREQUENCY));
+                if (tuning(state) && input == SERVER_FREQUENCY) {
+                    assertFalse(pair, tuning(next));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void everyStateIsReachable() {
+        boolean[] reached = new boolean[STATE_COUNT];
+        int[] queue = new int[STATE_COUNT];
+        int head = 0;
+        int tail = 0;
+        reached[DISCONNECTED] = true;
+        queue[tail++] = DISCONNECTED;
+        while (head < tail) {
+            int state = queue[head++];
+            for (int input = 0; input < INPUT_COUNT; input++) {
+                int next = next(state, input);
+                if (!reached[next]) {
+                    reached[next] = true;
+                    queue[tail++] = next;
+                }
+            }
+        }
+        assertEquals(STATE_COUNT, tail);
+    }
+
+    @Test
+    public void serverFramesMapToInputs() {
+        assertEquals(SERVER_CONNECTED, serverInput(CWPState.Connected, 0, -1, -1));
+        assertEquals(SERVER_DISCONNECTED, serverInput(CWPState.Disconnected, 0, -1, -1));
+        assertEquals(SERVER_UP, serverInput(CWPState.LineUp, 1200, -1, -1));
+        assertEquals(SERVER_DOWN, serverInput(CWPState.LineDown, 0, -1, -1));
+        assertEquals(SERVER_DOWN, serverInput(CWPState.LineDown, 120, -1, -1));
+        assertEquals(SERVER_FREQUENCY, serverInput(CWPState.LineDown, -3, -3, -3));
+        assertEquals(SERVER_OTHER_FREQUENCY, serverInput(CWPState.LineDown, -1, -3, -3));
+        assertEquals(SERVER_OTHER_FREQUENCY, serverInput(CWPState.LineDown, -3, CWPFrequencyNegotiation.NONE, -3));
+        assertEquals(SERVER_SUPERSEDED_FREQUENCY, serverInput(CWPState.LineDown, -3, -3, -5));
+    }
+
+    @Test
+    public void randomSequencesKeepTheProtocolConsistent() {
+        Random random = new Random(SEED);
+        for (int sequence = 0; sequence < SEQUENCES; sequence++) {
+            new Session(random.nextLong()).run(SEQUENCE_LENGTH);
+        }
+    }
+
+    // One protocol instance on a virtual clock and a driven wheel, everything inline on the test thread.
+    private static final class Session implements CWProtocolListener, CWPTransport {
+        private final Random random;
+        private final CWPVirtualClock clock = new CWPVirtualClock();
+        private final CWPTimerWheel timers = CWPTimerWheel.driven(clock);
+        private final CWProtocolImplementation protocol;
+        private CWPFrameQueue outbound = null;
+        private CWPFrameDecoder.FrameListener inbound = null;
+        private String failure = null;
+        private String step = "";
+        private boolean connecting = false;   // Connected is held back until a later input
+        private boolean visibleLineUp = false;
+        private boolean wireLineUp = false;
+        private int lastOffset = 0;
+        private int requestedFrequency = 0;   // frequency frame on the wire without an echo, 0 for none
+        private long requestedAt = 0;
+
+        Session(long seed) {
+            random = new Random(seed);
+            protocol = new CWProtocolImplementation(this, new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    command.run();
+                }
+            }, clock, timers);
+            protocol.setTransport(this);
+        }
+
+        void run(int length) {
+            for (int i = 0; i < length; i++) {
+                boolean wasConnected = protocol.isConnected();
+                boolean wasConnecting = connecting;
+                boolean wasLineUp = protocol.lineIsUp();
+                int frequency = protocol.frequency();
+                step = "step " + i + " in " + protocol.isConnected() + "/" + protocol.lineIsUp();
+                boolean reconnected = randomInput();
+                check(failure == null, failure);
+                check(protocol.lineIsUp() == visibleLineUp, "line events disagree with lineIsUp()");
+                if (wasLineUp && protocol.lineIsUp()) {
+                    check(protocol.frequency() == frequency, "frequency changed while the line was up");
+                }
+                if (!wasConnected && !wasConnecting && !reconnected) {
+                    check(outbound == null || outbound.isEmpty(), "frames sent while disconnected");
+                }
+                drainOutbound();
+            }
+        }
+
+        // True when the input was a new connection.
+        private boolean randomInput() {
+            int input = random.nextInt(21);
+            if (input < 4) {
+                protocol.lineUp();
+            } else if (input < 8) {
+                protocol.lineDown();
+            } else if (input < 10) {
+                advance(random.nextInt(500));
+            } else if (input < 11) {
+                advance(random.nextInt(15000));
+            } else if (input < 12) {
+                protocol.setFrequency(1 + random.nextInt(3));
+            } else if (input < 13) {
+                boolean connect = !protocol.isConnected() || random.nextInt(8) == 0;
+                if (connect) {
+                    protocol.connect("session", 0, 1 + random.nextInt(3));
+                    wireLineUp = false;
+                    lastOffset = 0;
+                    requestedFrequency = 0;
+                    return true;
+                }
+                try {
+                    protocol.disconnect();
+                } catch (java.io.IOException e) {
+                    throw new AssertionError(e);
+                }
+            } else if (input < 15) {
+                serverFrame(CWPState.LineUp, random.nextInt(100000));
+            } else if (input < 17) {
+                serverFrame(CWPState.LineDown, random.nextInt(2000));
+            } else if (input < 18) {
+                serverFrame(CWPState.LineDown, -protocol.frequency());
+            } else if (input < 19) {
+                int inFlight = protocol.frequencyNegotiation().inFlight();
+                serverFrame(CWPState.LineDown, inFlight != CWPFrequencyNegotiation.NONE ? inFlight : -1);
+            } else if (input < 20) {
+                serverFrame(CWPState.LineDown, -1 - random.nextInt(3));
+            } else if (connecting) {
+                connecting = false;
+                inbound.onFrame(CWPState.Connected, 0);
+            }
+            return false;
+        }
+
+        private void advance(long millis) {
+            clock.advance(millis, TimeUnit.MILLISECONDS);
+            timers.expire();
+        }
+
+        private void serverFrame(CWPState state, int value) {
+            if (inbound != null) {
+                if (value == requestedFrequency) {
+                    requestedFrequency = 0;
+                }
+                inbound.onFrame(state, value);
+                inbound.onReadEnd();
+            }
+        }
+
+        private void drainOutbound() {
+            if (outbound == null) {
+                return;
+            }
+            long frame;
+            while ((frame = outbound.poll()) != CWPFrameQueue.EMPTY) {
+                int value = CWPFrameQueue.value(frame);
+                if (CWPFrameQueue.tag(frame) == CWPFrameQueue.SHORT_FRAME) {
+                    check(wireLineUp, "LineDown frame without LineUp");
+                    check(value >= 0 && value <= 30000, "LineDown duration " + value);
+                    wireLineUp = false;
+                } else if (value >= 0) {
+                    check(!wireLineUp, "LineUp frame while the line is up");
+                    check(value >= lastOffset, "LineUp offset " + value + " before " + lastOffset);
+                    wireLineUp = true;
+                    lastOffset = value;
+                } else {
+                    check(value == -protocol.frequency(), "frequency frame " + value + " for " + protocol.frequency());
+                    check(requestedFrequency == 0 || clock.nanoTime() - requestedAt >= TimeUnit.SECONDS.toNanos(2),
+                            "frequency frame " + value + " while " + requestedFrequency + " waits for its echo");
+                    requestedFrequency = value;
+                    requestedAt = clock.nanoTime();
+                }
+            }
+        }
+
+        private void check(boolean condition, String message) {
+            if (!condition) {
+                throw new AssertionError(step + ": " + message);
+            }
+        }
+
+        @Override
+        public void onEvent(CWPEvent event, int param) {
+            if (failure != null) {
+                return;
+            }
+            switch (event) {
+                case ELineUp:
+                    if (visibleLineUp || !protocol.lineIsUp()) {
+                        failure = "ELineUp while the line was up or for a line that is down";
+                    }
+                    visibleLineUp = true;
+                    break;
+                case ELineDown:
+                    if (protocol.lineIsUp()) {
+                        failure = "ELineDown for a line that is up";
+                    }
+                    visibleLineUp = false;
+                    break;
+                case EConnected:
+                    if (!protocol.isConnected() || protocol.lineIsUp()) {
+                        failure = "EConnected while disconnected or with the line up";
+                    }
+                    visibleLineUp = false;
+                    break;
+                case EDisconnected:
+                    if (protocol.isConnected()) {
+                        failure = "EDisconnected while connected";
+                    }
+                    visibleLineUp = false;
+                    break;
+                case EChangedFrequency:
+                    if (param != protocol.frequency()) {
+                        failure = "EChangedFrequency " + param + " on frequency " + protocol.frequency();
+                    }
+                    break;
+                case EServerStateChange:
+                    if (!protocol.lineIsUp()) {
+                        failure = "EServerStateChange without the user line up";
+                    }
+                    break;
+            }
+        }
+
+        @Override
+        public void open(String serverAddress, int serverPort, CWPFrameQueue outbound,
+                         CWPFrameDecoder.FrameListener listener) {
+            this.outbound = outbound;
+            this.inbound = listener;
+            connecting = random.nextInt(4) == 0;
+            if (!connecting) {
+                listener.onFrame(CWPState.Connected, 0);
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+            CWPFrameDecoder.FrameListener listener = inbound;
+            inbound = null;
+            connecting = false;
+            requestedFrequency = 0;
+            if (listener != null) {
+                listener.onFrame(CWPState.Disconnected, 0);
+            }
+        }
+
+        @Override
+        public CWPWriteStats writeStats() {
+            return new CWPWriteStats();
+        }
+    }
+}
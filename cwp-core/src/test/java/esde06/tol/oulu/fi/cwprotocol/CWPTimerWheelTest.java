@@ -0,0 +1,167 @@
+package esde06.tol.oulu.fi.cwprotocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CWPTimerWheelTest {
+
+    private final CWPVirtualClock clock = new CWPVirtualClock();
+    private final CWPTimerWheel timers = CWPTimerWheel.driven(clock);
+    private final List<String> fired = new ArrayList<String>();
+
+    private CWPTimerWheel.Timeout timeout(final String name) {
+        return timers.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                fired.add(name + "@" + TimeUnit.NANOSECONDS.toMillis(clock.nanoTime()));
+            }
+        });
+    }
+
+    private void advance(long millis) {
+        for (long i = 0; i < millis; i++) {
+            clock.advance(1, TimeUnit.MILLISECONDS);
+            timers.expire();
+        }
+    }
+
+    @Test
+    public void timeoutFiresWithinATickOfItsDeadline() {
+        clock.advance(5, TimeUnit.SECONDS);
+        CWPTimerWheel.Timeout a = timeout("a");
+        CWPTimerWheel.Timeout b = timeout("b");
+        timers.schedule(a, 10, TimeUnit.MILLISECONDS);
+        timers.schedule(b, 3, TimeUnit.MILLISECONDS);
+        assertEquals(2, timers.pendingCount());
+        advance(3);
+        assertTrue(fired.isEmpty());
+        advance(1);
+        assertEquals("[b@5004]", fired.toString());
+        advance(7);
+        assertEquals("[b@5004, a@5011]", fired.toString());
+        assertEquals(0, timers.pendingCount());
+        assertFalse(timers.isPending(a));
+    }
+
+    @Test
+    public void cancelledTimeoutNeverRuns() {
+        CWPTimerWheel.Timeout a = timeout("a");
+        CWPTimerWheel.Timeout b = timeout("b");
+        timers.schedule(a, 5, TimeUnit.MILLISECONDS);
+        timers.schedule(b, 5, TimeUnit.MILLISECONDS);
+        assertTrue(timers.cancel(a));
+        assertFalse(timers.cancel(a));
+        assertEquals(1, timers.pendingCount());
+        advance(20);
+        assertEquals("[b@6]", fired.toString());
+        assertFalse(timers.cancel(b));
+    }
+
+    @Test
+    public void rescheduleMovesAPendingTimeout() {
+        CWPTimerWheel.Timeout a = timeout("a");
+        timers.schedule(a, 5, TimeUnit.MILLISECONDS);
+        advance(2);
+        timers.schedule(a, 20, TimeUnit.MILLISECONDS);
+        assertEquals(1, timers.pendingCount());
+        advance(30);
+        assertEquals("[a@23]", fired.toString());
+    }
+
+    @Test
+    public void deadlinesBeyondOneRevolutionWaitForTheirRound() {
+        // 512 ticks to a revolution: these share buckets with earlier deadlines
+        CWPTimerWheel.Timeout near = timeout("near");
+        CWPTimerWheel.Timeout far = timeout("far");
+        CWPTimerWheel.Timeout farther = timeout("farther");
+        timers.schedule(near, 100, TimeUnit.MILLISECONDS);
+        timers.schedule(far, 100 + 512, TimeUnit.MILLISECONDS);
+        timers.schedule(farther, 100 + 3 * 512, TimeUnit.MILLISECONDS);
+        advance(101);
+        assertEquals("[near@101]", fired.toString());
+        advance(511);
+        assertEquals("[near@101]", fired.toString());
+        advance(1);
+        assertEquals("[near@101, far@613]", fired.toString());
+        advance(2000);
+        assertEquals("[near@101, far@613, farther@1637]", fired.toString());
+    }
+
+    @Test
+    public void clockJumpingPastSeveralRevolutionsFiresEverythingDue() {
+        CWPTimerWheel.Timeout a = timeout("a");
+        CWPTimerWheel.Timeout b = timeout("b");
+        CWPTimerWheel.Timeout c = timeout("c");
+        timers.schedule(a, 700, TimeUnit.MILLISECONDS);
+        timers.schedule(b, 1300, TimeUnit.MILLISECONDS);
+        timers.schedule(c, 5000, TimeUnit.MILLISECONDS);
+        clock.advance(2, TimeUnit.SECONDS);
+        timers.expire();
+        assertEquals(2, fired.size());
+        assertEquals(1, timers.pendingCount());
+        assertTrue(timers.isPending(c));
+    }
+
+    @Test
+    public void threadedWheelWakesForAnEarlierDeadline() throws Exception {
+        CWPTimerWheel wheel = new CWPTimerWheel(CWPClock.SYSTEM, "CWPTimerWheelTest");
+        final CountDownLatch ran = new CountDownLatch(1);
+        CWPTimerWheel.Timeout late = wheel.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        CWPTimerWheel.Timeout soon = wheel.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        wheel.schedule(late, 1, TimeUnit.HOURS);
+        Thread.sleep(20);   // the wheel thread is parked until the late deadline by now
+        long scheduled = System.nanoTime();
+        wheel.schedule(soon, 10, TimeUnit.MILLISECONDS);
+        assertTrue(ran.await(1, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - scheduled >= TimeUnit.MILLISECONDS.toNanos(10));
+        assertTrue(wheel.cancel(late));
+    }
+
+    @Test
+    public void shutdownDropsTimeoutsAndEndsTheWheelThread() throws Exception {
+        CWPTimerWheel wheel = new CWPTimerWheel(CWPClock.SYSTEM, "CWPTimerWheelShutdown");
+        final CountDownLatch ran = new CountDownLatch(1);
+        CWPTimerWheel.Timeout timeout = wheel.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        wheel.schedule(timeout, 1, TimeUnit.HOURS);
+        Thread thread = findThread("CWPTimerWheelShutdown");
+        wheel.shutdown();
+        thread.join(1000);
+        assertFalse(thread.isAlive());
+        assertEquals(0, wheel.pendingCount());
+
+        wheel.schedule(timeout, 1, TimeUnit.MILLISECONDS);
+        assertFalse(wheel.isPending(timeout));
+        assertFalse(ran.await(50, TimeUnit.MILLISECONDS));
+    }
+
+    private static Thread findThread(String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(name)) {
+                return thread;
+            }
+        }
+        throw new AssertionError("no thread " + name);
+    }
+}
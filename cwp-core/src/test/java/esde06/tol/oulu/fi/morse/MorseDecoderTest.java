@@ -0,0 +1,157 @@
+package esde06.tol.oulu.fi.morse;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import esde06.tol.oulu.fi.cwprotocol.CWPTimerWheel;
+import esde06.tol.oulu.fi.cwprotocol.CWPVirtualClock;
+
+// Keying comes from MorseKeyer.schedule, optionally jittered, and is fed as the protocol would.
+public class MorseDecoderTest implements MorseDecoder.Listener {
+
+    private static final String TEXT = "CQ CQ DE OH8 PARIS THE QUICK BROWN FOX JUMPS OVER THE LAZY DOG 73";
+
+    private final StringBuilder decoded = new StringBuilder();
+
+    @Override
+    public void onCharacter(MorseDecoder decoder, char character) {
+        decoded.append(character);
+    }
+
+    // Alternating line up offsets and line down durations in milliseconds, each element and gap
+    // stretched or shrunk by up to jitter of its length.
+    private static int[] keying(String text, int wpm, double jitter, long seed) {
+        long[] schedule = MorseKeyer.schedule(text, wpm);
+        Random random = new Random(seed);
+        int[] keying = new int[schedule.length - 1];
+        double at = 0;
+        for (int i = 0; i + 1 < schedule.length; i += 2) {
+            if (i > 0) {
+                at += (schedule[i] - schedule[i - 1]) / 1e6 * (1 + jitter * (2 * random.nextDouble() - 1));
+            }
+            double mark = (schedule[i + 1] - schedule[i]) / 1e6 * (1 + jitter * (2 * random.nextDouble() - 1));
+            keying[i] = (int) Math.round(at);
+            keying[i + 1] = Math.max(1, (int) Math.round(mark));
+            at += mark;
+        }
+        return keying;
+    }
+
+    private String decode(MorseDecoder decoder, int[] keying) {
+        for (int i = 0; i < keying.length; i += 2) {
+            decoder.onLineUp(keying[i]);
+            decoder.onLineDown(keying[i + 1]);
+        }
+        decoder.idle(Integer.MAX_VALUE);
+        return decoded.toString();
+    }
+
+    @Test
+    public void decodesExactKeyingAtSeveralSpeeds() {
+        int[] speeds = {5, 12, 20, 30, 45, 60};
+        for (int wpm : speeds) {
+            decoded.setLength(0);
+            MorseDecoder decoder = new MorseDecoder(this, wpm);
+            assertEquals(wpm + " WPM", TEXT + " ", decode(decoder, keying(TEXT, wpm, 0, 0)));
+            assertEquals(wpm, decoder.wpm());
+        }
+    }
+
+    @Test
+    public void decodesJitteredKeying() {
+        int[] speeds = {10, 20, 40};
+        for (int wpm : speeds) {
+            for (long seed = 1; seed <= 5; seed++) {
+                decoded.setLength(0);
+                MorseDecoder decoder = new MorseDecoder(this, wpm);
+                assertEquals(wpm + " WPM, seed " + seed, TEXT + " ",
+                        decode(decoder, keying(TEXT, wpm, 0.15, seed)));
+            }
+        }
+    }
+
+    @Test
+    public void followsAChangeOfSpeed() {
+        MorseDecoder decoder = new MorseDecoder(this, MorseDecoder.DEFAULT_WPM);
+        decode(decoder, keying("VVV " + TEXT, 35, 0, 0));
+        // a few characters to catch up, the rest is right
+        String text = decoded.toString();
+        assertEquals(TEXT + " ", text.substring(text.length() - TEXT.length() - 1));
+        assertEquals(35, decoder.wpm(), 2);
+    }
+
+    @Test
+    public void moreElementsThanAnyCodeAreUnknown() {
+        // eight dits, one past the longest code
+        assertEquals("* ", decodeDits(8));
+        // seven elements are still looked up
+        decoded.setLength(0);
+        assertEquals("$ ", decode(new MorseDecoder(this, 20), keying("$", 20, 0, 0)));
+    }
+
+    private String decodeDits(int dits) {
+        decoded.setLength(0);
+        MorseDecoder decoder = new MorseDecoder(this, 20);
+        for (int i = 0; i < dits; i++) {
+            decoder.onLineUp(i * 120);
+            decoder.onLineDown(60);
+        }
+        decoder.idle(Integer.MAX_VALUE);
+        return decoded.toString();
+    }
+
+    @Test
+    public void idleTimerSpacesOutTheLastCharacterAndWord() {
+        CWPVirtualClock clock = new CWPVirtualClock();
+        CWPTimerWheel timers = CWPTimerWheel.driven(clock);
+        MorseDecoder decoder = new MorseDecoder(this, 20, clock, timers, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        // "K" at 20 WPM, a 60 ms dit, keyed in real time on the virtual clock
+        int[] keying = keying("K", 20, 0, 0);
+        for (int i = 0; i < keying.length; i += 2) {
+            advanceTo(clock, timers, keying[i]);
+            decoder.onLineUp(keying[i]);
+            advanceTo(clock, timers, keying[i] + keying[i + 1]);
+            decoder.onLineDown(keying[i + 1]);
+        }
+        int end = keying[keying.length - 2] + keying[keying.length - 1];
+        advanceTo(clock, timers, end + 119);
+        assertEquals("", decoded.toString());
+        advanceTo(clock, timers, end + 121);
+        assertEquals("K", decoded.toString());
+        advanceTo(clock, timers, end + 299);
+        assertEquals("K", decoded.toString());
+        advanceTo(clock, timers, end + 301);
+        assertEquals("K ", decoded.toString());
+        advanceTo(clock, timers, end + 5000);
+        assertEquals("K ", decoded.toString());
+        assertEquals(0, timers.pendingCount());
+
+        // the next line up inside the gap keeps the character open
+        decoder.onLineUp(end + 5000);
+        advanceTo(clock, timers, end + 5060);
+        decoder.onLineDown(60);
+        advanceTo(clock, timers, end + 5110);
+        decoder.onLineUp(end + 5110);
+        advanceTo(clock, timers, end + 5170);
+        decoder.onLineDown(60);
+        advanceTo(clock, timers, end + 6000);
+        assertEquals("K I ", decoded.toString());
+    }
+
+    private static void advanceTo(CWPVirtualClock clock, CWPTimerWheel timers, long millis) {
+        while (clock.nanoTime() < TimeUnit.MILLISECONDS.toNanos(millis)) {
+            clock.advance(1, TimeUnit.MILLISECONDS);
+            timers.expire();
+        }
+    }
+}
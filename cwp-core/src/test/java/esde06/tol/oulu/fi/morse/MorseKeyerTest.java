@@ -0,0 +1,221 @@
+package esde06.tol.oulu.fi.morse;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import esde06.tol.oulu.fi.cwprotocol.CWPFrameDecoder;
+import esde06.tol.oulu.fi.cwprotocol.CWPFrameQueue;
+import esde06.tol.oulu.fi.cwprotocol.CWPTimerWheel;
+import esde06.tol.oulu.fi.cwprotocol.CWPTransport;
+import esde06.tol.oulu.fi.cwprotocol.CWPVirtualClock;
+import esde06.tol.oulu.fi.cwprotocol.CWPWriteStats;
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation;
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation.CWPState;
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolListener;
+
+// The test thread plays the protocol thread: whatever the keyer posts waits in a queue until it runs it.
+public class MorseKeyerTest implements CWPTransport, Executor {
+
+    private final CWPVirtualClock clock = new CWPVirtualClock();
+    private final BlockingQueue<Runnable> protocolThread = new LinkedBlockingQueue<Runnable>();
+    private CWProtocolImplementation protocol;
+    private MorseKeyer keyer;
+    private CWPFrameQueue outbound;
+    private CWPFrameDecoder.FrameListener inbound;
+
+    @Before
+    public void setUp() {
+        clock.advance(1, TimeUnit.SECONDS);
+        protocol = new CWProtocolImplementation(new CWProtocolListener() {
+            @Override
+            public void onEvent(CWPEvent event, int param) {
+            }
+        }, this, clock, CWPTimerWheel.driven(clock));
+        protocol.setTransport(this);
+        protocol.connect("keyer", 0, 1);
+        inbound.onFrame(CWPState.Connected, 0);
+        inbound.onFrame(CWPState.LineDown, -1);
+        inbound.onReadEnd();
+        runPosted();
+        sent();
+        keyer = new MorseKeyer(protocol, this);
+    }
+
+    @Test
+    public void cancelLetsGoOfTheLineBeforeTheUserTaps() throws Exception {
+        keyer.send("T", 20);
+        runNextPosted();
+        assertTrue(protocol.lineIsUp());
+
+        // the user taps while the dah is up: the lamp cancels the text, then posts its line up
+        clock.advance(50, TimeUnit.MILLISECONDS);
+        keyer.cancel();
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                protocol.lineUp();
+            }
+        });
+        awaitIdle();
+        runPosted();
+
+        assertTrue(protocol.lineIsUp());
+        List<String> frames = sent();
+        assertEquals(3, frames.size());
+        assertTrue(frames.get(0).startsWith("up "));
+        assertEquals("down 50", frames.get(1));
+        assertTrue(frames.get(2).startsWith("up "));
+    }
+
+    @Test
+    public void nothingIsKeyedAfterTheCancel() throws Exception {
+        keyer.send("EEEE", 20);
+        runNextPosted();
+        clock.advance(60, TimeUnit.MILLISECONDS);
+        runNextPosted();
+        assertFalse(protocol.lineIsUp());
+
+        // the next dit may already be released when the cancel is made
+        clock.advance(60, TimeUnit.MILLISECONDS);
+        Thread.sleep(20);
+        keyer.cancel();
+        awaitIdle();
+        clock.advance(10, TimeUnit.SECONDS);
+        Thread.sleep(20);
+        runPosted();
+
+        assertFalse(protocol.lineIsUp());
+        List<String> frames = sent();
+        assertEquals(2, frames.size());
+        assertEquals("down 60", frames.get(1));
+    }
+
+    @Test
+    public void uncancelledTextIsKeyedOnSchedule() throws Exception {
+        keyer.send("A", 20);    // .-
+        runNextPosted();
+        clock.advance(60, TimeUnit.MILLISECONDS);
+        runNextPosted();
+        clock.advance(60, TimeUnit.MILLISECONDS);
+        runNextPosted();
+        clock.advance(180, TimeUnit.MILLISECONDS);
+        runNextPosted();
+        clock.advance(420, TimeUnit.MILLISECONDS);
+        awaitIdle();
+        runPosted();
+        List<String> frames = sent();
+        assertEquals(4, frames.size());
+        assertEquals("down 60", frames.get(1));
+        assertEquals("down 180", frames.get(3));
+    }
+
+    @Test
+    public void textWithoutMarksEndsAtOnce() throws Exception {
+        assertArrayEquals(new long[] {0}, MorseKeyer.schedule("", 20));
+        assertArrayEquals(new long[] {0}, MorseKeyer.schedule(" #", 20));
+        long dit = TimeUnit.MILLISECONDS.toNanos(60);
+        assertArrayEquals(new long[] {0, dit, 8 * dit}, MorseKeyer.schedule("E", 20));
+
+        // the clock stands still, so a word gap would keep the keyer busy
+        keyer.send("#", 20);
+        awaitIdle();
+        runPosted();
+        assertTrue(sent().isEmpty());
+    }
+
+    @Test
+    public void shutdownEndsTheKeyerThread() throws Exception {
+        List<Thread> before = keyerThreads();
+        keyer.send("T", 20);
+        runNextPosted();
+        List<Thread> started = keyerThreads();
+        started.removeAll(before);
+        assertEquals(1, started.size());
+
+        keyer.shutdown();
+        started.get(0).join(1000);
+        assertFalse(started.get(0).isAlive());
+        runPosted();
+        assertFalse(protocol.lineIsUp());
+        assertFalse(keyer.isSending());
+    }
+
+    private void runNextPosted() throws InterruptedException {
+        Runnable task = protocolThread.poll(1, TimeUnit.SECONDS);
+        assertNotNull("nothing posted", task);
+        task.run();
+    }
+
+    private void runPosted() {
+        Runnable task;
+        while ((task = protocolThread.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void awaitIdle() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (keyer.isSending()) {
+            assertTrue("keyer still sending", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static List<Thread> keyerThreads() {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("CWPKeyer") && thread.isAlive()) {
+                threads.add(thread);
+            }
+        }
+        return threads;
+    }
+
+    private List<String> sent() {
+        List<String> frames = new ArrayList<String>();
+        long frame;
+        while ((frame = outbound.poll()) != CWPFrameQueue.EMPTY) {
+            frames.add((CWPFrameQueue.tag(frame) == CWPFrameQueue.SHORT_FRAME ? "down " : "up ")
+                    + CWPFrameQueue.value(frame));
+        }
+        return frames;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        protocolThread.add(command);
+    }
+
+    @Override
+    public void open(String serverAddress, int serverPort, CWPFrameQueue outbound,
+                     CWPFrameDecoder.FrameListener listener) {
+        this.outbound = outbound;
+        this.inbound = listener;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public CWPWriteStats writeStats() {
+        return new CWPWriteStats();
+    }
+}
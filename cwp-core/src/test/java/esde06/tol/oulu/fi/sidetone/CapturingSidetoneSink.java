@@ -0,0 +1,101 @@
+package esde06.tol.oulu.fi.sidetone;
+
+import java.util.Arrays;
+
+// Keeps everything written to it, for checking the synthesizer and key timing on a plain JVM.
+// write() does not block, so drive the engine with Sidetone.pump() rather than start().
+public class CapturingSidetoneSink implements SidetoneSink {
+
+    private final int sampleRate;
+    private final int blockSize;
+    private short[] samples = new short[4096];
+    private int count = 0;
+    private int writes = 0;
+    private boolean open = false;
+
+    public CapturingSidetoneSink(int sampleRate, int blockSize) {
+        this.sampleRate = sampleRate;
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public int sampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int blockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public synchronized void open() {
+        open = true;
+    }
+
+    @Override
+    public synchronized void write(short[] block, int offset, int length) {
+        if (count + length > samples.length) {
+            samples = Arrays.copyOf(samples, Math.max(samples.length * 2, count + length));
+        }
+        System.arraycopy(block, offset, samples, count, length);
+        count += length;
+        writes++;
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+    }
+
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    public synchronized short[] samples() {
+        return Arrays.copyOf(samples, count);
+    }
+
+    public synchronized int sampleCount() {
+        return count;
+    }
+
+    public synchronized int writes() {
+        return writes;
+    }
+
+    // Index of the first sample at or after from that is not silent, or -1.
+    public synchronized int firstSoundingSample(int from) {
+        for (int i = Math.max(0, from); i < count; i++) {
+            if (samples[i] != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Index of the last sample that is not silent, or -1.
+    public synchronized int lastSoundingSample() {
+        for (int i = count - 1; i >= 0; i--) {
+            if (samples[i] != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Index of the first silent sample at or after from, or -1.
+    public synchronized int firstSilentSample(int from) {
+        for (int i = Math.max(0, from); i < count; i++) {
+            if (samples[i] == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public synchronized void clear() {
+        count = 0;
+        writes = 0;
+    }
+}
@@ -0,0 +1,105 @@
+package esde06.tol.oulu.fi.sidetone;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SidetoneSynthesizerTest {
+
+    private static final int RATE = 48000;
+    private static final int TONE = 700;
+    // Largest step between neighbouring samples of a full-scale 700 Hz sine, anything above is a click.
+    private static final int MAX_STEP = (int) Math.ceil(2 * Math.PI * TONE / RATE * Short.MAX_VALUE) + 1;
+
+    // Key state per sample: down from keyDownAt until keyUpAt.
+    private static short[] render(SidetoneSynthesizer synthesizer, int length, int block, int keyDownAt, int keyUpAt) {
+        short[] out = new short[length];
+        for (int i = 0; i < length; ) {
+            boolean down = i >= keyDownAt && i < keyUpAt;
+            int edge = i < keyDownAt ? keyDownAt : i < keyUpAt ? keyUpAt : length;
+            int chunk = Math.min(Math.min(block, length - i), edge - i);
+            synthesizer.render(out, i, chunk, down);
+            i += chunk;
+        }
+        return out;
+    }
+
+    private static void assertNoClicks(short[] samples) {
+        for (int i = 1; i < samples.length; i++) {
+            int step = Math.abs(samples[i] - samples[i - 1]);
+            assertTrue("step of " + step + " at sample " + i, step <= MAX_STEP);
+        }
+    }
+
+    @Test
+    public void attackRampsUpFromAZeroCrossing() {
+        SidetoneSynthesizer synthesizer = new SidetoneSynthesizer(RATE);
+        int ramp = synthesizer.rampSamples();
+        assertEquals(240, ramp);
+        short[] out = render(synthesizer, 4 * ramp, 4 * ramp, 0, 4 * ramp);
+        assertEquals(0, out[0]);
+        assertNoClicks(out);
+        // each cycle's peak grows through the ramp and stays at full level after it
+        int cycle = RATE / TONE;
+        int previousPeak = 0;
+        for (int start = 0; start + cycle <= ramp; start += cycle) {
+            int peak = peak(out, start, start + cycle);
+            assertTrue("peak " + peak + " after " + previousPeak, peak >= previousPeak);
+            previousPeak = peak;
+        }
+        assertTrue(peak(out, 2 * ramp, 3 * ramp) > Short.MAX_VALUE * 0.99);
+    }
+
+    @Test
+    public void releaseRampsDownToSilence() {
+        SidetoneSynthesizer synthesizer = new SidetoneSynthesizer(RATE);
+        int ramp = synthesizer.rampSamples();
+        short[] out = render(synthesizer, 6 * ramp, 6 * ramp, 0, 3 * ramp);
+        assertNoClicks(out);
+        assertTrue(peak(out, 3 * ramp - 100, 3 * ramp) > Short.MAX_VALUE * 0.9);
+        for (int i = 4 * ramp; i < out.length; i++) {
+            assertEquals("sample " + i, 0, out[i]);
+        }
+        assertTrue(synthesizer.isSilent());
+    }
+
+    @Test
+    public void releaseDuringTheAttackHasNoClick() {
+        SidetoneSynthesizer synthesizer = new SidetoneSynthesizer(RATE);
+        int ramp = synthesizer.rampSamples();
+        short[] out = render(synthesizer, 3 * ramp, 3 * ramp, 0, ramp / 3);
+        assertNoClicks(out);
+        assertTrue(peak(out, 0, ramp) < Short.MAX_VALUE / 2);
+        assertEquals(0, peak(out, ramp, out.length));
+    }
+
+    @Test
+    public void blockBoundariesDoNotChangeTheOutput() {
+        int length = 20000;
+        short[] whole = render(new SidetoneSynthesizer(RATE), length, length, 1000, 9000);
+        int[] blocks = {1, 7, 64, 240, 997, 4096};
+        for (int block : blocks) {
+            short[] split = render(new SidetoneSynthesizer(RATE), length, block, 1000, 9000);
+            assertArrayEquals("blocks of " + block, whole, split);
+        }
+        assertNoClicks(whole);
+    }
+
+    @Test
+    public void everyToneStartsAtTheSamePhase() {
+        SidetoneSynthesizer synthesizer = new SidetoneSynthesizer(RATE);
+        short[] first = render(synthesizer, 2000, 2000, 0, 1000);
+        short[] second = render(synthesizer, 2000, 2000, 0, 1000);
+        assertArrayEquals(first, second);
+    }
+
+    private static int peak(short[] samples, int from, int to) {
+        int peak = 0;
+        for (int i = from; i < to; i++) {
+            peak = Math.max(peak, Math.abs(samples[i]));
+        }
+        return peak;
+    }
+}
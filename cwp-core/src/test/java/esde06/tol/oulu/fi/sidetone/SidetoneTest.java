@@ -0,0 +1,78 @@
+package esde06.tol.oulu.fi.sidetone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import esde06.tol.oulu.fi.cwprotocol.CWPVirtualClock;
+
+// The engine pumped by hand into a capturing sink, one block per pump().
+public class SidetoneTest {
+
+    private static final int RATE = 48000;
+    private static final int BLOCK = 480;   // 10 ms
+
+    private final CWPVirtualClock clock = new CWPVirtualClock();
+    private CapturingSidetoneSink sink;
+    private Sidetone sidetone;
+    private int ramp;
+
+    @Before
+    public void setUp() {
+        sink = new CapturingSidetoneSink(RATE, BLOCK);
+        SidetoneSynthesizer synthesizer = new SidetoneSynthesizer(RATE);
+        ramp = synthesizer.rampSamples();
+        sidetone = new Sidetone(sink, synthesizer, clock);
+    }
+
+    private void pump(int blocks) {
+        for (int i = 0; i < blocks; i++) {
+            sidetone.pump();
+        }
+    }
+
+    @Test
+    public void silenceWhileTheKeyIsUp() {
+        pump(5);
+        assertEquals(5 * BLOCK, sink.sampleCount());
+        assertEquals(5, sink.writes());
+        assertEquals(-1, sink.firstSoundingSample(0));
+    }
+
+    @Test
+    public void toneFollowsTheLineEdges() {
+        pump(2);
+        sidetone.keyDown();
+        clock.advance(3, TimeUnit.MILLISECONDS);
+        pump(3);
+        sidetone.keyUp();
+        pump(2);
+
+        // the tone starts with the first block after the key went down, from a zero crossing
+        int start = sink.firstSoundingSample(0);
+        assertTrue("tone starts at " + start, start > 2 * BLOCK && start < 2 * BLOCK + 8);
+        // and the release after the key went up lasts one ramp
+        int end = sink.lastSoundingSample();
+        assertTrue("tone ends at " + end, end > 5 * BLOCK && end < 5 * BLOCK + ramp);
+
+        assertEquals(1, sidetone.keyLatency().count());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(3), sidetone.keyLatency().max(), TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    @Test
+    public void tapShorterThanABlockStillSounds() {
+        pump(1);
+        sidetone.keyDown();
+        sidetone.keyUp();
+        pump(3);
+        int start = sink.firstSoundingSample(0);
+        assertTrue("tone starts at " + start, start > BLOCK && start < BLOCK + 8);
+        // one block of tone, then the release
+        int end = sink.lastSoundingSample();
+        assertTrue("tone ends at " + end, end > 2 * BLOCK && end < 2 * BLOCK + ramp);
+    }
+}
@@ -0,0 +1,68 @@
+package esde06.tol.oulu.fi.server;
+
+import java.util.Arrays;
+
+import esde06.tol.oulu.fi.cwprotocol.CWPHistogram;
+
+// Subscribers of one frequency and its traffic since the last report. Every subscriber lives on the
+// worker the frequency is sharded to, so fan-out is a plain loop on that worker's thread.
+final class CWPFrequency {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    final int frequency;    // wire value, negative
+    final CWPHistogram fanOutNanos = new CWPHistogram();
+    long framesIn = 0;
+    long framesOut = 0;
+    long pairsDropped = 0;     // a LineUp and its LineDown not delivered to a subscriber that is too slow
+    long collisions = 0;
+
+    // CWP has one line per frequency: a LineUp from anyone else while it is held is dropped with its LineDown.
+    CWPServerConnection holder = null;
+    long lineUpNanos = 0;
+
+    private CWPServerConnection[] subscribers = new CWPServerConnection[INITIAL_CAPACITY];
+    private int size = 0;
+
+    CWPFrequency(int frequency) {
+        this.frequency = frequency;
+    }
+
+    void add(CWPServerConnection connection) {
+        if (size == subscribers.length) {
+            subscribers = Arrays.copyOf(subscribers, size * 2);
+        }
+        connection.subscriberIndex = size;
+        subscribers[size++] = connection;
+    }
+
+    // Moves the last subscriber into the hole, so leaving is O(1) however crowded the frequency is.
+    void remove(CWPServerConnection connection) {
+        int index = connection.subscriberIndex;
+        CWPServerConnection last = subscribers[--size];
+        subscribers[index] = last;
+        last.subscriberIndex = index;
+        subscribers[size] = null;
+        connection.subscriberIndex = -1;
+    }
+
+    CWPServerConnection[] subscribers() {
+        return subscribers;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isIdle() {
+        return size == 0 && framesIn == 0;
+    }
+
+    void resetCounters() {
+        framesIn = 0;
+        framesOut = 0;
+        pairsDropped = 0;
+        collisions = 0;
+        fanOutNanos.reset();
+    }
+}
@@ -0,0 +1,151 @@
+package esde06.tol.oulu.fi.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import esde06.tol.oulu.fi.cwprotocol.CWPControl;
+import esde06.tol.oulu.fi.cwprotocol.CWPLog;
+
+// CWP relay server. Frequencies are sharded over a fixed set of selector workers, a client lives on the
+// worker owning its frequency and is handed to another worker when it changes frequency. The wire protocol
+// is the client's: the server announces the default frequency on connect, echoes every frequency change
+// and relays LineUp/LineDown frames to everybody else on the same frequency.
+public class CWPServer {
+
+    private static final String TAG = "CWPServer";
+    public static final int DEFAULT_PORT = 20000;
+    private static final int ACCEPT_BACKLOG = 4096;
+
+    private final int port;
+    private final int defaultFrequency;
+    private final CWPServerWorker[] workers;
+    private ServerSocketChannel serverChannel = null;
+    private Thread acceptor = null;
+    private volatile boolean running = false;
+    private volatile long accepted = 0;
+    private long lastReportNanos = System.nanoTime();
+
+    public CWPServer(int port, int workerCount) throws IOException {
+        this.port = port;
+        this.defaultFrequency = CWPControl.DEFAULT_FREQUENCY;
+        workers = new CWPServerWorker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new CWPServerWorker(this, i);
+        }
+    }
+
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        running = true;
+        for (CWPServerWorker worker : workers) {
+            worker.start();
+        }
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "CWPServerAcceptor");
+        acceptor.start();
+        CWPLog.d(TAG, "Listening on port " + port() + " with " + workers.length + " workers");
+    }
+
+    private void accept() {
+        CWPServerWorker greeter = workerFor(defaultFrequency);
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                accepted++;
+                greeter.arrive(new CWPServerConnection(channel));
+            } catch (IOException e) {
+                if (running) {
+                    CWPLog.d(TAG, "Accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    public void stop() throws InterruptedException {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        acceptor.join();
+        for (CWPServerWorker worker : workers) {
+            worker.shutdown();
+        }
+        for (CWPServerWorker worker : workers) {
+            worker.join();
+        }
+    }
+
+    // Actual port, for servers started on port 0.
+    public int port() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    int defaultFrequency() {
+        return defaultFrequency;
+    }
+
+    CWPServerWorker workerFor(int frequency) {
+        return workers[Math.floorMod(frequency, workers.length)];
+    }
+
+    // Per-frequency throughput and fan-out latency since the previous report. Each worker reports its
+    // own shard on its own thread, so the counters never need to be shared.
+    public String report() throws InterruptedException {
+        long now = System.nanoTime();
+        final double seconds = Math.max(1, now - lastReportNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+        lastReportNanos = now;
+        final StringBuilder[] shards = new StringBuilder[workers.length];
+        final CountDownLatch done = new CountDownLatch(workers.length);
+        for (int i = 0; i < workers.length; i++) {
+            final StringBuilder shard = shards[i] = new StringBuilder();
+            final CWPServerWorker worker = workers[i];
+            worker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    worker.report(shard, seconds);
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        StringBuilder out = new StringBuilder(String.format(Locale.US, "accepted %d in %.1f s%n", accepted, seconds));
+        for (StringBuilder shard : shards) {
+            out.append(shard);
+        }
+        return out.toString();
+    }
+
+    // Usage: CWPServer [port] [workers] [reportSeconds]
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int workerCount = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int reportSeconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        CWPLog.setSink(new CWPLog.Sink() {
+            @Override
+            public void log(String tag, String message) {
+                System.out.println(tag + ": " + message);
+            }
+        });
+        CWPServer server = new CWPServer(port, workerCount);
+        server.start();
+        while (true) {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(reportSeconds));
+            System.out.print(server.report());
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package esde06.tol.oulu.fi.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import esde06.tol.oulu.fi.cwprotocol.CWPFrameDecoder;
+import esde06.tol.oulu.fi.cwprotocol.CWPFrameQueue;
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation.CWPState;
+
+// One client socket. It belongs to exactly one worker at a time and moves with its buffers
+// to the worker owning a new frequency when the client changes frequency.
+final class CWPServerConnection implements CWPFrameDecoder.FrameListener {
+
+    // Clients send a handful of frames per second, keep per-connection memory small.
+    private static final int READ_BUFFER_LENGTH = 512;
+    private static final int WRITE_BUFFER_LENGTH = 1024;
+    private static final int MAX_FRAMES_PER_READ = READ_BUFFER_LENGTH / 2;
+    static final long NOTHING_PENDING = Long.MIN_VALUE;
+
+    private static final int LINE_UP = 0;
+    private static final int LINE_DOWN = 1;
+    private static final int FREQUENCY = 2;
+
+    final SocketChannel channel;
+    private final CWPFrameDecoder decoder = new CWPFrameDecoder(READ_BUFFER_LENGTH);
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_LENGTH);
+
+    // owning worker state
+    CWPServerWorker worker = null;
+    SelectionKey key = null;
+    CWPFrequency frequency = null;
+    int subscriberIndex = -1;
+    boolean dirty = false;
+    long readNanos = 0;
+    private boolean dropLineDown = false;
+    private boolean awaitingLineDown = false;
+    private long oldestPendingNanos = NOTHING_PENDING;
+
+    // Set while the rest of a read is decoded after a frequency change to another worker,
+    // the remaining frames are kept and handled by the new owner.
+    int handOffFrequency = 0;
+    private long[] handedOver = null;
+    private int handedOverCount = 0;
+
+    CWPServerConnection(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    int read() throws IOException {
+        readNanos = System.nanoTime();
+        return decoder.readFrom(channel, this);
+    }
+
+    @Override
+    public void onFrame(CWPState state, int value) {
+        // a short is being decoded exactly when the decoder still expects one
+        int kind = state == CWPState.LineUp ? LINE_UP : decoder.expectsShort() ? LINE_DOWN : FREQUENCY;
+        handle(CWPFrameQueue.pack(kind, value));
+    }
+
+    // The worker flushes the frequencies it touched once per selector pass.
+    @Override
+    public void onReadEnd() {
+    }
+
+    // New owner, after joining the frequency. A further frequency change starts another hand-off.
+    void replayHandedOver() {
+        long[] frames = handedOver;
+        int count = handedOverCount;
+        handedOver = null;
+        handedOverCount = 0;
+        for (int i = 0; i < count; i++) {
+            handle(frames[i]);
+        }
+    }
+
+    private void handle(long frame) {
+        if (handOffFrequency != 0) {
+            if (handedOver == null) {
+                handedOver = new long[MAX_FRAMES_PER_READ];
+            }
+            handedOver[handedOverCount++] = frame;
+            return;
+        }
+        int value = CWPFrameQueue.value(frame);
+        switch (CWPFrameQueue.tag(frame)) {
+            case LINE_UP:
+                worker.onLineUp(this, value);
+                break;
+            case LINE_DOWN:
+                worker.onLineDown(this, (short) value);
+                break;
+            default:
+                worker.onFrequency(this, value);
+                break;
+        }
+    }
+
+    // A LineDown always follows its LineUp on the wire, so a LineUp is only queued with room for its
+    // LineDown, and a LineUp dropped for lack of room drops its LineDown too.
+    boolean queueLineUp(int value) {
+        if (writeBuffer.remaining() < 6) {
+            dropLineDown = true;
+            return false;
+        }
+        writeBuffer.putInt(value);
+        awaitingLineDown = true;
+        return true;
+    }
+
+    boolean queueLineDown(short value) {
+        if (dropLineDown || !awaitingLineDown || writeBuffer.remaining() < 2) {
+            dropLineDown = false;
+            return false;
+        }
+        writeBuffer.putShort(value);
+        awaitingLineDown = false;
+        return true;
+    }
+
+    // Leaves the room kept for the LineDown of a queued LineUp.
+    boolean queueFrequency(int value) {
+        if (writeBuffer.remaining() < (awaitingLineDown ? 6 : 4)) {
+            return false;
+        }
+        writeBuffer.putInt(value);
+        return true;
+    }
+
+    // Finishes a pair left open when the client leaves the frequency, so its decoder stays in step.
+    // queueLineUp kept the room for it, the check guards that promise rather than trusting it.
+    boolean closeLine(short duration) {
+        dropLineDown = false;
+        if (!awaitingLineDown || writeBuffer.remaining() < 2) {
+            return false;
+        }
+        writeBuffer.putShort(duration);
+        awaitingLineDown = false;
+        return true;
+    }
+
+    // Receive stamp of the oldest frame waiting in the write buffer.
+    void stamp(long receivedNanos) {
+        if (oldestPendingNanos == NOTHING_PENDING) {
+            oldestPendingNanos = receivedNanos;
+        }
+    }
+
+    long takeStamp() {
+        long stamp = oldestPendingNanos;
+        oldestPendingNanos = NOTHING_PENDING;
+        return stamp;
+    }
+
+    // Writes as much as the socket takes. Returns true when nothing is left to write.
+    boolean flush() throws IOException {
+        writeBuffer.flip();
+        channel.write(writeBuffer);
+        writeBuffer.compact();
+        return writeBuffer.position() == 0;
+    }
+
+    boolean hasPendingWrites() {
+        return writeBuffer.position() > 0;
+    }
+}
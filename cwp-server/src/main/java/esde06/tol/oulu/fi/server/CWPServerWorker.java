@@ -0,0 +1,336 @@
+package esde06.tol.oulu.fi.server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import esde06.tol.oulu.fi.cwprotocol.CWPLog;
+
+// Selector loop owning one shard of the frequencies and every connection tuned to them. Frames are
+// fanned out to the other subscribers' write buffers on this thread, and every buffer touched in one
+// pass is written once at the end of the pass.
+final class CWPServerWorker implements Runnable {
+
+    private static final String TAG = "CWPServerWorker";
+
+    private final CWPServer server;
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<CWPServerConnection> arrivals = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = false;
+
+    // loop thread state
+    private final HashMap<Integer, CWPFrequency> frequencies = new HashMap<>();
+    private final ArrayList<CWPServerConnection> dirty = new ArrayList<>();
+    private final ArrayList<CWPServerConnection> handOffs = new ArrayList<>();
+    private int connections = 0;
+    private long handOffCount = 0;
+
+    CWPServerWorker(CWPServer server, int index) throws IOException {
+        this.server = server;
+        selector = Selector.open();
+        thread = new Thread(this, "CWPServerWorker-" + index);
+    }
+
+    void start() {
+        running = true;
+        thread.start();
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    void join() throws InterruptedException {
+        thread.join();
+    }
+
+    // Called from the acceptor and from other workers.
+    void arrive(CWPServerConnection connection) {
+        arrivals.add(connection);
+        selector.wakeup();
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                CWPLog.d(TAG, "Select failed: " + e.getMessage());
+                break;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            CWPServerConnection arrived;
+            while ((arrived = arrivals.poll()) != null) {
+                adopt(arrived);
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                CWPServerConnection connection = (CWPServerConnection) key.attachment();
+                if (key.isValid() && key.isReadable()) {
+                    read(connection);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    markDirty(connection);
+                }
+            }
+
+            for (int i = 0; i < dirty.size(); i++) {
+                flush(dirty.get(i));
+            }
+            dirty.clear();
+            // after the flush, so the new owner finds the write buffer as empty as the socket allows
+            for (int i = 0; i < handOffs.size(); i++) {
+                handOff(handOffs.get(i));
+            }
+            handOffs.clear();
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid()) {    // cancelled keys belong to connections handed to other workers
+                close((CWPServerConnection) key.attachment());
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void adopt(CWPServerConnection connection) {
+        connection.worker = this;
+        try {
+            connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+        } catch (ClosedChannelException e) {
+            return;
+        }
+        connections++;
+        if (connection.handOffFrequency == 0) {
+            // new client: the server announces the default frequency and the client answers with its own
+            join(connection, server.defaultFrequency());
+        } else {
+            int frequency = connection.handOffFrequency;
+            connection.handOffFrequency = 0;
+            join(connection, frequency);
+            connection.replayHandedOver();
+            if (connection.handOffFrequency != 0) {
+                handOffs.add(connection);
+            }
+        }
+    }
+
+    private void read(CWPServerConnection connection) {
+        try {
+            if (connection.read() == -1) {
+                close(connection);
+                return;
+            }
+        } catch (IOException e) {
+            close(connection);
+            return;
+        }
+        if (connection.handOffFrequency != 0) {
+            handOffs.add(connection);
+        }
+    }
+
+    void onLineUp(CWPServerConnection sender, int value) {
+        CWPFrequency frequency = sender.frequency;
+        frequency.framesIn++;
+        if (frequency.holder != null) {
+            frequency.collisions++;
+            return;
+        }
+        frequency.holder = sender;
+        frequency.lineUpNanos = sender.readNanos;
+        CWPServerConnection[] subscribers = frequency.subscribers();
+        for (int i = 0; i < frequency.size(); i++) {
+            CWPServerConnection subscriber = subscribers[i];
+            if (subscriber == sender) {
+                continue;
+            }
+            if (subscriber.queueLineUp(value)) {
+                delivered(frequency, subscriber, sender.readNanos);
+            } else {
+                frequency.pairsDropped++;
+            }
+        }
+    }
+
+    void onLineDown(CWPServerConnection sender, short value) {
+        CWPFrequency frequency = sender.frequency;
+        frequency.framesIn++;
+        if (frequency.holder != sender) {
+            return;     // the LineDown of a LineUp that collided
+        }
+        releaseLine(frequency, value, sender.readNanos);
+    }
+
+    private void releaseLine(CWPFrequency frequency, short value, long receivedNanos) {
+        CWPServerConnection holder = frequency.holder;
+        frequency.holder = null;
+        CWPServerConnection[] subscribers = frequency.subscribers();
+        for (int i = 0; i < frequency.size(); i++) {
+            CWPServerConnection subscriber = subscribers[i];
+            if (subscriber == holder) {
+                continue;
+            }
+            if (subscriber.queueLineDown(value)) {
+                delivered(frequency, subscriber, receivedNanos);
+            }
+        }
+    }
+
+    private void delivered(CWPFrequency frequency, CWPServerConnection subscriber, long receivedNanos) {
+        frequency.framesOut++;
+        subscriber.stamp(receivedNanos);
+        markDirty(subscriber);
+    }
+
+    void onFrequency(CWPServerConnection sender, int frequency) {
+        leave(sender);
+        CWPServerWorker owner = server.workerFor(frequency);
+        if (owner == this) {
+            join(sender, frequency);
+        } else {
+            // the rest of this read is kept for the new owner, the hand-off itself waits for the flush
+            sender.handOffFrequency = frequency;
+        }
+    }
+
+    // Subscribes the connection and confirms the frequency by echoing it.
+    private void join(CWPServerConnection connection, int frequency) {
+        CWPFrequency joined = frequencies.get(frequency);
+        if (joined == null) {
+            joined = new CWPFrequency(frequency);
+            frequencies.put(frequency, joined);
+        }
+        joined.add(connection);
+        connection.frequency = joined;
+        connection.queueFrequency(frequency);
+        markDirty(connection);
+    }
+
+    private void leave(CWPServerConnection connection) {
+        CWPFrequency frequency = connection.frequency;
+        if (frequency == null) {
+            return;
+        }
+        frequency.remove(connection);
+        connection.frequency = null;
+        long now = System.nanoTime();
+        short held = (short) Math.min(TimeUnit.NANOSECONDS.toMillis(now - frequency.lineUpNanos), Short.MAX_VALUE);
+        if (frequency.holder == connection) {
+            releaseLine(frequency, held, now);
+        }
+        if (connection.closeLine(held)) {
+            markDirty(connection);
+        }
+    }
+
+    private void handOff(CWPServerConnection connection) {
+        if (connection.key == null || !connection.key.isValid()) {
+            return;     // closed while waiting for the flush
+        }
+        connection.key.cancel();
+        connection.key = null;
+        connection.worker = null;
+        connections--;
+        handOffCount++;
+        server.workerFor(connection.handOffFrequency).arrive(connection);
+    }
+
+    private void markDirty(CWPServerConnection connection) {
+        if (!connection.dirty) {
+            connection.dirty = true;
+            dirty.add(connection);
+        }
+    }
+
+    private void flush(CWPServerConnection connection) {
+        connection.dirty = false;
+        if (connection.key == null || !connection.key.isValid()) {
+            return;
+        }
+        try {
+            if (connection.flush()) {
+                long stamp = connection.takeStamp();
+                if (stamp != CWPServerConnection.NOTHING_PENDING && connection.frequency != null) {
+                    connection.frequency.fanOutNanos.record(System.nanoTime() - stamp);
+                }
+            }
+        } catch (IOException e) {
+            close(connection);
+            return;
+        }
+        // wait for the socket to drain if the kernel did not take everything
+        int interest = connection.hasPendingWrites()
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                : SelectionKey.OP_READ;
+        if (connection.key.interestOps() != interest) {
+            connection.key.interestOps(interest);
+        }
+    }
+
+    private void close(CWPServerConnection connection) {
+        if (connection.key == null) {
+            return;
+        }
+        leave(connection);
+        connection.key.cancel();
+        connection.key = null;
+        connections--;
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Runs on the loop thread. Appends one line per frequency active since the last report and starts a
+    // new reporting interval, frequencies nobody uses any more are forgotten.
+    void report(StringBuilder out, double seconds) {
+        int header = out.length();
+        Iterator<CWPFrequency> iterator = frequencies.values().iterator();
+        while (iterator.hasNext()) {
+            CWPFrequency frequency = iterator.next();
+            if (frequency.isIdle()) {
+                iterator.remove();
+                continue;
+            }
+            out.append(String.format(Locale.US,
+                    "  frequency %d: subscribers %d, in %.1f/s, out %.1f/s, dropped pairs %d, collisions %d%n",
+                    Math.abs(frequency.frequency), frequency.size(), frequency.framesIn / seconds,
+                    frequency.framesOut / seconds, frequency.pairsDropped, frequency.collisions));
+            if (frequency.fanOutNanos.count() > 0) {
+                out.append("    fan-out (ms) ").append(frequency.fanOutNanos.summary(1000000.0)).append('\n');
+            }
+            frequency.resetCounters();
+        }
+        out.insert(header, String.format(Locale.US, "%s: connections %d, hand-offs %d, frequencies %d%n",
+                thread.getName(), connections, handOffCount, frequencies.size()));
+        handOffCount = 0;
+    }
+}
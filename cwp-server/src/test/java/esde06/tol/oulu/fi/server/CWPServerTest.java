@@ -0,0 +1,251 @@
+package esde06.tol.oulu.fi.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import esde06.tol.oulu.fi.cwprotocol.CWPControl;
+import esde06.tol.oulu.fi.cwprotocol.CWPEventLoop;
+import esde06.tol.oulu.fi.cwprotocol.CWPFrameDecoder;
+import esde06.tol.oulu.fi.cwprotocol.CWPSocketTransport;
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation;
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation.CWPState;
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolListener;
+
+// A server on an ephemeral port with clients in the same process, over real sockets.
+public class CWPServerTest {
+
+    private CWPServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        // two workers, so joining a frequency may hand the client over to the other one
+        server = new CWPServer(0, 2);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        server.stop();
+    }
+
+    @Test
+    public void connectEchoesTheFrequencyAndFansTheLineOut() throws Exception {
+        WireClient a = new WireClient(server.port());
+        WireClient b = new WireClient(server.port());
+        try {
+            assertEquals("LineDown " + CWPControl.DEFAULT_FREQUENCY, a.next());
+            assertEquals("LineDown " + CWPControl.DEFAULT_FREQUENCY, b.next());
+            a.sendInt(-4);
+            b.sendInt(-4);
+            assertEquals("LineDown -4", a.next());
+            assertEquals("LineDown -4", b.next());
+
+            a.sendInt(1500);
+            a.sendShort((short) 120);
+            assertEquals("LineUp 1500", b.next());
+            assertEquals("LineDown 120", b.next());
+            b.sendInt(2000);
+            b.sendShort((short) 60);
+            assertEquals("LineUp 2000", a.next());
+            assertEquals("LineDown 60", a.next());
+            // nobody hears their own line
+            assertNull(a.poll());
+            assertNull(b.poll());
+        } finally {
+            a.close();
+            b.close();
+        }
+    }
+
+    @Test
+    public void lineDoesNotReachAnotherFrequency() throws Exception {
+        WireClient a = new WireClient(server.port());
+        WireClient b = new WireClient(server.port());
+        try {
+            a.next();
+            b.next();
+            a.sendInt(-4);
+            b.sendInt(-7);
+            assertEquals("LineDown -4", a.next());
+            assertEquals("LineDown -7", b.next());
+            a.sendInt(1500);
+            a.sendShort((short) 120);
+            assertNull(b.poll());
+        } finally {
+            a.close();
+            b.close();
+        }
+    }
+
+    @Test
+    public void protocolClientsHearEachOther() throws Exception {
+        ProtocolClient a = new ProtocolClient("A");
+        ProtocolClient b = new ProtocolClient("B");
+        try {
+            a.connect(server.port(), 4);
+            b.connect(server.port(), 4);
+            a.awaitEvent("EChangedFrequency 4");
+            b.awaitEvent("EChangedFrequency 4");
+
+            a.execute(new Runnable() {
+                @Override
+                public void run() {
+                    a.protocol.lineUp();
+                }
+            });
+            b.awaitEvent("ELineUp ");
+            Thread.sleep(50);
+            a.execute(new Runnable() {
+                @Override
+                public void run() {
+                    a.protocol.lineDown();
+                }
+            });
+            // the line down carries how long the line was up
+            String lineDown = b.awaitEvent("ELineDown ");
+            assertTrue(lineDown, Integer.parseInt(lineDown.substring("ELineDown ".length())) >= 50);
+        } finally {
+            a.close();
+            b.close();
+        }
+    }
+
+    // Speaks the wire format directly, frames as they are decoded.
+    private static final class WireClient implements CWPFrameDecoder.FrameListener {
+        private final Socket socket;
+        private final InputStream in;
+        private final CWPFrameDecoder decoder = new CWPFrameDecoder(256);
+        private final BlockingQueue<String> frames = new LinkedBlockingQueue<String>();
+        private final byte[] bytes = new byte[256];
+
+        WireClient(int port) throws IOException {
+            socket = new Socket("localhost", port);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(200);
+            in = socket.getInputStream();
+        }
+
+        void sendInt(int value) throws IOException {
+            socket.getOutputStream().write(ByteBuffer.allocate(4).putInt(value).array());
+        }
+
+        void sendShort(short value) throws IOException {
+            socket.getOutputStream().write(ByteBuffer.allocate(2).putShort(value).array());
+        }
+
+        String next() throws IOException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            String frame;
+            while ((frame = poll()) == null && System.nanoTime() < deadline) {
+                // keep reading
+            }
+            return frame;
+        }
+
+        // The next frame, or null if none comes within the socket timeout.
+        String poll() throws IOException {
+            if (frames.isEmpty()) {
+                try {
+                    int read = in.read(bytes);
+                    if (read > 0) {
+                        decoder.buffer().put(bytes, 0, read);
+                        decoder.decode(this);
+                    }
+                } catch (SocketTimeoutException e) {
+                    return null;
+                }
+            }
+            return frames.poll();
+        }
+
+        @Override
+        public void onFrame(CWPState state, int value) {
+            frames.add(state + " " + value);
+        }
+
+        @Override
+        public void onReadEnd() {
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    // The client's own protocol stack on its own event loop.
+    private static final class ProtocolClient implements CWProtocolListener {
+        final CWPEventLoop loop;
+        final CWProtocolImplementation protocol;
+        private final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+
+        ProtocolClient(String name) {
+            loop = CWPEventLoop.start("CWPServerTest-" + name);
+            protocol = new CWProtocolImplementation(this, loop);
+            protocol.setTransport(new CWPSocketTransport());
+        }
+
+        void connect(final int port, final int frequency) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    protocol.connect("localhost", port, frequency);
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            loop.execute(task);
+        }
+
+        @Override
+        public void onEvent(CWPEvent event, int param) {
+            events.add(event + " " + param);
+        }
+
+        // Waits for an event starting with expected, passing over the others.
+        String awaitEvent(String expected) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            List<String> seen = new ArrayList<String>();
+            String event;
+            do {
+                event = events.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (event == null) {
+                    throw new AssertionError("no " + expected + " in " + seen);
+                }
+                seen.add(event);
+            } while (!event.startsWith(expected));
+            return event;
+        }
+
+        void close() throws Exception {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        protocol.disconnect();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            Thread.sleep(50);
+            loop.shutdown();
+        }
+    }
+}
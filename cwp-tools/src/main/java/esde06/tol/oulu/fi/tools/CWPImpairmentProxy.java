@@ -0,0 +1,373 @@
+package esde06.tol.oulu.fi.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import esde06.tol.oulu.fi.cwprotocol.CWPLog;
+
+// TCP proxy that impairs the link between a client and a CWP server: latency, jitter, a bandwidth cap,
+// byte-level fragmentation and stalls. Fragment cuts, jitter and stalls are a function of the seed, the connection,
+// the direction and the byte offset in the stream, not of how the socket reads happen to come in, so the same
+// seed replays the same impairments. Delivery times never go backwards, jitter and stalls delay the stream
+// without reordering it, as on a real TCP link.
+public class CWPImpairmentProxy {
+
+    private static final String TAG = "CWPImpairmentProxy";
+    private static final int READ_BUFFER_LENGTH = 4096;
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final int listenPort;
+    private final String targetHost;
+    private final int targetPort;
+    private long latencyNanos = 0;
+    private long jitterNanos = 0;
+    private long bytesPerSecond = 0;     // 0 is unlimited
+    private int maxFragment = 0;         // 0 forwards reads whole
+    private double stallProbability = 0;
+    private long stallNanos = 0;
+    private long seed = 0;
+
+    private final AtomicInteger connections = new AtomicInteger(0);
+    private final AtomicLong bytesForwarded = new AtomicLong(0);
+    private final AtomicLong fragments = new AtomicLong(0);
+    private final AtomicLong stalls = new AtomicLong(0);
+    private ServerSocket serverSocket = null;
+    private volatile boolean running = false;
+
+    public CWPImpairmentProxy(int listenPort, String targetHost, int targetPort) {
+        this.listenPort = listenPort;
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+    }
+
+    // One-way delay added to every fragment.
+    public CWPImpairmentProxy setLatency(long latency, TimeUnit unit) {
+        latencyNanos = unit.toNanos(latency);
+        return this;
+    }
+
+    // Uniform extra delay between zero and jitter.
+    public CWPImpairmentProxy setJitter(long jitter, TimeUnit unit) {
+        jitterNanos = unit.toNanos(jitter);
+        return this;
+    }
+
+    public CWPImpairmentProxy setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    // Splits the stream into fragments of 1 to maxFragment bytes, each written on its own.
+    public CWPImpairmentProxy setFragmentation(int maxFragment) {
+        this.maxFragment = maxFragment;
+        return this;
+    }
+
+    // Holds the stream for the stall duration before a fragment, with the given probability.
+    public CWPImpairmentProxy setStalls(double probability, long stall, TimeUnit unit) {
+        stallProbability = probability;
+        stallNanos = unit.toNanos(stall);
+        return this;
+    }
+
+    public CWPImpairmentProxy setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(listenPort));
+        running = true;
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "CWPProxyAcceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        CWPLog.d(TAG, "Proxying port " + port() + " to " + targetHost + ":" + targetPort);
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Actual port, for proxies started on port 0.
+    public int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    public String stats() {
+        return String.format(Locale.US, "connections %d, bytes %d, fragments %d, stalls %d",
+                connections.get(), bytesForwarded.get(), fragments.get(), stalls.get());
+    }
+
+    private void accept() {
+        while (running) {
+            Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (IOException e) {
+                if (running) {
+                    CWPLog.d(TAG, "Accept failed: " + e.getMessage());
+                }
+                continue;
+            }
+            final int connection = connections.incrementAndGet();
+            final Socket accepted = client;
+            // a slow or unreachable target holds up only its own connection, not the accept loop
+            Thread connector = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    connect(connection, accepted);
+                }
+            }, "CWPProxyConnect-" + connection);
+            connector.setDaemon(true);
+            connector.start();
+        }
+    }
+
+    private void connect(int connection, Socket client) {
+        try {
+            Socket server = new Socket();
+            server.setTcpNoDelay(true);
+            server.connect(new InetSocketAddress(targetHost, targetPort));
+            client.setTcpNoDelay(true);
+            new Direction("up-" + connection, client, server, schedule(connection, 0)).start();
+            new Direction("down-" + connection, server, client, schedule(connection, 1)).start();
+        } catch (IOException e) {
+            CWPLog.d(TAG, "Connect to target failed: " + e.getMessage());
+            close(client);
+        }
+    }
+
+    Schedule schedule(int connection, int direction) {
+        return new Schedule((seed * 31 + connection) * 2 + direction);
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static final class Fragment {
+        final byte[] bytes;
+        final long due;
+
+        Fragment(byte[] bytes, long due) {
+            this.bytes = bytes;
+            this.due = due;
+        }
+    }
+
+    private static final Fragment END_OF_STREAM = new Fragment(new byte[0], 0);
+
+    // The impairments of one direction, drawn from a hash of the offset where each fragment starts.
+    final class Schedule {
+        private final long seed;
+
+        Schedule(long seed) {
+            this.seed = seed;
+        }
+
+        // Offset of the first byte after the fragment that starts at start.
+        long fragmentEnd(long start) {
+            if (maxFragment <= 0) {
+                return Long.MAX_VALUE;
+            }
+            return start + 1 + (draw(start, 0) >>> 1) % maxFragment;
+        }
+
+        long jitter(long start) {
+            return jitterNanos > 0 ? (long) (uniform(start, 1) * jitterNanos) : 0;
+        }
+
+        boolean stalls(long start) {
+            return stallProbability > 0 && uniform(start, 2) < stallProbability;
+        }
+
+        private double uniform(long start, int salt) {
+            return (draw(start, salt) >>> 11) * 0x1.0p-53;
+        }
+
+        // SplitMix64 of the seed, the offset and which draw it is.
+        private long draw(long start, int salt) {
+            long z = seed + (start * 3 + salt + 1) * 0x9E3779B97F4A7C15L;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+    }
+
+    // One way of one connection: a reader that cuts and schedules fragments, a writer that sends them on time.
+    private final class Direction {
+        private final String name;
+        private final Socket from;
+        private final Socket to;
+        private final Schedule schedule;
+        private final BlockingQueue<Fragment> queue = new LinkedBlockingQueue<Fragment>();
+        private long lastDue = 0;   // reader thread
+
+        Direction(String name, Socket from, Socket to, Schedule schedule) {
+            this.name = name;
+            this.from = from;
+            this.to = to;
+            this.schedule = schedule;
+        }
+
+        void start() {
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    read();
+                }
+            }, "CWPProxyReader-" + name);
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    write();
+                }
+            }, "CWPProxyWriter-" + name);
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+
+        private void read() {
+            byte[] buffer = new byte[READ_BUFFER_LENGTH];
+            try {
+                InputStream in = from.getInputStream();
+                long position = 0;          // stream offset of the next byte
+                long fragmentStart = 0;
+                long fragmentEnd = schedule.fragmentEnd(0);
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    long arrived = System.nanoTime();
+                    int offset = 0;
+                    while (offset < read) {
+                        if (position == fragmentEnd) {
+                            fragmentStart = position;
+                            fragmentEnd = schedule.fragmentEnd(position);
+                        }
+                        // a read that ends inside a fragment sends its part now, the rest follows with the same delay
+                        int length = (int) Math.min(read - offset, fragmentEnd - position);
+                        schedule(Arrays.copyOfRange(buffer, offset, offset + length), arrived, fragmentStart,
+                                position == fragmentStart);
+                        offset += length;
+                        position += length;
+                    }
+                }
+            } catch (IOException e) {
+                CWPLog.d(TAG, name + " read stopped: " + e.getMessage());
+            }
+            queue.add(END_OF_STREAM);
+        }
+
+        private void schedule(byte[] bytes, long arrived, long fragmentStart, boolean first) {
+            long due = arrived + latencyNanos + schedule.jitter(fragmentStart);
+            due = Math.max(due, lastDue);
+            if (first && schedule.stalls(fragmentStart)) {
+                due += stallNanos;
+                stalls.incrementAndGet();
+            }
+            if (bytesPerSecond > 0) {
+                due += bytes.length * NANOS_PER_SECOND / bytesPerSecond;
+            }
+            lastDue = due;
+            queue.add(new Fragment(bytes, due));
+        }
+
+        private void write() {
+            try {
+                OutputStream out = to.getOutputStream();
+                while (true) {
+                    Fragment fragment = queue.take();
+                    if (fragment == END_OF_STREAM) {
+                        break;
+                    }
+                    long wait;
+                    while ((wait = fragment.due - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    out.write(fragment.bytes);
+                    out.flush();
+                    bytesForwarded.addAndGet(fragment.bytes.length);
+                    fragments.incrementAndGet();
+                }
+            } catch (IOException e) {
+                CWPLog.d(TAG, name + " write stopped: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // a closed side closes the other, like the end of a real connection
+            close(from);
+            close(to);
+        }
+    }
+
+    // Usage: CWPImpairmentProxy listenPort targetHost targetPort [latency=ms] [jitter=ms] [bandwidth=bytes/s]
+    //        [fragment=maxBytes] [stall=percent:ms] [seed=n]
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 3) {
+            System.err.println("Usage: CWPImpairmentProxy listenPort targetHost targetPort [latency=ms] [jitter=ms]"
+                    + " [bandwidth=bytes/s] [fragment=maxBytes] [stall=percent:ms] [seed=n]");
+            System.exit(1);
+        }
+        CWPImpairmentProxy proxy = new CWPImpairmentProxy(Integer.parseInt(args[0]), args[1], Integer.parseInt(args[2]));
+        for (int i = 3; i < args.length; i++) {
+            String[] option = args[i].split("=", 2);
+            String value = option.length > 1 ? option[1] : "";
+            if (option[0].equals("latency")) {
+                proxy.setLatency(Long.parseLong(value), TimeUnit.MILLISECONDS);
+            } else if (option[0].equals("jitter")) {
+                proxy.setJitter(Long.parseLong(value), TimeUnit.MILLISECONDS);
+            } else if (option[0].equals("bandwidth")) {
+                proxy.setBandwidth(Long.parseLong(value));
+            } else if (option[0].equals("fragment")) {
+                proxy.setFragmentation(Integer.parseInt(value));
+            } else if (option[0].equals("stall")) {
+                String[] stall = value.split(":", 2);
+                proxy.setStalls(Double.parseDouble(stall[0]) / 100, Long.parseLong(stall[1]), TimeUnit.MILLISECONDS);
+            } else if (option[0].equals("seed")) {
+                proxy.setSeed(Long.parseLong(value));
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        CWPLog.setSink(new CWPLog.Sink() {
+            @Override
+            public void log(String tag, String message) {
+                System.out.println(tag + ": " + message);
+            }
+        });
+        proxy.start();
+        while (true) {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+            System.out.println(proxy.stats());
+        }
+    }
+}
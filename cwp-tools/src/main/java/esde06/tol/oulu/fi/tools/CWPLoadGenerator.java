@@ -0,0 +1,327 @@
+package esde06.tol.oulu.fi.tools;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import esde06.tol.oulu.fi.EventLogger;
+import esde06.tol.oulu.fi.cwprotocol.CWPClock;
+import esde06.tol.oulu.fi.cwprotocol.CWPEventLoop;
+import esde06.tol.oulu.fi.cwprotocol.CWPHistogram;
+import esde06.tol.oulu.fi.cwprotocol.CWPKeyListener;
+import esde06.tol.oulu.fi.cwprotocol.CWPNioTransport;
+import esde06.tol.oulu.fi.cwprotocol.CWPSelectorLoop;
+import esde06.tol.oulu.fi.cwprotocol.CWPTimerWheel;
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation;
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolListener;
+import esde06.tol.oulu.fi.morse.MorseKeyer;
+
+// Headless load generator: N protocol clients spread over M frequencies against any CWP server.
+// The first client on each frequency keys Morse text, every other client on it listens. Key instants fall
+// on whole milliseconds from the sender's connect, so the LineUp offset and LineDown duration on the wire
+// pin down when each frame was keyed, and receivers measure sender-to-receiver latency from the wire
+// values alone. The latency includes the sender's keying, the server and the receiver's protocol thread.
+public class CWPLoadGenerator {
+
+    private static final String TEXT = "THE QUICK BROWN FOX JUMPS OVER THE LAZY DOG 0123456789 ";
+    private static final long NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final double NANOS_PER_MILLI_DOUBLE = 1000000.0;
+
+    private final String host;
+    private final int port;
+    private final int wpm;
+    private final CWPEventLoop[] eventThreads;
+    private final CWPSelectorLoop[] loops;
+    private final CWPTimerWheel timers = new CWPTimerWheel(CWPClock.SYSTEM, "CWPLoadTimer");
+    private final Client[] clients;
+    private final Sender[] senders;
+    private final CountDownLatch tuned;
+    private final CountDownLatch closed;
+    private final AtomicInteger disconnected = new AtomicInteger(0);
+
+    // cumulative and since the last interval report
+    private final CWPHistogram lineUpLatency = new CWPHistogram();
+    private final CWPHistogram lineDownLatency = new CWPHistogram();
+    private final CWPHistogram intervalLatency = new CWPHistogram();
+    private final AtomicLong lineUpsSent = new AtomicLong(0);
+    private final AtomicLong lineUpsExpected = new AtomicLong(0);
+    private final AtomicLong lineUpsReceived = new AtomicLong(0);
+    private final AtomicLong lineDownsReceived = new AtomicLong(0);
+    private long lastSent = 0;
+    private long lastReceived = 0;
+    private long lastReportNanos;
+
+    public CWPLoadGenerator(String host, int port, int clientCount, int frequencyCount, int wpm, int threads)
+            throws IOException {
+        if (frequencyCount <= 0 || clientCount < frequencyCount) {
+            throw new IllegalArgumentException("Need at least one client per frequency: "
+                    + clientCount + " clients, " + frequencyCount + " frequencies");
+        }
+        this.host = host;
+        this.port = port;
+        this.wpm = wpm;
+        eventThreads = new CWPEventLoop[threads];
+        loops = new CWPSelectorLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            eventThreads[i] = CWPEventLoop.start("CWPLoadProtocol-" + i);
+            loops[i] = new CWPSelectorLoop();
+            loops[i].start();
+        }
+        clients = new Client[clientCount];
+        senders = new Sender[frequencyCount];
+        for (int i = 0; i < clientCount; i++) {
+            int group = i % frequencyCount;
+            clients[i] = new Client(group + 1, eventThreads[i % threads], loops[i % threads]);
+            if (i < frequencyCount) {
+                senders[group] = new Sender(clients[i], clientCount / frequencyCount
+                        + (group < clientCount % frequencyCount ? 1 : 0) - 1);
+            }
+            clients[i].sender = senders[group];
+        }
+        tuned = new CountDownLatch(clientCount);
+        closed = new CountDownLatch(clientCount);
+    }
+
+    // Connects every client and waits until each has its frequency confirmed. Returns the clients tuned in.
+    public int connect(long timeout, TimeUnit unit) throws InterruptedException {
+        for (final Client client : clients) {
+            client.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    client.protocol.connect(host, port, client.frequency);
+                }
+            });
+        }
+        tuned.await(timeout, unit);
+        return clients.length - (int) tuned.getCount();
+    }
+
+    public void startKeying() {
+        lastReportNanos = System.nanoTime();
+        for (int i = 0; i < senders.length; i++) {
+            final Sender sender = senders[i];
+            // spread the text starts so that frequencies do not key in lockstep
+            final long startDelay = TimeUnit.MILLISECONDS.toNanos((i * 7919L) % 1000);
+            sender.client.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sender.start(startDelay);
+                }
+            });
+        }
+    }
+
+    public void stopKeying() throws InterruptedException {
+        final CountDownLatch stopped = new CountDownLatch(senders.length);
+        for (final Sender sender : senders) {
+            sender.client.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sender.stop();
+                    stopped.countDown();
+                }
+            });
+        }
+        stopped.await();
+    }
+
+    public void disconnect() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(clients.length);
+        for (final Client client : clients) {
+            client.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        client.protocol.disconnect();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        // the transports report Disconnected on the protocol threads, keep them until every client has
+        closed.await(10, TimeUnit.SECONDS);
+        for (int i = 0; i < eventThreads.length; i++) {
+            eventThreads[i].shutdown();
+            loops[i].shutdown();
+        }
+    }
+
+    // Rates and latency percentiles since the previous call.
+    public String intervalReport() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1, now - lastReportNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+        lastReportNanos = now;
+        long sent = lineUpsSent.get();
+        long received = lineUpsReceived.get();
+        String report = String.format(Locale.US,
+                "line ups sent %.1f/s, received %.1f/s, disconnected %d, latency (ms) p50 %.3f p99 %.3f max %.3f",
+                (sent - lastSent) / seconds, (received - lastReceived) / seconds, disconnected.get(),
+                intervalLatency.valueAtPercentile(50) / NANOS_PER_MILLI_DOUBLE,
+                intervalLatency.valueAtPercentile(99) / NANOS_PER_MILLI_DOUBLE,
+                intervalLatency.max() / NANOS_PER_MILLI_DOUBLE);
+        lastSent = sent;
+        lastReceived = received;
+        intervalLatency.reset();
+        return report;
+    }
+
+    public String summary() {
+        return String.format(Locale.US, "%d clients on %d frequencies at %d wpm%n", clients.length, senders.length, wpm)
+                + String.format(Locale.US, "line ups sent %d, expected %d, received %d, line downs received %d%n",
+                lineUpsSent.get(), lineUpsExpected.get(), lineUpsReceived.get(), lineDownsReceived.get())
+                + "time to ready (ms) " + EventLogger.histogram(EventLogger.ready).summary(NANOS_PER_MILLI_DOUBLE) + "\n"
+                + "line up latency (ms) " + lineUpLatency.summary(NANOS_PER_MILLI_DOUBLE) + "\n"
+                + "line down latency (ms) " + lineDownLatency.summary(NANOS_PER_MILLI_DOUBLE) + "\n";
+    }
+
+    private final class Client implements CWProtocolListener, CWPKeyListener {
+        final int frequency;
+        final CWPEventLoop executor;
+        final CWProtocolImplementation protocol;
+        Sender sender;
+        private boolean confirmed = false;   // protocol thread
+        private int lastOffset = -1;         // protocol thread
+
+        Client(int frequency, CWPEventLoop executor, CWPSelectorLoop loop) {
+            this.frequency = frequency;
+            this.executor = executor;
+            protocol = new CWProtocolImplementation(this, executor, CWPClock.SYSTEM, timers);
+            protocol.setTransport(new CWPNioTransport(loop));
+            protocol.setServerKeyListener(this);
+        }
+
+        @Override
+        public void onEvent(CWPEvent event, int param) {
+            if (event == CWPEvent.EChangedFrequency && !confirmed) {
+                confirmed = true;
+                tuned.countDown();
+            } else if (event == CWPEvent.EDisconnected) {
+                disconnected.incrementAndGet();
+                closed.countDown();
+            }
+        }
+
+        @Override
+        public void onLineUp(int offsetMillis) {
+            long now = System.nanoTime();
+            long origin = sender.origin;
+            lastOffset = offsetMillis;
+            lineUpsReceived.incrementAndGet();
+            if (origin != 0) {
+                long latency = now - (origin + offsetMillis * NANOS_PER_MILLI);
+                lineUpLatency.record(latency);
+                intervalLatency.record(latency);
+            }
+        }
+
+        @Override
+        public void onLineDown(int durationMillis) {
+            long now = System.nanoTime();
+            long origin = sender.origin;
+            lineDownsReceived.incrementAndGet();
+            if (origin != 0 && lastOffset >= 0) {
+                lineDownLatency.record(now - (origin + (lastOffset + durationMillis) * NANOS_PER_MILLI));
+            }
+            lastOffset = -1;
+        }
+    }
+
+    // Keys the text over and over on one frequency, every step on the sender's protocol thread.
+    private final class Sender implements Runnable {
+        final Client client;
+        final int receivers;
+        final long[] schedule = MorseKeyer.schedule(TEXT, wpm);
+        private final CWPTimerWheel.Timeout timeout;
+        volatile long origin = 0;
+        private boolean running = false;
+        private long textStart;
+        private long due;
+        private int next;
+
+        Sender(final Client client, int receivers) {
+            this.client = client;
+            this.receivers = receivers;
+            timeout = timers.newTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    client.executor.execute(Sender.this);
+                }
+            });
+        }
+
+        void start(long startDelay) {
+            origin = client.protocol.connectedAt();
+            textStart = System.nanoTime() + startDelay;
+            next = 0;
+            running = true;
+            arm();
+        }
+
+        void stop() {
+            running = false;
+            timers.cancel(timeout);
+            if (client.protocol.lineIsUp()) {
+                client.protocol.lineDown();
+            }
+        }
+
+        // Next instant rounded up to a whole millisecond from connect, so the wire values are exact.
+        private void arm() {
+            long at = textStart + schedule[next] - origin;
+            due = origin + (at + NANOS_PER_MILLI - 1) / NANOS_PER_MILLI * NANOS_PER_MILLI;
+            timers.scheduleAt(timeout, due);
+        }
+
+        @Override
+        public void run() {
+            if (!running) {
+                return;
+            }
+            if (next == schedule.length - 1) {
+                textStart += schedule[next];
+                next = 0;
+            } else if (next % 2 == 0) {
+                client.protocol.lineUpAt(due);
+                lineUpsSent.incrementAndGet();
+                lineUpsExpected.addAndGet(receivers);
+                next++;
+            } else {
+                client.protocol.lineDownAt(due);
+                next++;
+            }
+            arm();
+        }
+    }
+
+    // Usage: CWPLoadGenerator [host] [port] [clients] [frequencies] [wpm] [seconds]
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int clientCount = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int frequencyCount = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int wpm = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+        int seconds = args.length > 5 ? Integer.parseInt(args[5]) : 30;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        CWPLoadGenerator generator = new CWPLoadGenerator(host, port, clientCount, frequencyCount, wpm, threads);
+        long connectStarted = System.nanoTime();
+        int connected = generator.connect(60, TimeUnit.SECONDS);
+        System.out.println(String.format(Locale.US, "%d of %d clients tuned in %.1f ms", connected, clientCount,
+                (System.nanoTime() - connectStarted) / NANOS_PER_MILLI_DOUBLE));
+        generator.startKeying();
+        for (int elapsed = 0; elapsed < seconds; elapsed++) {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+            System.out.println(generator.intervalReport());
+        }
+        generator.stopKeying();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(1));     // let frames in flight arrive
+        System.out.print(generator.summary());
+        generator.disconnect();
+    }
+}
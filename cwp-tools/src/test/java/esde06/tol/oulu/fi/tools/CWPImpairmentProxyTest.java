@@ -0,0 +1,138 @@
+package esde06.tol.oulu.fi.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import esde06.tol.oulu.fi.cwprotocol.CWPFrameDecoder;
+import esde06.tol.oulu.fi.cwprotocol.CWPFrameEncoder;
+import esde06.tol.oulu.fi.cwprotocol.CWPFrameQueue;
+import esde06.tol.oulu.fi.cwprotocol.CWProtocolImplementation.CWPState;
+
+public class CWPImpairmentProxyTest {
+
+    private CWPImpairmentProxy proxy;
+
+    @After
+    public void tearDown() {
+        if (proxy != null) {
+            proxy.stop();
+        }
+    }
+
+    @Test
+    public void framesDecodeWhereverTheProxyCutsThem() throws Exception {
+        ByteBuffer stream = ByteBuffer.allocate(8192);
+        List<String> expected = new ArrayList<String>();
+        for (int i = 1; i <= 300; i++) {
+            if (i % 25 == 0) {
+                CWPFrameEncoder.encode(CWPFrameQueue.pack(CWPFrameQueue.INT_FRAME, -i), stream);
+                expected.add(CWPState.LineDown + " " + -i);
+            }
+            CWPFrameEncoder.encode(CWPFrameQueue.pack(CWPFrameQueue.INT_FRAME, i * 1000), stream);
+            expected.add(CWPState.LineUp + " " + i * 1000);
+            CWPFrameEncoder.encode(CWPFrameQueue.pack(CWPFrameQueue.SHORT_FRAME, i % 500), stream);
+            expected.add(CWPState.LineDown + " " + i % 500);
+        }
+
+        final ServerSocket target = new ServerSocket(0);
+        final List<String> decoded = Collections.synchronizedList(new ArrayList<String>());
+        Thread receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive(target, decoded);
+            }
+        });
+        receiver.start();
+
+        proxy = new CWPImpairmentProxy(0, "localhost", target.getLocalPort())
+                .setFragmentation(3)
+                .setJitter(1, TimeUnit.MILLISECONDS)
+                .setStalls(0.01, 2, TimeUnit.MILLISECONDS)
+                .setSeed(7);
+        proxy.start();
+        Socket client = new Socket("localhost", proxy.port());
+        OutputStream out = client.getOutputStream();
+        // the sender's own writes split the stream too, at sizes unrelated to the frames
+        int[] writes = {1, 5, 2, 1000, 3, 333};
+        for (int offset = 0, i = 0; offset < stream.position(); i++) {
+            int length = Math.min(writes[i % writes.length], stream.position() - offset);
+            out.write(stream.array(), offset, length);
+            out.flush();
+            offset += length;
+        }
+        client.shutdownOutput();
+        receiver.join(TimeUnit.SECONDS.toMillis(20));
+        assertFalse(receiver.isAlive());
+        client.close();
+        target.close();
+
+        assertEquals(expected, decoded);
+        assertTrue(proxy.stats(), proxy.stats().contains("bytes " + stream.position()));
+    }
+
+    @Test
+    public void sameSeedCutsTheSameFragments() {
+        CWPImpairmentProxy first = new CWPImpairmentProxy(0, "localhost", 0).setFragmentation(5)
+                .setJitter(10, TimeUnit.MILLISECONDS).setStalls(0.1, 1, TimeUnit.MILLISECONDS).setSeed(3);
+        CWPImpairmentProxy second = new CWPImpairmentProxy(0, "localhost", 0).setFragmentation(5)
+                .setJitter(10, TimeUnit.MILLISECONDS).setStalls(0.1, 1, TimeUnit.MILLISECONDS).setSeed(3);
+        CWPImpairmentProxy.Schedule a = first.schedule(1, 0);
+        CWPImpairmentProxy.Schedule b = second.schedule(1, 0);
+        CWPImpairmentProxy.Schedule otherDirection = first.schedule(1, 1);
+        int stalls = 0;
+        int differences = 0;
+        for (long start = 0; start < 10000; ) {
+            long end = a.fragmentEnd(start);
+            assertTrue(end > start && end <= start + 5);
+            assertEquals(end, b.fragmentEnd(start));
+            assertEquals(a.jitter(start), b.jitter(start));
+            assertTrue(a.jitter(start) < TimeUnit.MILLISECONDS.toNanos(10));
+            assertEquals(a.stalls(start), b.stalls(start));
+            stalls += a.stalls(start) ? 1 : 0;
+            differences += end != otherDirection.fragmentEnd(start) ? 1 : 0;
+            start = end;
+        }
+        // 10000 bytes in fragments of 3 on average, one in ten stalling
+        assertTrue("stalls " + stalls, stalls > 200 && stalls < 500);
+        assertTrue(differences > 0);
+    }
+
+    private static void receive(ServerSocket target, List<String> decoded) {
+        CWPFrameDecoder decoder = new CWPFrameDecoder(64);
+        CWPFrameDecoder.FrameListener listener = new CWPFrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(CWPState state, int value) {
+                decoded.add(state + " " + value);
+            }
+
+            @Override
+            public void onReadEnd() {
+            }
+        };
+        byte[] bytes = new byte[16];
+        try (Socket socket = target.accept()) {
+            InputStream in = socket.getInputStream();
+            int read;
+            while ((read = in.read(bytes)) != -1) {
+                decoder.buffer().put(bytes, 0, read);
+                decoder.decode(listener);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}